@@ -0,0 +1,82 @@
+package org.kompress;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class DeflateCompression {
+
+  // The decompressed contents of the zopfli benchmark stream.
+  private static final byte[] uncompressed = Deflate.decompress(
+    readBytes(DeflateCompression.class.getClassLoader().getResourceAsStream("zopflibig")));
+
+  @Param({"1", "6"})
+  public int level;
+
+  private static byte[] readBytes(InputStream inputStream) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[8192];
+
+    while (true) {
+      int read;
+      try {
+        read = inputStream.read(buf);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      if (read == -1) {
+        break;
+      }
+      out.write(buf, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+  @Benchmark
+  public int kompress() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(uncompressed.length);
+    try (DeflateOutputStream deflate = new DeflateOutputStream(out, level)) {
+      deflate.write(uncompressed);
+    }
+    return out.size();
+  }
+
+  @Benchmark
+  public int zlib() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(uncompressed.length);
+    Deflater deflater = new Deflater(level, true);
+    try (DeflaterOutputStream deflate = new DeflaterOutputStream(out, deflater)) {
+      deflate.write(uncompressed);
+    } finally {
+      deflater.end();
+    }
+    return out.size();
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .include(DeflateCompression.class.getSimpleName())
+      .forks(1)
+      .build();
+
+    new Runner(opt).run();
+  }
+}
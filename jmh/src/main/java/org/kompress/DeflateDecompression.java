@@ -48,6 +48,11 @@ public class DeflateDecompression {
     return consume(new DeflateInputStream(new ByteArrayInputStream(compressed)));
   }
 
+  @Benchmark
+  public int kompressParallel() throws IOException {
+    return consume(new BufferedInputStream(new ParallelDeflateInputStream(new ByteArrayInputStream(compressed), false)));
+  }
+
   @Benchmark
   public int zlib() throws IOException {
     return consume(new BufferedInputStream(new InflaterInputStream(new ByteArrayInputStream(compressed), new Inflater(true))));
@@ -0,0 +1,124 @@
+package org.kompress;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the hash chain and binary tree match finders, each searching
+ * every position of 96 KiB for all the matches the optimal parser uses.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class MatchFinders {
+
+  private static final int LENGTH = 3 * DeflateCompressor.WINDOW_SIZE;
+  private static final int MAX_MATCHES = 16;
+
+  /**
+   * {@code repetitive} draws from a two letter alphabet, so that every
+   * position has thousands of candidates; {@code random} has almost none;
+   * {@code text} is the start of the zopfli benchmark stream.
+   */
+  @Param({"repetitive", "random", "text"})
+  public String corpus;
+
+  @Param({"32", "512", "4096"})
+  public int depth;
+
+  private final byte[] window = new byte[4 * DeflateCompressor.WINDOW_SIZE + 8];
+  private final int[] matches = new int[MAX_MATCHES];
+  private HashChainMatchFinder hashChain;
+  private BinaryTreeMatchFinder binaryTree;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(1);
+    switch (corpus) {
+      case "repetitive":
+        for (int i = 0; i < LENGTH; i++) {
+          window[i] = (byte) ('a' + random.nextInt(2));
+        }
+        break;
+      case "random":
+        random.nextBytes(window);
+        break;
+      default:
+        byte[] text = Deflate.decompress(
+          readBytes(MatchFinders.class.getClassLoader().getResourceAsStream("zopflibig")));
+        System.arraycopy(text, 0, window, 0, Math.min(text.length, LENGTH));
+    }
+    hashChain = new HashChainMatchFinder(window);
+    binaryTree = new BinaryTreeMatchFinder(window);
+  }
+
+  private static byte[] readBytes(InputStream inputStream) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[8192];
+
+    while (true) {
+      int read;
+      try {
+        read = inputStream.read(buf);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      if (read == -1) {
+        break;
+      }
+      out.write(buf, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+  @Benchmark
+  public int hashChain() {
+    HashChainMatchFinder finder = hashChain;
+    finder.reset();
+    int found = 0;
+    for (int p = 0; p < LENGTH - Tokens.MAX_MATCH; p++) {
+      int candidate = finder.insert(p);
+      if (candidate >= 0 && p - candidate <= DeflateCompressor.MAX_DIST) {
+        found += finder.findMatches(p, candidate, Tokens.MAX_MATCH, depth, Tokens.MAX_MATCH,
+          matches, 0, MAX_MATCHES);
+      }
+    }
+    return found;
+  }
+
+  @Benchmark
+  public int binaryTree() {
+    BinaryTreeMatchFinder finder = binaryTree;
+    finder.reset();
+    int found = 0;
+    for (int p = 0; p < LENGTH - Tokens.MAX_MATCH; p++) {
+      found += finder.findMatches(p, Tokens.MAX_MATCH, depth, Tokens.MAX_MATCH, matches, 0, MAX_MATCHES);
+    }
+    return found;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .include(MatchFinders.class.getSimpleName())
+      .forks(1)
+      .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -0,0 +1,237 @@
+package org.kompress;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.function.LongSupplier;
+
+/**
+ * Compresses into a single DEFLATE stream at whichever level keeps up with
+ * a target: a compression speed, or a share of one CPU to be spent on
+ * compression, however fast input arrives.
+ *
+ * <p>Input is compressed in segments of {@link #SEGMENT_SIZE} bytes, each
+ * of which is timed. The level steps down as soon as its recent speed
+ * falls short of the target, and up when the next level's speed, if
+ * measured recently, met it; speeds go stale after {@value #MAX_AGE}
+ * segments, so that a level found too slow is tried again now and then.
+ * Levels change between blocks, as {@link DeflateOutputStream#setLevel(int)}
+ * does, so the output remains one valid stream throughout.
+ *
+ * <p>Under a CPU budget, the target speed is the rate at which input has
+ * been arriving, divided by the budget: bursts of input drive the level
+ * down, and quiet spells let it climb back. Compression is then timed by
+ * the writing thread's CPU time, where the JVM supports it.
+ *
+ * <p>{@link #level()}, {@link #throughput()} and {@link #load()} report
+ * how the stream is keeping up, for export as metrics.
+ */
+public class AdaptiveDeflateOutputStream extends OutputStream {
+
+  static final int SEGMENT_SIZE = 64 * 1024;
+
+  static final int MAX_AGE = 64;
+
+  // Weight of the latest segment in the running averages.
+  private static final double SMOOTHING = 0.5;
+
+  private static final double NANOS_PER_SECOND = 1e9;
+  private static final double BYTES_PER_MEGABYTE = 1e6;
+
+  private final DeflateOutputStream out;
+  // In bytes per nanosecond, or 0 under a CPU budget.
+  private final double targetSpeed;
+  private final double cpuBudget;
+  private final int minLevel;
+  private final int maxLevel;
+  private final LongSupplier clock;
+  private final LongSupplier wallClock;
+  private final byte[] single = new byte[1];
+
+  // By level, in bytes per nanosecond, and the segment it was last measured in.
+  private final double[] speed = new double[Deflate.MAX_COMPRESSION + 1];
+  private final long[] measuredAt = new long[Deflate.MAX_COMPRESSION + 1];
+  private long segments;
+
+  private int segmentLength;
+  private long segmentTime;
+  private long segmentStart;
+
+  private double throughput;
+  private double inputRate;
+  private double load;
+
+  /**
+   * Compresses at the highest level between {@code minLevel} and
+   * {@code maxLevel} that sustains {@code megabytesPerSecond}, in
+   * millions of bytes of input per second.
+   */
+  public static AdaptiveDeflateOutputStream withTargetSpeed(OutputStream out, double megabytesPerSecond,
+                                                            int minLevel, int maxLevel) {
+    if (!(megabytesPerSecond > 0)) {
+      throw new IllegalArgumentException("Target speed must be positive: " + megabytesPerSecond);
+    }
+    return new AdaptiveDeflateOutputStream(out, megabytesPerSecond * BYTES_PER_MEGABYTE / NANOS_PER_SECOND, 0,
+      minLevel, maxLevel, System::nanoTime, System::nanoTime);
+  }
+
+  public static AdaptiveDeflateOutputStream withTargetSpeed(OutputStream out, double megabytesPerSecond) {
+    return withTargetSpeed(out, megabytesPerSecond, Deflate.BEST_SPEED, Deflate.BEST_COMPRESSION);
+  }
+
+  /**
+   * Compresses at the highest level between {@code minLevel} and
+   * {@code maxLevel} that spends no more than {@code cpuBudget} of one CPU,
+   * between 0 and 1, on compressing input at the rate it arrives.
+   */
+  public static AdaptiveDeflateOutputStream withCpuBudget(OutputStream out, double cpuBudget,
+                                                          int minLevel, int maxLevel) {
+    if (!(cpuBudget > 0 && cpuBudget <= 1)) {
+      throw new IllegalArgumentException("CPU budget must be in (0, 1]: " + cpuBudget);
+    }
+    return new AdaptiveDeflateOutputStream(out, 0, cpuBudget, minLevel, maxLevel, cpuClock(), System::nanoTime);
+  }
+
+  public static AdaptiveDeflateOutputStream withCpuBudget(OutputStream out, double cpuBudget) {
+    return withCpuBudget(out, cpuBudget, Deflate.BEST_SPEED, Deflate.BEST_COMPRESSION);
+  }
+
+  /**
+   * @param clock     times compression, in nanoseconds.
+   * @param wallClock times the arrival of input, in nanoseconds.
+   */
+  AdaptiveDeflateOutputStream(OutputStream out, double targetSpeed, double cpuBudget, int minLevel, int maxLevel,
+                              LongSupplier clock, LongSupplier wallClock) {
+    if (minLevel < Deflate.NO_COMPRESSION || maxLevel > Deflate.MAX_COMPRESSION || minLevel > maxLevel) {
+      throw new IllegalArgumentException("Invalid level range: " + minLevel + " to " + maxLevel);
+    }
+    this.out = new DeflateOutputStream(out,
+      Math.max(minLevel, Math.min(maxLevel, Deflate.DEFAULT_COMPRESSION)));
+    this.targetSpeed = targetSpeed;
+    this.cpuBudget = cpuBudget;
+    this.minLevel = minLevel;
+    this.maxLevel = maxLevel;
+    this.clock = clock;
+    this.wallClock = wallClock;
+    this.segmentStart = wallClock.getAsLong();
+  }
+
+  private static LongSupplier cpuClock() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads.isCurrentThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled()) {
+      return threads::getCurrentThreadCpuTime;
+    }
+    return System::nanoTime;
+  }
+
+  /**
+   * Returns the level compressing input now.
+   */
+  public int level() {
+    return out.level();
+  }
+
+  /**
+   * Returns the recent compression speed, in millions of bytes of input
+   * per second, or 0 before the first segment.
+   */
+  public double throughput() {
+    return throughput * NANOS_PER_SECOND / BYTES_PER_MEGABYTE;
+  }
+
+  /**
+   * Returns the share of recent time spent compressing, or 0 before the
+   * first segment. Under a CPU budget, it is the share of one CPU.
+   */
+  public double load() {
+    return load;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    single[0] = (byte) b;
+    write(single, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    while (len > 0) {
+      int n = Math.min(len, SEGMENT_SIZE - segmentLength);
+      long start = clock.getAsLong();
+      out.write(b, off, n);
+      segmentTime += clock.getAsLong() - start;
+      segmentLength += n;
+      off += n;
+      len -= n;
+      if (segmentLength == SEGMENT_SIZE) {
+        endSegment();
+      }
+    }
+  }
+
+  private void endSegment() throws IOException {
+    int level = out.level();
+    double segmentSpeed = (double) SEGMENT_SIZE / Math.max(segmentTime, 1);
+    if (segments - measuredAt[level] > MAX_AGE || speed[level] == 0) {
+      speed[level] = segmentSpeed;
+    } else {
+      speed[level] += SMOOTHING * (segmentSpeed - speed[level]);
+    }
+    measuredAt[level] = segments;
+    throughput = average(throughput, segmentSpeed);
+
+    long now = wallClock.getAsLong();
+    long elapsed = Math.max(now - segmentStart, 1);
+    inputRate = average(inputRate, (double) SEGMENT_SIZE / elapsed);
+    load = average(load, Math.min((double) segmentTime / elapsed, 1));
+    segments++;
+    segmentLength = 0;
+    segmentTime = 0;
+
+    double target = cpuBudget > 0 ? inputRate / cpuBudget : targetSpeed;
+    int next = level;
+    if (speed[level] < target) {
+      next = Math.max(level - 1, minLevel);
+    } else if (level < maxLevel
+      && (segments - measuredAt[level + 1] > MAX_AGE || speed[level + 1] == 0 || speed[level + 1] >= target)) {
+      next = level + 1;
+    }
+    if (next != level) {
+      out.setLevel(next);
+    }
+    segmentStart = now;
+  }
+
+  private static double average(double average, double sample) {
+    return average == 0 ? sample : average + SMOOTHING * (sample - average);
+  }
+
+  /**
+   * Compresses all remaining input and writes the final block,
+   * without closing the underlying stream.
+   */
+  public void finish() throws IOException {
+    out.finish();
+  }
+
+  @Override
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  /**
+   * As {@link DeflateOutputStream#flush(int)}.
+   */
+  public void flush(int mode) throws IOException {
+    out.flush(mode);
+  }
+
+  @Override
+  public void close() throws IOException {
+    out.close();
+  }
+}
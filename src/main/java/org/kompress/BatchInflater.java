@@ -0,0 +1,193 @@
+package org.kompress;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Decompresses batches of independent raw DEFLATE payloads for
+ * {@link Deflate#decompressAll}. Each thread keeps a {@link BlockInflater}
+ * from one payload and one batch to the next, so that its tables, half a
+ * megabyte of them, are allocated once.
+ */
+final class BatchInflater {
+
+  private static final int WINDOW_SIZE = BlockInflater.WINDOW_SIZE;
+
+  /**
+   * The bytes each thread acquires from a {@link DecompressionBudget}: its
+   * decoding tables and its output buffer as first allocated. Under a
+   * budget, buffers grown for larger payloads, output and a copy of the
+   * input, are dropped when the thread's part in the batch ends, rather
+   * than kept for the next.
+   */
+  static final int MEMORY = 2 * 4 * (1 << 15) + 2 * BlockInflater.INITIAL_OUTPUT;
+
+  private static final ThreadLocal<BatchInflater> CONTEXT = ThreadLocal.withInitial(BatchInflater::new);
+
+  /**
+   * Decompresses the payload at an index of the batch.
+   */
+  interface Item {
+    void decompress(int i, BatchInflater inflater) throws IOException;
+  }
+
+  private final BlockInflater inflater = new BlockInflater();
+  private byte[] input = new byte[0];
+
+  private BatchInflater() {
+  }
+
+  /**
+   * Runs {@code item} for each of {@code n} payloads, handing them out one
+   * at a time to the calling thread and to as many tasks on
+   * {@code executor} as there are processors, so that threads that finish
+   * early take more.
+   *
+   * @param failures if not null, where each payload that fails records why,
+   *                 rather than the batch stopping at the first failure.
+   * @param budget   if not null, what each thread acquires {@link #MEMORY}
+   *                 from for the batch. The calling thread waits for it as
+   *                 the budget allows; the others join in only if there is
+   *                 room at the time.
+   */
+  static void run(int n, Executor executor, IOException[] failures, DecompressionBudget budget, Item item)
+    throws IOException {
+    if (failures != null && failures.length != n) {
+      throw new IllegalArgumentException("Expected " + n + " failure slots: " + failures.length);
+    }
+    AtomicInteger next = new AtomicInteger();
+    AtomicReference<IOException> failure = new AtomicReference<>();
+    Runnable worker = () -> {
+      BatchInflater inflater = CONTEXT.get();
+      try {
+        int i;
+        while (failure.get() == null && (i = next.getAndIncrement()) < n) {
+          try {
+            item.decompress(i, inflater);
+          } catch (IOException e) {
+            if (failures != null) {
+              failures[i] = e;
+            } else {
+              failure.compareAndSet(null, e);
+            }
+          }
+        }
+      } finally {
+        if (budget != null) {
+          inflater.trim();
+        }
+      }
+    };
+
+    DecompressionBudget.Lease lease = budget == null || n == 0 ? null : budget.acquire(MEMORY);
+    int tasks = Math.min(n, Runtime.getRuntime().availableProcessors()) - 1;
+    CompletableFuture<?>[] futures = new CompletableFuture<?>[Math.max(0, tasks)];
+    for (int t = 0; t < futures.length; t++) {
+      futures[t] = CompletableFuture.runAsync(budget == null ? worker : () -> {
+        DecompressionBudget.Lease extra = budget.tryAcquire(MEMORY);
+        if (extra != null) {
+          try {
+            worker.run();
+          } finally {
+            extra.close();
+          }
+        }
+      }, executor);
+    }
+    try {
+      worker.run();
+    } finally {
+      if (lease != null) {
+        lease.close();
+      }
+    }
+    try {
+      CompletableFuture.allOf(futures).join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) e.getCause()).getCause();
+      }
+      throw e;
+    }
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+  }
+
+  /**
+   * Returns the bytes of buffers the calling thread keeps between batches.
+   */
+  static long retained() {
+    BatchInflater context = CONTEXT.get();
+    return 2L * context.inflater.output().length + context.input.length;
+  }
+
+  byte[] decompress(byte[] compressed) throws IOException {
+    // Into the input kept from one payload to the next, whose wrapping
+    // the inflater keeps as well.
+    System.arraycopy(compressed, 0, stage(compressed.length), 0, compressed.length);
+    byte[] data = new byte[inflate(input, compressed.length)];
+    copy(data, 0);
+    return data;
+  }
+
+  /**
+   * Decompresses {@code compressed} from its position to its limit, which
+   * are left as they are, into {@code output} from its position, which is
+   * left after the data.
+   */
+  void decompress(ByteBuffer compressed, ByteBuffer output) throws IOException {
+    int length = compressed.remaining();
+    compressed.duplicate().get(stage(length), 0, length);
+    int n = inflate(input, length);
+    if (n > output.remaining()) {
+      throw new IOException("Decompressed size " + n + " exceeds output buffer of " + output.remaining());
+    }
+    if (output.hasArray()) {
+      copy(output.array(), output.arrayOffset() + output.position());
+      output.position(output.position() + n);
+    } else {
+      byte[] data = new byte[n];
+      copy(data, 0);
+      output.put(data);
+    }
+  }
+
+  private void trim() {
+    inflater.trimOutput();
+    input = new byte[0];
+  }
+
+  private byte[] stage(int length) {
+    if (input.length < length) {
+      input = new byte[Math.max(length, 2 * input.length)];
+    }
+    return input;
+  }
+
+  private int inflate(byte[] compressed, int length) throws IOException {
+    inflater.setInput(compressed, length);
+    inflater.seek(0);
+    inflater.window(compressed, 0, 0);
+    do {
+      if (!inflater.inflateBlock()) {
+        throw new EOFException("Unexpected end of DEFLATE stream");
+      }
+    } while (!inflater.finalBlock());
+    return inflater.outputEnd() - WINDOW_SIZE;
+  }
+
+  private void copy(byte[] dst, int off) {
+    char[] out = inflater.output();
+    for (int i = WINDOW_SIZE, end = inflater.outputEnd(); i < end; i++) {
+      dst[off++] = (byte) out[i];
+    }
+  }
+}
@@ -0,0 +1,136 @@
+package org.kompress;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Maps uncompressed offsets to the BGZF blocks holding them, in the
+ * layout of the {@code .gzi} files written by {@code bgzip -i}: a little
+ * endian count, followed by pairs of compressed and uncompressed offsets
+ * for every block after the first.
+ */
+public class BgzfIndex {
+
+  private final long[] compressedOffsets;
+  private final long[] uncompressedOffsets;
+
+  private BgzfIndex(long[] compressedOffsets, long[] uncompressedOffsets) {
+    this.compressedOffsets = compressedOffsets;
+    this.uncompressedOffsets = uncompressedOffsets;
+  }
+
+  public static BgzfIndex read(InputStream gzi) throws IOException {
+    DataInputStream in = new DataInputStream(gzi);
+    byte[] entry = new byte[16];
+    ByteBuffer le = ByteBuffer.wrap(entry).order(ByteOrder.LITTLE_ENDIAN);
+
+    in.readFully(entry, 0, 8);
+    long count = le.getLong(0);
+    if (count < 0 || count > Integer.MAX_VALUE - 1) {
+      throw new IOException("Invalid .gzi entry count: " + count);
+    }
+
+    long[] compressed = new long[(int) count + 1];
+    long[] uncompressed = new long[(int) count + 1];
+    for (int i = 1; i <= count; i++) {
+      in.readFully(entry);
+      compressed[i] = le.getLong(0);
+      uncompressed[i] = le.getLong(8);
+      if (compressed[i] <= compressed[i - 1] || uncompressed[i] < uncompressed[i - 1]) {
+        throw new IOException("Unordered .gzi entry " + i);
+      }
+    }
+    return new BgzfIndex(compressed, uncompressed);
+  }
+
+  /**
+   * Builds an index by walking the block headers of a BGZF file,
+   * without inflating any data.
+   */
+  public static BgzfIndex build(SeekableByteChannel bgzf) throws IOException {
+    long[] compressed = new long[64];
+    long[] uncompressed = new long[64];
+    byte[] header = new byte[BgzfInputStream.BGZF_HEADER_SIZE];
+    ByteBuffer isize = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+
+    int count = 1;
+    long blockOffset = 0;
+    long dataOffset = 0;
+    while (true) {
+      int size = BgzfInputStream.readBlockSize(bgzf, blockOffset, header);
+      if (size == -1) {
+        break;
+      }
+      isize.clear();
+      bgzf.position(blockOffset + size - 4);
+      while (isize.hasRemaining()) {
+        if (bgzf.read(isize) == -1) {
+          throw new EOFException("Truncated BGZF block at " + blockOffset);
+        }
+      }
+      blockOffset += size;
+      dataOffset += isize.getInt(0) & 0xffffffffL;
+
+      if (count == compressed.length) {
+        compressed = Arrays.copyOf(compressed, count * 2);
+        uncompressed = Arrays.copyOf(uncompressed, count * 2);
+      }
+      compressed[count] = blockOffset;
+      uncompressed[count] = dataOffset;
+      count++;
+    }
+
+    // The final entry points past the last block and isn't recorded.
+    count = Math.max(1, count - 1);
+    return new BgzfIndex(Arrays.copyOf(compressed, count), Arrays.copyOf(uncompressed, count));
+  }
+
+  public void write(OutputStream gzi) throws IOException {
+    ByteBuffer le = ByteBuffer.allocate(8 + 16 * (compressedOffsets.length - 1))
+      .order(ByteOrder.LITTLE_ENDIAN);
+    le.putLong(compressedOffsets.length - 1);
+    for (int i = 1; i < compressedOffsets.length; i++) {
+      le.putLong(compressedOffsets[i]);
+      le.putLong(uncompressedOffsets[i]);
+    }
+    gzi.write(le.array());
+  }
+
+  /**
+   * Returns the virtual offset of the byte at {@code uncompressedOffset}.
+   */
+  public long virtualOffset(long uncompressedOffset) {
+    if (uncompressedOffset < 0) {
+      throw new IllegalArgumentException("Negative offset: " + uncompressedOffset);
+    }
+    int i = Arrays.binarySearch(uncompressedOffsets, uncompressedOffset);
+    if (i < 0) {
+      i = -i - 2;
+    } else {
+      // Empty blocks share an uncompressed offset with their
+      // successor; the last of them holds the data.
+      while (i + 1 < uncompressedOffsets.length && uncompressedOffsets[i + 1] == uncompressedOffset) {
+        i++;
+      }
+    }
+    long inBlock = uncompressedOffset - uncompressedOffsets[i];
+    if (inBlock >= BgzfInputStream.MAX_BLOCK_SIZE) {
+      throw new IllegalArgumentException("Offset past end of indexed data: " + uncompressedOffset);
+    }
+    return compressedOffsets[i] << 16 | inBlock;
+  }
+
+  /**
+   * Returns the number of blocks described by this index.
+   */
+  public int size() {
+    return compressedOffsets.length;
+  }
+}
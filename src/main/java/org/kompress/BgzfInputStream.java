@@ -0,0 +1,333 @@
+package org.kompress;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+import java.util.zip.ZipException;
+
+/**
+ * Reads <a href="https://samtools.github.io/hts-specs/SAMv1.pdf">BGZF</a>
+ * files: concatenated gzip members of at most 64 KiB, each recording its
+ * own size in a {@code BC} extra subfield.
+ *
+ * <p>Since every block is independent, blocks are located from their
+ * headers alone and inflated ahead of the reader on an {@link Executor}.
+ * Output is always delivered in file order.
+ *
+ * <p>Positions are BGZF virtual offsets: the compressed offset of a
+ * block shifted left by 16, or'd with an offset into its uncompressed
+ * contents.
+ */
+public class BgzfInputStream extends InputStream {
+
+  static final int MAX_BLOCK_SIZE = 1 << 16;
+
+  // ID1 through XLEN, plus the six byte BC subfield.
+  static final int BGZF_HEADER_SIZE = 18;
+  private static final int DEFAULT_READ_AHEAD = 2 * Runtime.getRuntime().availableProcessors();
+
+  private final SeekableByteChannel compressed;
+  private final BgzfIndex index;
+  private final Executor executor;
+  private final int readAhead;
+  private final ArrayDeque<CompletableFuture<Block>> pending = new ArrayDeque<>();
+  private final byte[] header = new byte[BGZF_HEADER_SIZE];
+
+  private Block block;
+  private int blockPos;
+  private long nextScan;
+  private long nextDelivery;
+  private boolean scanFinished;
+
+  public BgzfInputStream(SeekableByteChannel compressed) throws IOException {
+    this(compressed, null, ForkJoinPool.commonPool(), DEFAULT_READ_AHEAD);
+  }
+
+  /**
+   * @param index     optional .gzi index used by {@link #seekUncompressed(long)}; may be null.
+   * @param executor  runs block inflation.
+   * @param readAhead maximum number of blocks inflated ahead of the reader.
+   */
+  public BgzfInputStream(SeekableByteChannel compressed, BgzfIndex index,
+                         Executor executor, int readAhead) throws IOException {
+    if (readAhead < 1) {
+      throw new IllegalArgumentException("readAhead must be positive: " + readAhead);
+    }
+    this.compressed = compressed;
+    this.index = index;
+    this.executor = executor;
+    this.readAhead = readAhead;
+    this.nextScan = compressed.position();
+    this.nextDelivery = nextScan;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!ensureBlock()) {
+      return -1;
+    }
+    return block.data[blockPos++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (len == 0) {
+      return 0;
+    }
+    if (!ensureBlock()) {
+      return -1;
+    }
+    int n = Math.min(len, block.data.length - blockPos);
+    System.arraycopy(block.data, blockPos, b, off, n);
+    blockPos += n;
+    return n;
+  }
+
+  @Override
+  public int available() {
+    return block == null ? 0 : block.data.length - blockPos;
+  }
+
+  /**
+   * Returns the virtual offset of the next byte to be read.
+   */
+  public long getVirtualOffset() {
+    if (block == null) {
+      return nextDelivery << 16;
+    }
+    if (blockPos == block.data.length) {
+      // The start of the next block, rather than the end of this one.
+      return (block.offset + block.compressedSize) << 16;
+    }
+    return block.offset << 16 | blockPos;
+  }
+
+  /**
+   * Positions the stream at a virtual offset previously returned
+   * by {@link #getVirtualOffset()}, or read from an external index.
+   */
+  public void seek(long virtualOffset) throws IOException {
+    long blockOffset = virtualOffset >>> 16;
+    int inBlock = (int) (virtualOffset & 0xffff);
+
+    cancelPending();
+    block = null;
+    blockPos = 0;
+    nextScan = blockOffset;
+    nextDelivery = blockOffset;
+    scanFinished = false;
+
+    if (inBlock == 0) {
+      return;
+    }
+    if (!ensureBlock() || block.offset != blockOffset || inBlock > block.data.length) {
+      throw new EOFException("Virtual offset past end of block: " + Long.toHexString(virtualOffset));
+    }
+    blockPos = inBlock;
+  }
+
+  /**
+   * Positions the stream at an offset into the uncompressed data. The
+   * block is located with the index given at construction if there is
+   * one, otherwise by walking block headers from the start of the file.
+   */
+  public void seekUncompressed(long offset) throws IOException {
+    if (offset < 0) {
+      throw new IllegalArgumentException("Negative offset: " + offset);
+    }
+    if (index != null) {
+      seek(index.virtualOffset(offset));
+      return;
+    }
+
+    cancelPending();
+    long blockOffset = 0;
+    long remaining = offset;
+    while (true) {
+      int size = readBlockSize(compressed, blockOffset, header);
+      if (size == -1) {
+        if (remaining == 0) {
+          break;
+        }
+        throw new EOFException("Offset past end of data: " + offset);
+      }
+      int isize = readIsize(blockOffset, size);
+      if (remaining < isize) {
+        break;
+      }
+      remaining -= isize;
+      blockOffset += size;
+    }
+    seek(blockOffset << 16 | remaining);
+  }
+
+  @Override
+  public void close() throws IOException {
+    cancelPending();
+    block = null;
+    compressed.close();
+  }
+
+  private boolean ensureBlock() throws IOException {
+    while (block == null || blockPos == block.data.length) {
+      if (block != null) {
+        nextDelivery = block.offset + block.compressedSize;
+        block = null;
+      }
+      fillPipeline();
+      CompletableFuture<Block> next = pending.poll();
+      if (next == null) {
+        return false;
+      }
+      block = await(next);
+      blockPos = 0;
+      fillPipeline();
+    }
+    return true;
+  }
+
+  private void fillPipeline() throws IOException {
+    while (!scanFinished && pending.size() < readAhead) {
+      int size = readBlockSize(compressed, nextScan, header);
+      if (size == -1) {
+        scanFinished = true;
+        return;
+      }
+      byte[] raw = new byte[size];
+      System.arraycopy(header, 0, raw, 0, BGZF_HEADER_SIZE);
+      readFully(compressed, ByteBuffer.wrap(raw, BGZF_HEADER_SIZE, size - BGZF_HEADER_SIZE));
+
+      long offset = nextScan;
+      pending.add(CompletableFuture.supplyAsync(() -> inflate(offset, raw), executor));
+      nextScan += size;
+    }
+  }
+
+  private void cancelPending() {
+    for (CompletableFuture<Block> future : pending) {
+      future.cancel(false);
+    }
+    pending.clear();
+  }
+
+  private int readIsize(long blockOffset, int size) throws IOException {
+    ByteBuffer isize = ByteBuffer.wrap(header, 0, 4);
+    compressed.position(blockOffset + size - 4);
+    readFully(compressed, isize);
+    return Gzip.getInt(header, 0);
+  }
+
+  private static Block await(CompletableFuture<Block> future) throws IOException {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) e.getCause()).getCause();
+      }
+      throw e;
+    }
+  }
+
+  private static Block inflate(long offset, byte[] raw) {
+    try {
+      int headerLen = Gzip.headerLength(raw, 0, raw.length);
+      int payloadLen = raw.length - headerLen - Gzip.TRAILER_SIZE;
+      if (headerLen == -1 || payloadLen < 0) {
+        throw new ZipException("Truncated BGZF block at " + offset);
+      }
+      int expectedCrc = Gzip.getInt(raw, raw.length - 8);
+      int isize = Gzip.getInt(raw, raw.length - 4);
+      if (isize < 0 || isize > MAX_BLOCK_SIZE) {
+        throw new ZipException("Invalid BGZF block size at " + offset + ": " + isize);
+      }
+
+      byte[] data = new byte[isize];
+      InputStream in = new DeflateInputStream(new ByteArrayInputStream(raw, headerLen, payloadLen));
+      int n = 0;
+      while (n < isize) {
+        int read = in.read(data, n, isize - n);
+        if (read == -1) {
+          throw new EOFException("BGZF block at " + offset + " is shorter than its ISIZE");
+        }
+        n += read;
+      }
+      if (in.read() != -1) {
+        throw new ZipException("BGZF block at " + offset + " is longer than its ISIZE");
+      }
+
+      CRC32 crc = new CRC32();
+      crc.update(data, 0, isize);
+      if ((int) crc.getValue() != expectedCrc) {
+        throw new ZipException("Corrupt BGZF block at " + offset + ": CRC32 mismatch");
+      }
+      return new Block(offset, raw.length, data);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Reads the header of the block at {@code offset} into {@code header},
+   * returning the total size of the block or -1 at the end of the file.
+   */
+  static int readBlockSize(SeekableByteChannel channel, long offset, byte[] header) throws IOException {
+    channel.position(offset);
+    ByteBuffer buffer = ByteBuffer.wrap(header, 0, BGZF_HEADER_SIZE);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) == -1) {
+        if (buffer.position() == 0) {
+          return -1;
+        }
+        throw new EOFException("Truncated BGZF header at " + offset);
+      }
+    }
+    if ((header[0] & 0xff) != Gzip.ID1 || (header[1] & 0xff) != Gzip.ID2
+      || header[2] != Gzip.CM_DEFLATE) {
+      throw new ZipException("Not in GZIP format at " + offset);
+    }
+    // BGZF requires the BC subfield to come first, which
+    // keeps block headers a fixed size.
+    if ((header[3] & Gzip.FEXTRA) == 0 || Gzip.getUnsignedShort(header, 10) < 6
+      || header[12] != 'B' || header[13] != 'C' || Gzip.getUnsignedShort(header, 14) != 2) {
+      throw new ZipException("Missing BGZF block size at " + offset);
+    }
+    int bsize = Gzip.getUnsignedShort(header, 16);
+    if (bsize + 1 < BGZF_HEADER_SIZE + Gzip.TRAILER_SIZE) {
+      throw new ZipException("Invalid BGZF block size at " + offset + ": " + (bsize + 1));
+    }
+    return bsize + 1;
+  }
+
+  private static void readFully(SeekableByteChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) == -1) {
+        throw new EOFException();
+      }
+    }
+  }
+
+  private static class Block {
+    final long offset;
+    final int compressedSize;
+    final byte[] data;
+
+    Block(long offset, int compressedSize, byte[] data) {
+      this.offset = offset;
+      this.compressedSize = compressedSize;
+      this.data = data;
+    }
+  }
+}
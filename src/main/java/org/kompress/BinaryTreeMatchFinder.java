@@ -0,0 +1,180 @@
+package org.kompress;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Finds LZ77 matches through binary trees, as LZMA's bt4 and libdeflate's
+ * {@code bt_matchfinder} do. Each hash bucket holds a tree of the window
+ * positions with that hash, ordered by the bytes that follow them, with
+ * the most recent position at the root.
+ *
+ * <p>Inserting a position walks down from the root, splitting the tree in
+ * two around the new position, which becomes the root. The walk visits the
+ * positions that share the longest prefixes with it, so one pass finds the
+ * longest match and every shorter match at a smaller distance, in time
+ * logarithmic in the window rather than linear in the number of
+ * repetitions as with hash chains.
+ *
+ * <p>Positions index the compressor's window buffer; a negative one is an
+ * empty tree.
+ */
+final class BinaryTreeMatchFinder {
+
+  static final int HASH_BITS = 15;
+  private static final int HASH_MASK = (1 << HASH_BITS) - 1;
+  private static final int HASH_SHIFT = (HASH_BITS + Tokens.MIN_MATCH - 1) / Tokens.MIN_MATCH;
+
+  private static final int WINDOW_MASK = DeflateCompressor.WINDOW_SIZE - 1;
+
+  private final byte[] window;
+  private final ByteBuffer longs;
+  private final HeadTable head;
+  // The left and right children of each window position, in that order.
+  private final int[] child = new int[2 * DeflateCompressor.WINDOW_SIZE];
+
+  BinaryTreeMatchFinder(byte[] window) {
+    this.window = window;
+    this.longs = ByteBuffer.wrap(window).order(ByteOrder.LITTLE_ENDIAN);
+    this.head = new HeadTable(HASH_BITS, window.length);
+  }
+
+  /**
+   * Forgets every position. Trees are only reached through
+   * {@code head}, so they are left as they are.
+   */
+  void reset() {
+    head.clear();
+  }
+
+  private int hash(int p) {
+    return ((window[p] & 0xff) << (2 * HASH_SHIFT)
+      ^ (window[p + 1] & 0xff) << HASH_SHIFT
+      ^ (window[p + 2] & 0xff)) & HASH_MASK;
+  }
+
+  /**
+   * Inserts {@code p} and records each match at {@code p} that is longer
+   * than all those before it, packed as by {@link Tokens#match}, as
+   * {@link HashChainMatchFinder#findMatches} does. Returns the number of
+   * matches recorded in {@code matches[off..)}; once {@code maxMatches}
+   * are recorded, a longer match replaces the last.
+   *
+   * @param maxLength  the longest match allowed, at most the lookahead.
+   * @param maxDepth   the number of tree nodes to visit.
+   * @param niceLength stop searching once a match is this long.
+   */
+  int findMatches(int p, int maxLength, int maxDepth, int niceLength,
+                  int[] matches, int off, int maxMatches) {
+    return insert(p, maxLength, maxDepth, niceLength, matches, off, maxMatches);
+  }
+
+  /**
+   * Inserts {@code p} without recording matches; the tree needs the same
+   * walk either way.
+   */
+  void skip(int p, int maxLength, int maxDepth, int niceLength) {
+    insert(p, maxLength, maxDepth, niceLength, null, 0, 0);
+  }
+
+  private int insert(int p, int maxLength, int maxDepth, int niceLength,
+                     int[] matches, int off, int maxMatches) {
+    byte[] window = this.window;
+    int[] child = this.child;
+    int node = head.replace(hash(p), p);
+
+    // Where the next node smaller, or greater, than p hangs.
+    int pendingLt = 2 * (p & WINDOW_MASK);
+    int pendingGt = pendingLt + 1;
+    // Every node below a smaller, or greater, node shares
+    // at least this prefix with p.
+    int ltLength = 0;
+    int gtLength = 0;
+
+    int nice = Math.min(niceLength, maxLength);
+    int best = Tokens.MIN_MATCH - 1;
+    int count = 0;
+    int limit = Math.max(p - DeflateCompressor.MAX_DIST, 0);
+
+    for (int depth = maxDepth; node >= limit && depth > 0; depth--) {
+      int len = Math.min(ltLength, gtLength);
+      len += HashChainMatchFinder.matchLength(longs, node + len, p + len, maxLength - len);
+
+      if (len > best) {
+        best = len;
+        if (matches != null && len >= Tokens.MIN_MATCH) {
+          if (count == maxMatches) {
+            count--;
+          }
+          matches[off + count++] = Tokens.match(len, p - node);
+        }
+        if (len >= nice) {
+          return stop(p, node, len, maxLength, pendingLt, pendingGt, count);
+        }
+      }
+
+      int slot = 2 * (node & WINDOW_MASK);
+      if ((window[node + len] & 0xff) < (window[p + len] & 0xff)) {
+        child[pendingLt] = node;
+        pendingLt = slot + 1;
+        node = child[pendingLt];
+        ltLength = len;
+      } else {
+        child[pendingGt] = node;
+        pendingGt = slot;
+        node = child[pendingGt];
+        gtLength = len;
+      }
+    }
+
+    child[pendingLt] = -1;
+    child[pendingGt] = -1;
+    return count;
+  }
+
+  /**
+   * Ends the walk early at {@code node}, which shares {@code len} bytes
+   * with {@code p}, keeping the tree strictly ordered: the walk skips
+   * prefixes on the strength of that order, so a misplaced node would
+   * yield false matches.
+   */
+  private int stop(int p, int node, int len, int maxLength, int pendingLt, int pendingGt, int count) {
+    int[] child = this.child;
+    int slot = 2 * (node & WINDOW_MASK);
+    if (len == Tokens.MAX_MATCH) {
+      // Equal as far as any match can tell, so p takes over the node's children.
+      child[pendingLt] = child[slot];
+      child[pendingGt] = child[slot + 1];
+    } else if (len == maxLength) {
+      // The data ends before the two differ, so the node's side
+      // is unknown, and the rest of the tree is dropped.
+      child[pendingLt] = -1;
+      child[pendingGt] = -1;
+    } else if ((window[node + len] & 0xff) < (window[p + len] & 0xff)) {
+      // The node's larger children may fall on either side of p.
+      child[pendingLt] = node;
+      child[slot + 1] = -1;
+      child[pendingGt] = -1;
+    } else {
+      child[pendingGt] = node;
+      child[slot] = -1;
+      child[pendingLt] = -1;
+    }
+    return count;
+  }
+
+  /**
+   * Moves every position down by {@code amount}, a multiple of the window
+   * size, dropping those that fall off the start of the buffer.
+   */
+  void slide(int amount) {
+    head.slide(amount);
+    slide(child, amount);
+  }
+
+  private static void slide(int[] positions, int amount) {
+    for (int i = 0; i < positions.length; i++) {
+      positions[i] = Math.max(positions[i] - amount, -1);
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package org.kompress;
+
+/**
+ * Packs DEFLATE's LSB-first bit stream into a byte array through
+ * a 64-bit accumulator, storing 32 bits at a time.
+ *
+ * <p>There are no capacity checks on the hot path: callers size
+ * the buffer for the largest block they write before draining it.
+ */
+final class BitWriter {
+
+  byte[] buf;
+  int pos;
+  private long bitBuf;
+  private int bitCount;
+
+  BitWriter(byte[] buf, int pos) {
+    this.buf = buf;
+    this.pos = pos;
+  }
+
+  /**
+   * Appends the low {@code n} bits of {@code value}; {@code n} may be up to
+   * 32, and the bits above {@code n} must be clear.
+   */
+  void writeBits(int value, int n) {
+    bitBuf |= (value & 0xffffffffL) << bitCount;
+    bitCount += n;
+    if (bitCount >= 32) {
+      int i = pos;
+      buf[i] = (byte) bitBuf;
+      buf[i + 1] = (byte) (bitBuf >>> 8);
+      buf[i + 2] = (byte) (bitBuf >>> 16);
+      buf[i + 3] = (byte) (bitBuf >>> 24);
+      pos = i + 4;
+      bitBuf >>>= 32;
+      bitCount -= 32;
+    }
+  }
+
+  /**
+   * Pads with zero bits to the next byte boundary and moves
+   * all pending bits into the buffer.
+   */
+  void alignToByte() {
+    while (bitCount > 0) {
+      buf[pos++] = (byte) bitBuf;
+      bitBuf >>>= 8;
+      bitCount -= 8;
+    }
+    bitBuf = 0;
+    bitCount = 0;
+  }
+
+  /**
+   * Copies bytes directly into the output; the writer must be byte aligned.
+   */
+  void writeBytes(byte[] b, int off, int len) {
+    assert bitCount == 0;
+    System.arraycopy(b, off, buf, pos, len);
+    pos += len;
+  }
+
+  /**
+   * Returns the number of bits written since the last byte boundary.
+   */
+  int bitOffset() {
+    return bitCount & 7;
+  }
+
+  /**
+   * Moves whole bytes out of the accumulator, leaving fewer than
+   * 8 pending bits, so that the buffer can be drained.
+   */
+  void flushBytes() {
+    while (bitCount >= 8) {
+      buf[pos++] = (byte) bitBuf;
+      bitBuf >>>= 8;
+      bitCount -= 8;
+    }
+  }
+
+  /**
+   * Discards written bytes, keeping any pending bits.
+   */
+  void reset(byte[] buf, int pos) {
+    this.buf = buf;
+    this.pos = pos;
+  }
+
+  /**
+   * Discards any pending bits.
+   */
+  void clear() {
+    bitBuf = 0;
+    bitCount = 0;
+  }
+}
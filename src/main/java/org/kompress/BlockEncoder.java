@@ -0,0 +1,464 @@
+package org.kompress;
+
+import java.util.Arrays;
+
+/**
+ * Buffers the tokens of one block along with their symbol frequencies,
+ * and writes them out as a stored, fixed or dynamic Huffman block,
+ * whichever is smallest by exact bit count.
+ *
+ * <p>It also tells the compressor where to end blocks short of a full
+ * buffer. For the greedy and lazy parsers, as in libdeflate, the symbols
+ * are sorted into a few coarse classes, and the block ends once the mix of
+ * the latest tokens strays far enough from that of the block so far to be
+ * worth new codes. For the optimal parser, which can afford it, split
+ * points are compared by the exact cost of the blocks on either side.
+ */
+final class BlockEncoder {
+
+  static final int TOKEN_BUFFER_SIZE = 1 << 14;
+  static final int MAX_STORED = 65535;
+
+  // Block types, as numbered by BTYPE.
+  static final int STORED = 0;
+  static final int FIXED = 1;
+  static final int DYNAMIC = 2;
+
+  // Blocks are only split after this many bytes, and the
+  // statistics compared at most every so many tokens.
+  private static final int MIN_BLOCK_LENGTH = 5000;
+  private static final int SPLIT_CHECK_INTERVAL = 512;
+  // The spacing of the split points tried by exact cost.
+  private static final int SPLIT_STEP = 512;
+
+  // Literals by their top two bits and bottom bit, then
+  // short and long matches.
+  private static final int NUM_LITERAL_CLASSES = 8;
+  private static final int NUM_CLASSES = NUM_LITERAL_CLASSES + 2;
+  // Matches of this length and longer, code 263 on, are long.
+  private static final int LONG_MATCH_CODE = 6;
+
+  private static final int MAX_CODE_LENGTH_BITS = 7;
+  private static final int NUM_CODE_LENGTH_CODES = 19;
+
+  // The order in which code length code lengths are sent.
+  private static final int[] CODE_LENGTH_ORDER = {
+    16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15};
+
+  private static final int[] CODE_LENGTH_EXTRA = {2, 3, 7};
+
+  final int[] tokens = new int[TOKEN_BUFFER_SIZE];
+  final int[] litLenFreq = new int[Tokens.NUM_LIT_LEN];
+  final int[] distFreq = new int[Tokens.NUM_DIST];
+  int tokenCount;
+
+  private final BitWriter out;
+  private final PackageMerge packageMerge = new PackageMerge(Tokens.NUM_LIT_LEN, Huffman.MAX_BITS);
+
+  private final int[] litLenLengths = new int[Tokens.NUM_LIT_LEN];
+  private final int[] litLenCodes = new int[Tokens.NUM_LIT_LEN];
+  private final int[] distLengths = new int[Tokens.NUM_DIST];
+  private final int[] distCodes = new int[Tokens.NUM_DIST];
+  private final int[] nextCode = new int[Huffman.MAX_BITS + 1];
+
+  // The run-length encoded code lengths of both trees: each entry
+  // holds a code length symbol, with its extra bits above bit 8.
+  private final int[] allLengths = new int[Tokens.NUM_LIT_LEN + Tokens.NUM_DIST];
+  private final int[] codeLengthSymbols = new int[Tokens.NUM_LIT_LEN + Tokens.NUM_DIST];
+  private final int[] codeLengthFreq = new int[NUM_CODE_LENGTH_CODES];
+  private final int[] codeLengthLengths = new int[NUM_CODE_LENGTH_CODES];
+  private final int[] codeLengthCodes = new int[NUM_CODE_LENGTH_CODES];
+  private int numCodeLengthSymbols;
+  private int hlit;
+  private int hdist;
+  private int hclen;
+
+  // The symbol classes of the block up to the last check,
+  // and of the tokens since.
+  private final int[] observed = new int[NUM_CLASSES];
+  private final int[] latest = new int[NUM_CLASSES];
+  private int checkedTokens;
+  private int checkedLength;
+
+  BlockEncoder(BitWriter out) {
+    this.out = out;
+  }
+
+  boolean isFull() {
+    return tokenCount == TOKEN_BUFFER_SIZE;
+  }
+
+  /**
+   * Returns the number of tokens after which the block, {@code length}
+   * bytes so far, should end because the latest tokens differ from the
+   * earlier ones, or 0 to carry on. This is libdeflate's
+   * {@code do_end_block_check}: each class's share of the latest tokens
+   * is compared with its share of the earlier ones, and the differences
+   * summed against a cutoff that falls as the block grows. Unlike
+   * libdeflate, the block ends before the latest tokens, which already
+   * belong to the next, unless that would leave it too short. Either way,
+   * no block ends within {@link #MIN_BLOCK_LENGTH} bytes of its start.
+   */
+  int splitPoint(int length) {
+    // Kept apart from the check, so that this inlines into the parsers.
+    if (tokenCount - checkedTokens < SPLIT_CHECK_INTERVAL || length < MIN_BLOCK_LENGTH) {
+      return 0;
+    }
+    return checkSplit(length);
+  }
+
+  private int checkSplit(int length) {
+    int[] latest = this.latest;
+    Arrays.fill(latest, 0);
+    for (int i = 0; i < 256; i++) {
+      latest[(i >>> 5 & 6) | (i & 1)] += litLenFreq[i];
+    }
+    for (int i = 0; i < Tokens.LENGTH_EXTRA.length; i++) {
+      latest[NUM_LITERAL_CLASSES + (i < LONG_MATCH_CODE ? 0 : 1)] += litLenFreq[257 + i];
+    }
+    for (int i = 0; i < NUM_CLASSES; i++) {
+      latest[i] -= observed[i];
+    }
+    int numLatest = tokenCount - checkedTokens;
+
+    int numObserved = checkedTokens;
+    if (numObserved > 0) {
+      long delta = 0;
+      for (int i = 0; i < NUM_CLASSES; i++) {
+        delta += Math.abs((long) latest[i] * numObserved - (long) observed[i] * numLatest);
+      }
+      long cutoff = (long) numLatest * 200 / 512 * numObserved;
+      if (length < 10000 && tokenCount < 8192) {
+        // Young blocks need stronger evidence.
+        cutoff += cutoff * (8192 - tokenCount) / 8192;
+      }
+      if (delta + (long) (length / 4096) * numObserved >= cutoff) {
+        return checkedLength >= MIN_BLOCK_LENGTH ? numObserved : tokenCount;
+      }
+    }
+
+    for (int i = 0; i < NUM_CLASSES; i++) {
+      observed[i] += latest[i];
+    }
+    checkedTokens = tokenCount;
+    checkedLength = length;
+    return 0;
+  }
+
+  void literal(byte b) {
+    tokens[tokenCount++] = Tokens.literal(b);
+    litLenFreq[b & 0xff]++;
+  }
+
+  void match(int length, int distance) {
+    tokens[tokenCount++] = Tokens.match(length, distance);
+    litLenFreq[257 + Tokens.lengthCode(length)]++;
+    distFreq[Tokens.distCode(distance)]++;
+  }
+
+  /**
+   * Writes the buffered tokens, which encode {@code window[start, start + len)},
+   * as a single block, or as stored blocks if that is smaller. Only block
+   * types up to {@code maxType} are considered, which saves building
+   * dynamic codes when speed matters more than size.
+   */
+  void writeBlock(byte[] window, int start, int len, boolean last, int maxType) {
+    if (maxType == STORED) {
+      writeStored(window, start, len, last);
+      reset();
+      return;
+    }
+
+    long stored = storedCost(len);
+    long fixed = fixedCost();
+    long dynamic = maxType == DYNAMIC ? buildDynamic() : Long.MAX_VALUE;
+
+    if (stored <= fixed && stored <= dynamic) {
+      writeStored(window, start, len, last);
+    } else if (fixed <= dynamic) {
+      out.writeBits(last ? 1 : 0, 1);
+      out.writeBits(1, 2);
+      writeTokens(Huffman.FIXED_LIT_LEN_CODES, Huffman.FIXED_LIT_LEN_LENGTHS,
+        Huffman.FIXED_DIST_CODES, Huffman.FIXED_DIST_LENGTHS);
+    } else {
+      out.writeBits(last ? 1 : 0, 1);
+      out.writeBits(2, 2);
+      Huffman.canonicalCodes(litLenLengths, Tokens.NUM_LIT_LEN, litLenCodes, nextCode);
+      Huffman.canonicalCodes(distLengths, Tokens.NUM_DIST, distCodes, nextCode);
+      Huffman.canonicalCodes(codeLengthLengths, NUM_CODE_LENGTH_CODES, codeLengthCodes, nextCode);
+      writeDynamicHeader();
+      writeTokens(litLenCodes, litLenLengths, distCodes, distLengths);
+    }
+    reset();
+  }
+
+  /**
+   * Returns where to end the block, by exact cost: the token index, a
+   * multiple of {@link #SPLIT_STEP} past {@code from}, at which two blocks
+   * save the most bits over one, or 0 if one block is cheapest.
+   */
+  int bestSplit(int from, int maxType) {
+    int total = 0;
+    for (int i = 0; i < tokenCount; i++) {
+      total += tokenLength(tokens[i]);
+    }
+    long best = cost(0, tokenCount, total, maxType);
+    int split = 0;
+
+    int s = from > 0 ? from : SPLIT_STEP;
+    int head = 0;
+    for (int i = 0; i < s && i < tokenCount; i++) {
+      head += tokenLength(tokens[i]);
+    }
+    for (; s < tokenCount; s += SPLIT_STEP) {
+      long cost = cost(0, s, head, maxType) + cost(s, tokenCount, total - head, maxType);
+      if (cost < best) {
+        best = cost;
+        split = s;
+      }
+      for (int i = s; i < s + SPLIT_STEP && i < tokenCount; i++) {
+        head += tokenLength(tokens[i]);
+      }
+    }
+    countSymbols(0, tokenCount);
+    return split;
+  }
+
+  /**
+   * Writes the first {@code count} tokens, which encode the bytes from
+   * {@code window[start]} on, as a block that isn't the last, keeping the
+   * rest buffered for the next. Returns the number of bytes written.
+   */
+  int writeFirst(byte[] window, int start, int maxType, int count) {
+    int len = 0;
+    for (int i = 0; i < count; i++) {
+      len += tokenLength(tokens[i]);
+    }
+    int rest = tokenCount - count;
+    tokenCount = count;
+    countSymbols(0, count);
+    writeBlock(window, start, len, false, maxType);
+    System.arraycopy(tokens, count, tokens, 0, rest);
+    tokenCount = rest;
+    countSymbols(0, rest);
+    return len;
+  }
+
+  /**
+   * Returns the exact size in bits of {@code tokens[from, to)}, which
+   * encode {@code len} bytes, as the smallest block of a type up to
+   * {@code maxType}. This leaves the frequencies those of the range.
+   */
+  private long cost(int from, int to, int len, int maxType) {
+    countSymbols(from, to);
+    long cost = storedCost(len);
+    if (maxType >= FIXED) {
+      cost = Math.min(cost, fixedCost());
+    }
+    if (maxType == DYNAMIC) {
+      cost = Math.min(cost, buildDynamic());
+    }
+    return cost;
+  }
+
+  private static int tokenLength(int token) {
+    return Tokens.isLiteral(token) ? 1 : Tokens.length(token);
+  }
+
+  private void countSymbols(int from, int to) {
+    Arrays.fill(litLenFreq, 0);
+    Arrays.fill(distFreq, 0);
+    for (int i = from; i < to; i++) {
+      int token = tokens[i];
+      if (Tokens.isLiteral(token)) {
+        litLenFreq[token]++;
+      } else {
+        litLenFreq[257 + Tokens.lengthCode(Tokens.length(token))]++;
+        distFreq[Tokens.distCode(Tokens.distance(token))]++;
+      }
+    }
+  }
+
+  void reset() {
+    tokenCount = 0;
+    Arrays.fill(litLenFreq, 0);
+    Arrays.fill(distFreq, 0);
+    Arrays.fill(observed, 0);
+    checkedTokens = 0;
+    checkedLength = 0;
+  }
+
+  /**
+   * Returns the exact size in bits of storing {@code len} bytes,
+   * starting at the writer's current bit position.
+   */
+  private long storedCost(int len) {
+    int blocks = Math.max(1, (len + MAX_STORED - 1) / MAX_STORED);
+    int firstPad = (8 - ((out.bitOffset() + 3) & 7)) & 7;
+    return 3 + firstPad + (blocks - 1) * 8L + blocks * 32L + len * 8L;
+  }
+
+  private long fixedCost() {
+    return 3 + dataCost(Huffman.FIXED_LIT_LEN_LENGTHS, Huffman.FIXED_DIST_LENGTHS);
+  }
+
+  /**
+   * Returns the size in bits of the tokens and end of block code.
+   */
+  private long dataCost(int[] litLenLengths, int[] distLengths) {
+    long bits = litLenLengths[Tokens.END_OF_BLOCK];
+    for (int i = 0; i < Tokens.NUM_LIT_LEN; i++) {
+      bits += (long) litLenFreq[i] * litLenLengths[i];
+    }
+    for (int i = 0; i < Tokens.LENGTH_EXTRA.length; i++) {
+      bits += (long) litLenFreq[257 + i] * Tokens.LENGTH_EXTRA[i];
+    }
+    for (int i = 0; i < Tokens.NUM_DIST; i++) {
+      bits += (long) distFreq[i] * (distLengths[i] + Tokens.DIST_EXTRA[i]);
+    }
+    return bits;
+  }
+
+  /**
+   * Builds the dynamic code lengths and their run-length encoded header
+   * for the buffered tokens, and returns the size in bits of the resulting
+   * block. The codes themselves wait until the block is written.
+   */
+  private long buildDynamic() {
+    litLenFreq[Tokens.END_OF_BLOCK] = 1;
+    packageMerge.build(litLenFreq, Tokens.NUM_LIT_LEN, Huffman.MAX_BITS, litLenLengths);
+    packageMerge.build(distFreq, Tokens.NUM_DIST, Huffman.MAX_BITS, distLengths);
+    litLenFreq[Tokens.END_OF_BLOCK] = 0;
+
+    hlit = Tokens.NUM_LIT_LEN;
+    while (hlit > 257 && litLenLengths[hlit - 1] == 0) {
+      hlit--;
+    }
+    hdist = Tokens.NUM_DIST;
+    while (hdist > 1 && distLengths[hdist - 1] == 0) {
+      hdist--;
+    }
+    System.arraycopy(litLenLengths, 0, allLengths, 0, hlit);
+    System.arraycopy(distLengths, 0, allLengths, hlit, hdist);
+    runLengthEncode(hlit + hdist);
+
+    packageMerge.build(codeLengthFreq, NUM_CODE_LENGTH_CODES, MAX_CODE_LENGTH_BITS, codeLengthLengths);
+
+    hclen = NUM_CODE_LENGTH_CODES;
+    while (hclen > 4 && codeLengthLengths[CODE_LENGTH_ORDER[hclen - 1]] == 0) {
+      hclen--;
+    }
+
+    long bits = 3 + 5 + 5 + 4 + 3 * hclen;
+    for (int i = 0; i < NUM_CODE_LENGTH_CODES; i++) {
+      bits += (long) codeLengthFreq[i] * codeLengthLengths[i];
+    }
+    for (int i = 0; i < CODE_LENGTH_EXTRA.length; i++) {
+      bits += (long) codeLengthFreq[16 + i] * CODE_LENGTH_EXTRA[i];
+    }
+    return bits + dataCost(litLenLengths, distLengths);
+  }
+
+  /**
+   * Encodes the combined code lengths with the repeat symbols 16, 17
+   * and 18; the reverse of what {@code DeflateInputStream.initDynamic}
+   * parses. Runs may cross from the literal/length into the distance
+   * lengths, as RFC 1951 allows.
+   */
+  private void runLengthEncode(int n) {
+    Arrays.fill(codeLengthFreq, 0);
+    numCodeLengthSymbols = 0;
+
+    for (int i = 0; i < n; ) {
+      int len = allLengths[i];
+      int run = 1;
+      while (i + run < n && allLengths[i + run] == len) {
+        run++;
+      }
+      i += run;
+
+      if (len == 0) {
+        while (run >= 11) {
+          int r = Math.min(run, 138);
+          emitCodeLength(18, r - 11);
+          run -= r;
+        }
+        if (run >= 3) {
+          emitCodeLength(17, run - 3);
+          run = 0;
+        }
+      } else {
+        emitCodeLength(len, 0);
+        run--;
+        while (run >= 3) {
+          int r = Math.min(run, 6);
+          emitCodeLength(16, r - 3);
+          run -= r;
+        }
+      }
+      while (run-- > 0) {
+        emitCodeLength(len, 0);
+      }
+    }
+  }
+
+  private void emitCodeLength(int symbol, int extra) {
+    codeLengthSymbols[numCodeLengthSymbols++] = extra << 8 | symbol;
+    codeLengthFreq[symbol]++;
+  }
+
+  private void writeDynamicHeader() {
+    out.writeBits(hlit - 257, 5);
+    out.writeBits(hdist - 1, 5);
+    out.writeBits(hclen - 4, 4);
+    for (int i = 0; i < hclen; i++) {
+      out.writeBits(codeLengthLengths[CODE_LENGTH_ORDER[i]], 3);
+    }
+    for (int i = 0; i < numCodeLengthSymbols; i++) {
+      int symbol = codeLengthSymbols[i] & 0xff;
+      out.writeBits(codeLengthCodes[symbol], codeLengthLengths[symbol]);
+      if (symbol >= 16) {
+        out.writeBits(codeLengthSymbols[i] >>> 8, CODE_LENGTH_EXTRA[symbol - 16]);
+      }
+    }
+  }
+
+  private void writeStored(byte[] window, int off, int len, boolean last) {
+    do {
+      int n = Math.min(len, MAX_STORED);
+      len -= n;
+      out.writeBits(last && len == 0 ? 1 : 0, 1);
+      out.writeBits(0, 2);
+      out.alignToByte();
+      out.writeBits(n | (~n & 0xffff) << 16, 32);
+      out.writeBytes(window, off, n);
+      off += n;
+    } while (len > 0);
+  }
+
+  private void writeTokens(int[] litLenCodes, int[] litLenLengths, int[] distCodes, int[] distLengths) {
+    BitWriter out = this.out;
+    for (int i = 0; i < tokenCount; i++) {
+      int token = tokens[i];
+      if (Tokens.isLiteral(token)) {
+        out.writeBits(litLenCodes[token], litLenLengths[token]);
+        continue;
+      }
+
+      int length = Tokens.length(token);
+      int lc = Tokens.lengthCode(length);
+      out.writeBits(litLenCodes[257 + lc], litLenLengths[257 + lc]);
+      if (Tokens.LENGTH_EXTRA[lc] > 0) {
+        out.writeBits(length - Tokens.LENGTH_BASE[lc], Tokens.LENGTH_EXTRA[lc]);
+      }
+
+      int distance = Tokens.distance(token);
+      int dc = Tokens.distCode(distance);
+      out.writeBits(distCodes[dc], distLengths[dc]);
+      if (Tokens.DIST_EXTRA[dc] > 0) {
+        out.writeBits(distance - Tokens.DIST_BASE[dc], Tokens.DIST_EXTRA[dc]);
+      }
+    }
+    out.writeBits(litLenCodes[Tokens.END_OF_BLOCK], litLenLengths[Tokens.END_OF_BLOCK]);
+  }
+}
@@ -0,0 +1,641 @@
+package org.kompress;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.ZipException;
+
+/**
+ * Inflates whole DEFLATE blocks starting at any bit of a byte array, for
+ * decoders that begin in the middle of a stream.
+ *
+ * <p>Output goes to a char array that begins with the {@value #WINDOW_SIZE}
+ * byte window the data may refer back to. Where the window is known it
+ * holds its bytes. Where it isn't, each position holds a marker,
+ * {@link #MARKER} plus its index into the window, which back-references
+ * copy like any other byte, to be resolved once the window is known.
+ *
+ * <p>Decoding is as strict as zlib's, so that data that only looks like
+ * the start of a block, as found by {@link #findBlock}, is soon rejected.
+ * Running out of input is not an error: the block is undone, so that it
+ * can be decoded again with more.
+ */
+final class BlockInflater {
+
+  static final int WINDOW_SIZE = 1 << 15;
+  static final char MARKER = 0x8000;
+  // The size of the output buffer until a block needs more.
+  static final int INITIAL_OUTPUT = 4 * WINDOW_SIZE;
+
+  private static final int MAX_BITS = 15;
+
+  // A table entry holds a code's length in bits 0-3, the number of
+  // extra bits that follow it in bits 4-7, its kind in bits 8-9, and
+  // its literal, base length or base distance in the high 16 bits.
+  // A length of 0 marks a bit pattern that is no code at all.
+  private static final int LITERAL = 0;
+  private static final int LENGTH = 1 << 8;
+  private static final int END = 2 << 8;
+  private static final int INVALID = 3 << 8;
+  private static final int KIND_MASK = 3 << 8;
+
+  private static final int[] LIT_ENTRIES = new int[288];
+  private static final int[] DIST_ENTRIES = new int[32];
+  private static final int[] PRECODE_ENTRIES = new int[19];
+
+  private static final int[] PRECODE_ORDER = {16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15};
+
+  private static final int[] FIXED_LIT = new int[1 << 9];
+  private static final int[] FIXED_DIST = new int[1 << 5];
+
+  // Whether 13 bits could start a dynamic block header: one of either
+  // BFINAL, then BTYPE 2, and at most 286 literal/length and 30
+  // distance codes.
+  private static final boolean[] DYNAMIC_HEADER = new boolean[1 << 13];
+  // The Kraft sum, in 128ths, of four 3-bit precode lengths.
+  private static final int[] PRECODE_KRAFT = new int[1 << 12];
+
+  static {
+    for (int i = 0; i < 256; i++) {
+      LIT_ENTRIES[i] = i << 16 | LITERAL;
+    }
+    LIT_ENTRIES[Tokens.END_OF_BLOCK] = END;
+    for (int i = 0; i < Tokens.LENGTH_BASE.length; i++) {
+      LIT_ENTRIES[257 + i] = Tokens.LENGTH_BASE[i] << 16 | LENGTH | Tokens.LENGTH_EXTRA[i] << 4;
+    }
+    LIT_ENTRIES[286] = INVALID;
+    LIT_ENTRIES[287] = INVALID;
+    for (int i = 0; i < Tokens.DIST_BASE.length; i++) {
+      DIST_ENTRIES[i] = Tokens.DIST_BASE[i] << 16 | Tokens.DIST_EXTRA[i] << 4;
+    }
+    DIST_ENTRIES[30] = INVALID;
+    DIST_ENTRIES[31] = INVALID;
+    for (int i = 0; i < PRECODE_ENTRIES.length; i++) {
+      PRECODE_ENTRIES[i] = i << 16;
+    }
+    for (int i = 0; i < DYNAMIC_HEADER.length; i++) {
+      DYNAMIC_HEADER[i] = (i & 6) == 4 && (i >>> 3 & 31) <= 29 && (i >>> 8 & 31) <= 29;
+    }
+    for (int i = 0; i < PRECODE_KRAFT.length; i++) {
+      for (int j = 0; j < 12; j += 3) {
+        int length = i >>> j & 7;
+        if (length != 0) {
+          PRECODE_KRAFT[i] += 128 >>> length;
+        }
+      }
+    }
+
+    int[] lengths = new int[288];
+    Arrays.fill(lengths, 0, 144, 8);
+    Arrays.fill(lengths, 144, 256, 9);
+    Arrays.fill(lengths, 256, 280, 7);
+    Arrays.fill(lengths, 280, 288, 8);
+    buildTable(lengths, 0, 288, LIT_ENTRIES, FIXED_LIT, new int[MAX_BITS + 2]);
+    Arrays.fill(lengths, 0, 32, 5);
+    buildTable(lengths, 0, 32, DIST_ENTRIES, FIXED_DIST, new int[MAX_BITS + 2]);
+  }
+
+  private final int[] litTable = new int[1 << MAX_BITS];
+  private final int[] distTable = new int[1 << MAX_BITS];
+  private final int[] precodeTable = new int[1 << 7];
+  private int litMask;
+  private int distMask;
+  private final int[] lengths = new int[286 + 30];
+  private final int[] scratch = new int[MAX_BITS + 2];
+
+  private byte[] in;
+  private ByteBuffer longs;
+  // Bytes past the limit read as zeros, and set overrun.
+  private int limit;
+  private int fastLimit;
+  private int inPos;
+  private long bitBuffer;
+  private int bitCount;
+  private boolean overrun;
+
+  private char[] out = new char[INITIAL_OUTPUT];
+  private int outPos;
+  // No back-reference reaches before this.
+  private int historyStart;
+
+  private boolean finalBlock;
+
+  /**
+   * Reads input from {@code in[0, limit)}.
+   */
+  void setInput(byte[] in, int limit) {
+    if (in != this.in) {
+      this.in = in;
+      this.longs = ByteBuffer.wrap(in).order(ByteOrder.LITTLE_ENDIAN);
+    }
+    this.limit = limit;
+    this.fastLimit = Math.min(limit, in.length) - 8;
+  }
+
+  /**
+   * Drops an output buffer grown past its first size, along with the
+   * output in it.
+   */
+  void trimOutput() {
+    if (out.length > INITIAL_OUTPUT) {
+      out = new char[INITIAL_OUTPUT];
+      outPos = 0;
+    }
+  }
+
+  /**
+   * Moves to bit {@code position} of the input.
+   */
+  void seek(long position) {
+    inPos = (int) (position >>> 3);
+    bitBuffer = 0;
+    bitCount = 0;
+    overrun = false;
+    refill();
+    drop((int) position & 7);
+  }
+
+  long position() {
+    return (long) inPos * 8 - bitCount;
+  }
+
+  /**
+   * Starts the output afresh, after a window of markers.
+   */
+  void unknownWindow() {
+    char[] out = this.out;
+    for (int i = 0; i < WINDOW_SIZE; i++) {
+      out[i] = (char) (MARKER + i);
+    }
+    outPos = WINDOW_SIZE;
+    historyStart = 0;
+  }
+
+  /**
+   * Starts the output afresh, after the last {@value #WINDOW_SIZE} bytes,
+   * at most, of {@code b[off, off + len)}.
+   */
+  void window(byte[] b, int off, int len) {
+    int n = Math.min(len, WINDOW_SIZE);
+    char[] out = this.out;
+    for (int i = 0, from = off + len - n, to = WINDOW_SIZE - n; i < n; i++) {
+      out[to + i] = (char) (b[from + i] & 0xff);
+    }
+    outPos = WINDOW_SIZE;
+    historyStart = WINDOW_SIZE - n;
+  }
+
+  /**
+   * Returns the output, which runs from {@link #WINDOW_SIZE} to
+   * {@link #outputEnd()}.
+   */
+  char[] output() {
+    return out;
+  }
+
+  int outputEnd() {
+    return outPos;
+  }
+
+  /**
+   * Returns whether the last block inflated was the final one.
+   */
+  boolean finalBlock() {
+    return finalBlock;
+  }
+
+  /**
+   * Inflates the block at the current position. Returns false, having
+   * undone the block, if the input ran out first.
+   *
+   * @throws ZipException if the data is not a valid block.
+   */
+  boolean inflateBlock() throws ZipException {
+    long start = position();
+    int outStart = outPos;
+    boolean last = bits(1) == 1;
+    boolean complete;
+    switch (bits(2)) {
+      case 0:
+        complete = inflateStored();
+        break;
+      case 1:
+        complete = inflateCodes(FIXED_LIT, FIXED_LIT.length - 1, FIXED_DIST, FIXED_DIST.length - 1);
+        break;
+      case 2:
+        if (!readDynamicHeader()) {
+          complete = fail("Invalid dynamic block header");
+        } else {
+          complete = inflateCodes(litTable, litMask, distTable, distMask);
+        }
+        break;
+      default:
+        complete = fail("Invalid block type");
+    }
+    if (!complete) {
+      outPos = outStart;
+      seek(start);
+      return false;
+    }
+    finalBlock = last;
+    return true;
+  }
+
+  /**
+   * Returns the first position in {@code [from, to)} at which a stored
+   * block or a dynamic Huffman block passes for the start of one, or -1.
+   * Fixed Huffman blocks have too little header to be told from noise.
+   *
+   * <p>A stored block is found at the earliest position of the run of
+   * zero bits that ends where its data starts, which any header for it
+   * must lie within.
+   */
+  long findBlock(long from, long to) {
+    long stored = findStored(from, to);
+    long dynamic = findDynamic(from, stored >= 0 ? stored : to);
+    return dynamic >= 0 ? dynamic : stored;
+  }
+
+  /**
+   * Returns the bit at which the data of the stored block whose header
+   * is at {@code position} starts, or -1 if there isn't one there.
+   */
+  long storedData(long position) {
+    if ((peek(position) & 7) != 0) {
+      return -1;
+    }
+    return (position + 3 + 7) & ~7L;
+  }
+
+  private long findStored(long from, long to) {
+    byte[] in = this.in;
+    for (long b = (from + 3 + 7) >>> 3; b * 8 - 3 < to && b + 4 <= limit; b++) {
+      int i = (int) b;
+      if (((in[i] ^ in[i + 2]) & 0xff) != 0xff || ((in[i + 1] ^ in[i + 3]) & 0xff) != 0xff) {
+        continue;
+      }
+      int zeros = Integer.numberOfLeadingZeros(in[i - 1] & 0xff) - 24;
+      if (zeros == 8 && i >= 2) {
+        zeros += Integer.numberOfLeadingZeros(in[i - 2] & 0xff) - 24;
+      }
+      long start = Math.max(b * 8 - Math.min(zeros, 10), from);
+      if (b * 8 - start >= 3 && start < to) {
+        return start;
+      }
+    }
+    return -1;
+  }
+
+  private long findDynamic(long from, long to) {
+    boolean[] headers = DYNAMIC_HEADER;
+    int[] kraft = PRECODE_KRAFT;
+    long end = Math.min(to, (long) limit * 8 - 74);
+    for (long p = from; p < end; p += 8) {
+      // 13 bits at each of the next 8 positions.
+      long word = peek(p);
+      for (int s = 0, n = (int) Math.min(8, end - p); s < n; s++) {
+        if (!headers[(int) (word >>> s) & 0x1fff]) {
+          continue;
+        }
+        long start = p + s;
+        // The precode must be complete.
+        int count = (int) (word >>> s + 13 & 15) + 4;
+        long precode = peek(start + 17) & (1L << 3 * count) - 1;
+        int sum = kraft[(int) precode & 0xfff] + kraft[(int) (precode >>> 12) & 0xfff]
+          + kraft[(int) (precode >>> 24) & 0xfff] + kraft[(int) (precode >>> 36) & 0xfff]
+          + kraft[(int) (precode >>> 48) & 0xfff];
+        if (sum != 128) {
+          continue;
+        }
+        seek(start + 3);
+        if (readDynamicHeader() && !beyondLimit()) {
+          return start;
+        }
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the 57 bits or more of input from {@code position}.
+   */
+  private long peek(long position) {
+    int b = (int) (position >>> 3);
+    long word;
+    if (b + 8 <= limit) {
+      word = longs.getLong(b);
+    } else {
+      word = 0;
+      for (int i = 0; b + i < limit && i < 8; i++) {
+        word |= (long) (in[b + i] & 0xff) << 8 * i;
+      }
+    }
+    return word >>> (position & 7);
+  }
+
+  private boolean inflateStored() throws ZipException {
+    drop(bitCount & 7);
+    int p = (int) (position() >>> 3);
+    if (p + 4 > limit) {
+      return false;
+    }
+    int length = Gzip.getUnsignedShort(in, p);
+    if ((length ^ Gzip.getUnsignedShort(in, p + 2)) != 0xffff) {
+      throw new ZipException("Invalid stored block lengths");
+    }
+    p += 4;
+    if (p + length > limit) {
+      return false;
+    }
+    ensureCapacity(length);
+    byte[] in = this.in;
+    char[] out = this.out;
+    for (int i = 0; i < length; i++) {
+      out[outPos + i] = (char) (in[p + i] & 0xff);
+    }
+    outPos += length;
+    seek((long) (p + length) * 8);
+    return true;
+  }
+
+  /**
+   * Reads the code lengths of a dynamic block and builds its tables,
+   * returning false if they are invalid.
+   */
+  private boolean readDynamicHeader() {
+    int litCount = bits(5) + 257;
+    int distCount = bits(5) + 1;
+    int precodeCount = bits(4) + 4;
+    if (litCount > 286 || distCount > 30) {
+      return false;
+    }
+    int[] lengths = this.lengths;
+    Arrays.fill(lengths, 0, 19, 0);
+    for (int i = 0; i < precodeCount; i++) {
+      lengths[PRECODE_ORDER[i]] = bits(3);
+    }
+    int precodeBits = buildTable(lengths, 0, 19, PRECODE_ENTRIES, precodeTable, scratch);
+    // Unlike the others, the precode must be complete.
+    if (precodeBits < 0 || !complete(lengths, 0, 19)) {
+      return false;
+    }
+    int precodeMask = (1 << precodeBits) - 1;
+
+    int total = litCount + distCount;
+    for (int i = 0; i < total; ) {
+      if (bitCount < 16) {
+        refill();
+      }
+      int entry = precodeTable[(int) bitBuffer & precodeMask];
+      drop(entry & 15);
+      int symbol = entry >>> 16;
+      if (symbol < 16) {
+        lengths[i++] = symbol;
+        continue;
+      }
+      int value = 0;
+      int repeat;
+      if (symbol == 16) {
+        if (i == 0) {
+          return false;
+        }
+        value = lengths[i - 1];
+        repeat = 3 + bits(2);
+      } else if (symbol == 17) {
+        repeat = 3 + bits(3);
+      } else {
+        repeat = 11 + bits(7);
+      }
+      if (i + repeat > total) {
+        return false;
+      }
+      Arrays.fill(lengths, i, i + repeat, value);
+      i += repeat;
+    }
+    if (lengths[Tokens.END_OF_BLOCK] == 0) {
+      return false;
+    }
+
+    int litBits = buildTable(lengths, 0, litCount, LIT_ENTRIES, litTable, scratch);
+    int distBits = buildTable(lengths, litCount, distCount, DIST_ENTRIES, distTable, scratch);
+    if (litBits < 0 || distBits < 0) {
+      return false;
+    }
+    litMask = (1 << litBits) - 1;
+    distMask = (1 << distBits) - 1;
+    return true;
+  }
+
+  private static boolean complete(int[] lengths, int off, int n) {
+    int kraft = 0;
+    for (int i = off; i < off + n; i++) {
+      if (lengths[i] != 0) {
+        kraft += 1 << MAX_BITS - lengths[i];
+      }
+    }
+    return kraft == 1 << MAX_BITS;
+  }
+
+  /**
+   * Fills {@code table}, indexed by the next input bits, with the entries
+   * of the code with the given lengths, and returns the number of bits it
+   * is indexed by. Returns -1 if the code is over-subscribed, or is
+   * incomplete without being a single one-bit code, both of which zlib
+   * rejects. A code with no symbols at all gets a table of no codes.
+   */
+  private static int buildTable(int[] lengths, int off, int n, int[] entries, int[] table, int[] next) {
+    Arrays.fill(next, 0);
+    int max = 0;
+    for (int i = 0; i < n; i++) {
+      int length = lengths[off + i];
+      next[length]++;
+      max = Math.max(max, length);
+    }
+    if (max == 0) {
+      table[0] = 0;
+      table[1] = 0;
+      return 1;
+    }
+    int left = 1;
+    for (int length = 1; length <= MAX_BITS; length++) {
+      left = (left << 1) - next[length];
+      if (left < 0) {
+        return -1;
+      }
+    }
+    if (left > 0 && max != 1) {
+      return -1;
+    }
+
+    // The first code of each length.
+    int code = 0;
+    next[0] = 0;
+    for (int length = 1; length <= MAX_BITS; length++) {
+      int count = next[length];
+      next[length] = code;
+      code = (code + count) << 1;
+    }
+    int size = 1 << max;
+    if (left > 0) {
+      Arrays.fill(table, 0, size, 0);
+    }
+    for (int i = 0; i < n; i++) {
+      int length = lengths[off + i];
+      if (length == 0) {
+        continue;
+      }
+      int reversed = Integer.reverse(next[length]++) >>> (32 - length);
+      int entry = entries[i] | length;
+      for (int j = reversed; j < size; j += 1 << length) {
+        table[j] = entry;
+      }
+    }
+    return max;
+  }
+
+  /**
+   * Decodes the codes of a block up to its end-of-block code. Returns
+   * false if the input ran out first.
+   */
+  private boolean inflateCodes(int[] litTable, int litMask, int[] distTable, int distMask) throws ZipException {
+    ByteBuffer longs = this.longs;
+    int fastLimit = this.fastLimit;
+    int historyStart = this.historyStart;
+    long bitBuffer = this.bitBuffer;
+    int bitCount = this.bitCount;
+    int inPos = this.inPos;
+    char[] out = this.out;
+    int outPos = this.outPos;
+    int outLimit = out.length - Tokens.MAX_MATCH;
+
+    while (true) {
+      // Enough for a length and a distance, and their extra bits.
+      if (bitCount < 48) {
+        if (inPos <= fastLimit) {
+          bitBuffer |= longs.getLong(inPos) << bitCount;
+          inPos += (63 - bitCount) >>> 3;
+          bitCount |= 56;
+        } else {
+          this.bitBuffer = bitBuffer;
+          this.bitCount = bitCount;
+          this.inPos = inPos;
+          refill();
+          if (beyondLimit()) {
+            return false;
+          }
+          bitBuffer = this.bitBuffer;
+          bitCount = this.bitCount;
+          inPos = this.inPos;
+        }
+      }
+      if (outPos > outLimit) {
+        this.outPos = outPos;
+        ensureCapacity(Tokens.MAX_MATCH);
+        out = this.out;
+        outLimit = out.length - Tokens.MAX_MATCH;
+      }
+
+      int entry = litTable[(int) bitBuffer & litMask];
+      int length = entry & 15;
+      bitBuffer >>>= length;
+      bitCount -= length;
+      int kind = entry & KIND_MASK;
+      if (kind == LITERAL && length != 0) {
+        out[outPos++] = (char) (entry >>> 16);
+        continue;
+      }
+      if (kind == LENGTH) {
+        int extra = entry >>> 4 & 15;
+        int matchLength = (entry >>> 16) + ((int) bitBuffer & (1 << extra) - 1);
+        bitBuffer >>>= extra;
+        bitCount -= extra;
+
+        entry = distTable[(int) bitBuffer & distMask];
+        length = entry & 15;
+        bitBuffer >>>= length;
+        bitCount -= length;
+        extra = entry >>> 4 & 15;
+        int distance = (entry >>> 16) + ((int) bitBuffer & (1 << extra) - 1);
+        bitBuffer >>>= extra;
+        bitCount -= extra;
+        int from = outPos - distance;
+        if (length == 0 || (entry & KIND_MASK) != 0 || from < historyStart) {
+          this.bitCount = bitCount;
+          this.inPos = inPos;
+          return fail(length == 0 || (entry & KIND_MASK) != 0
+            ? "Invalid distance code" : "Invalid distance too far back");
+        }
+        for (int i = 0; i < matchLength; i++) {
+          out[outPos + i] = out[from + i];
+        }
+        outPos += matchLength;
+        continue;
+      }
+
+      this.bitBuffer = bitBuffer;
+      this.bitCount = bitCount;
+      this.inPos = inPos;
+      this.outPos = outPos;
+      if (kind == END && length != 0) {
+        return !beyondLimit();
+      }
+      return fail("Invalid literal/length code");
+    }
+  }
+
+  /**
+   * Returns false if the input has run out, which may be why the data
+   * looks invalid, and otherwise throws.
+   */
+  private boolean fail(String message) throws ZipException {
+    if (beyondLimit()) {
+      return false;
+    }
+    throw new ZipException(message);
+  }
+
+  private boolean beyondLimit() {
+    return overrun && position() > (long) limit * 8;
+  }
+
+  private void ensureCapacity(int n) {
+    if (outPos + n > out.length) {
+      out = Arrays.copyOf(out, Math.max(2 * out.length, outPos + n));
+    }
+  }
+
+  private int bits(int n) {
+    if (bitCount < n) {
+      refill();
+    }
+    int value = (int) bitBuffer & (1 << n) - 1;
+    drop(n);
+    return value;
+  }
+
+  private void drop(int n) {
+    bitBuffer >>>= n;
+    bitCount -= n;
+  }
+
+  /**
+   * Tops up the bit buffer to at least 56 bits.
+   */
+  private void refill() {
+    if (inPos <= fastLimit) {
+      bitBuffer |= longs.getLong(inPos) << bitCount;
+      inPos += (63 - bitCount) >>> 3;
+      bitCount |= 56;
+      return;
+    }
+    while (bitCount <= 56) {
+      if (inPos < limit) {
+        bitBuffer |= (long) (in[inPos] & 0xff) << bitCount;
+      } else {
+        overrun = true;
+      }
+      inPos++;
+      bitCount += 8;
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package org.kompress;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Hands out a channel's contents as a run of buffers, each starting with
+ * what was left unread of the one before.
+ *
+ * <p>A file is read from a position on, mapped in windows, of
+ * {@link #MAP_SIZE} bytes by default since a mapping is at most 2 GiB,
+ * or where it can't be mapped, with positional reads, which leave the
+ * channel's own position alone. Any other channel is read from where it
+ * is, and may be non-blocking.
+ */
+final class ChannelInput implements Closeable {
+
+  static final long MAP_SIZE = 1L << 30;
+  static final int READ_SIZE = 1 << 20;
+
+  private final ReadableByteChannel channel;
+  // The channel, if read by position.
+  private final FileChannel file;
+  private final long mapSize;
+  private final int readSize;
+  private long position;
+  private boolean mapping;
+  private ByteBuffer readBuffer;
+  private boolean ended;
+
+  /**
+   * @param mapSize the size of each window mapped, 0 to read instead.
+   */
+  ChannelInput(FileChannel file, long position, long mapSize) {
+    if (position < 0) {
+      throw new IllegalArgumentException("Negative position: " + position);
+    }
+    this.channel = file;
+    this.file = file;
+    this.position = position;
+    this.mapSize = mapSize;
+    this.readSize = READ_SIZE;
+    mapping = mapSize > 0;
+  }
+
+  ChannelInput(ReadableByteChannel channel, int readSize) {
+    if (readSize < 1) {
+      throw new IllegalArgumentException("readSize must be positive: " + readSize);
+    }
+    this.channel = channel;
+    this.file = null;
+    this.mapSize = 0;
+    this.readSize = readSize;
+  }
+
+  /**
+   * Returns a buffer holding the rest of {@code last}, which is no longer
+   * valid, followed by more input: at least one byte more, unless the
+   * input has ended, or a non-blocking channel has none to give now.
+   *
+   * @param last the buffer returned last, or null.
+   */
+  ByteBuffer more(ByteBuffer last) throws IOException {
+    int unread = last == null ? 0 : last.remaining();
+    if (mapping) {
+      long size = file.size();
+      if (position >= size) {
+        ended = true;
+        return last != null ? last : ByteBuffer.allocate(0);
+      }
+      long from = position - unread;
+      try {
+        ByteBuffer mapped = file.map(FileChannel.MapMode.READ_ONLY, from, Math.min(mapSize, size - from));
+        position = from + mapped.remaining();
+        return mapped;
+      } catch (IOException | UnsupportedOperationException e) {
+        // Out of address space, or not a file that maps.
+        mapping = false;
+      }
+    }
+    if (readBuffer == null || readBuffer.capacity() <= unread) {
+      ByteBuffer larger = ByteBuffer.allocate(Math.max(readSize, 2 * unread));
+      if (last != null) {
+        larger.put(last);
+      }
+      readBuffer = larger;
+    } else if (last == readBuffer) {
+      readBuffer.compact();
+    } else {
+      readBuffer.clear();
+      if (last != null) {
+        readBuffer.put(last);
+      }
+    }
+    int n = file != null ? file.read(readBuffer, position) : channel.read(readBuffer);
+    if (n == -1) {
+      ended = true;
+    } else {
+      position += n;
+    }
+    readBuffer.flip();
+    return readBuffer;
+  }
+
+  /**
+   * Returns whether the input has ended, with nothing more to come.
+   */
+  boolean ended() {
+    return ended;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
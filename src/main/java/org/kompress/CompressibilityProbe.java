@@ -0,0 +1,129 @@
+package org.kompress;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Guesses from a sample whether data will compress, so that data that
+ * won't, such as JPEG images or encrypted data, can be stored without
+ * a search for matches.
+ *
+ * <p>The sample's byte histogram prices it as entropy coded literals.
+ * Only if that saves too little is it searched for matches, through a
+ * small hash table of four byte sequences, which is cheap next to the
+ * full search it may spare. The table keeps what it has indexed, so that
+ * probing consecutive samples indexes each position once, and as the
+ * search still costs several times what the histogram does, only one in
+ * every {@value #SEARCH_EVERY} consecutive samples is searched.
+ */
+final class CompressibilityProbe {
+
+  static final int SAMPLE_LENGTH = 4096;
+
+  // Data that saves less than 1/32 of its size, before block
+  // headers, is better stored.
+  private static final int MIN_SAVING = SAMPLE_LENGTH / 32;
+
+  private static final int HASH_BITS = 13;
+  private static final int HASH_MULTIPLIER = 0x9e3779b1;
+
+  // Only every 4th position of the history is indexed: a match of 7 or
+  // more bytes still covers one with all four of its first bytes.
+  private static final int HISTORY_STEP = 4;
+
+  static final int SEARCH_EVERY = 4;
+  private static final int SEARCH_GAP = (SEARCH_EVERY - 1) * SAMPLE_LENGTH;
+
+  // c * log2(c), for every count a sample's histogram can hold.
+  private static final float[] C_LOG2_C = new float[SAMPLE_LENGTH + 1];
+
+  static {
+    for (int c = 1; c <= SAMPLE_LENGTH; c++) {
+      C_LOG2_C[c] = (float) (c * Math.log(c) / Math.log(2));
+    }
+  }
+
+  private final byte[] window;
+  private final ByteBuffer longs;
+  private final int[] histogram = new int[256];
+  // Positions by the hash of their four bytes. Every candidate is
+  // checked, but a position left from earlier input may hold the same
+  // bytes again, so resetting forgets them all.
+  private final HeadTable table;
+  // Positions before this have been indexed, so far as they will
+  // be; it is never further back than the search gap.
+  private int indexedUntil = -SEARCH_GAP;
+
+  CompressibilityProbe(byte[] window) {
+    this.window = window;
+    this.longs = ByteBuffer.wrap(window).order(ByteOrder.LITTLE_ENDIAN);
+    this.table = new HeadTable(HASH_BITS, window.length);
+  }
+
+  /**
+   * Returns whether {@code window[start, start + SAMPLE_LENGTH)} looks
+   * incompressible, given that matches may reach back to
+   * {@code historyStart}, and at most one window.
+   */
+  boolean incompressible(int historyStart, int start) {
+    int end = start + SAMPLE_LENGTH;
+    float saving = literalSaving(start);
+    if (saving >= MIN_SAVING || start < indexedUntil + SEARCH_GAP) {
+      return saving < MIN_SAVING;
+    }
+
+    ByteBuffer longs = this.longs;
+    HeadTable table = this.table;
+    int from = Math.max(historyStart, start - DeflateCompressor.MAX_DIST);
+    for (int p = Math.max(from, indexedUntil); p < start; p += HISTORY_STEP) {
+      table.replace(hash(longs.getInt(p)), p);
+    }
+    // Each position that starts a match saves about one byte.
+    for (int p = start; p + 4 <= end; p++) {
+      int key = longs.getInt(p);
+      int candidate = table.replace(hash(key), p);
+      if (candidate >= from && candidate < p && longs.getInt(candidate) == key) {
+        saving++;
+      }
+    }
+    indexedUntil = end - 3;
+    return saving < MIN_SAVING;
+  }
+
+  void reset() {
+    table.clear();
+    indexedUntil = -SEARCH_GAP;
+  }
+
+  /**
+   * Moves every position down by {@code amount}; those that fall below
+   * zero are forgotten.
+   */
+  void slide(int amount) {
+    table.slide(amount);
+    indexedUntil = Math.max(indexedUntil - amount, -SEARCH_GAP);
+  }
+
+  /**
+   * Returns the bytes that entropy coding would save on the sample.
+   */
+  private float literalSaving(int start) {
+    int[] histogram = this.histogram;
+    for (int i = 0; i < 256; i++) {
+      histogram[i] = 0;
+    }
+    byte[] window = this.window;
+    for (int p = start, end = start + SAMPLE_LENGTH; p < end; p++) {
+      histogram[window[p] & 0xff]++;
+    }
+    float bits = C_LOG2_C[SAMPLE_LENGTH];
+    for (int i = 0; i < 256; i++) {
+      bits -= C_LOG2_C[histogram[i]];
+    }
+    return SAMPLE_LENGTH - bits / 8;
+  }
+
+  private static int hash(int key) {
+    return (key * HASH_MULTIPLIER) >>> (32 - HASH_BITS);
+  }
+}
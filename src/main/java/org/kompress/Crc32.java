@@ -0,0 +1,79 @@
+package org.kompress;
+
+/**
+ * Combines CRC-32 checksums of adjacent pieces of data, as zlib's
+ * {@code crc32_combine} does, so that pieces can be checksummed
+ * independently and in parallel.
+ *
+ * <p>Appending {@code n} zero bits to the data is a linear operation on
+ * its CRC, a 32x32 matrix over GF(2). Squaring that matrix repeatedly
+ * gives the operators for appending 1, 2, 4, ... zero bytes, which apply
+ * the length of the second piece to the first CRC in O(log n) steps.
+ */
+final class Crc32 {
+
+  private static final int POLYNOMIAL = 0xedb88320;
+
+  private Crc32() {
+  }
+
+  /**
+   * Returns the CRC-32 of two pieces of data laid end to end, given the
+   * CRC of each and the length of the second.
+   */
+  static int combine(int crc1, int crc2, long len2) {
+    if (len2 <= 0) {
+      return crc1;
+    }
+
+    int[] even = new int[32];
+    int[] odd = new int[32];
+
+    // The operator for one zero bit.
+    odd[0] = POLYNOMIAL;
+    int row = 1;
+    for (int n = 1; n < 32; n++) {
+      odd[n] = row;
+      row <<= 1;
+    }
+    // Two zero bits, then four.
+    square(even, odd);
+    square(odd, even);
+
+    // Squaring again gives one zero byte, then two, four, and so on,
+    // applied wherever len2 has a bit set.
+    do {
+      square(even, odd);
+      if ((len2 & 1) != 0) {
+        crc1 = times(even, crc1);
+      }
+      len2 >>>= 1;
+      if (len2 == 0) {
+        break;
+      }
+      square(odd, even);
+      if ((len2 & 1) != 0) {
+        crc1 = times(odd, crc1);
+      }
+      len2 >>>= 1;
+    } while (len2 != 0);
+
+    return crc1 ^ crc2;
+  }
+
+  private static int times(int[] matrix, int vector) {
+    int sum = 0;
+    for (int i = 0; vector != 0; i++, vector >>>= 1) {
+      if ((vector & 1) != 0) {
+        sum ^= matrix[i];
+      }
+    }
+    return sum;
+  }
+
+  private static void square(int[] square, int[] matrix) {
+    for (int n = 0; n < 32; n++) {
+      square[n] = times(matrix, matrix[n]);
+    }
+  }
+}
@@ -0,0 +1,207 @@
+package org.kompress;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the memory held by decompressions running at once in a process,
+ * so that a spike in their number waits, or fails, rather than exhausting
+ * the heap.
+ *
+ * <p>A {@link DeflateInputStream} given a budget acquires
+ * {@link DeflateInputStream#MEMORY} bytes, for its window and its
+ * decoding tables, before allocating them, and releases them at the end
+ * of the stream or when closed, whichever comes first. The one-shot
+ * methods of {@link Deflate} that take a budget do the same for their
+ * decoders. Callers may acquire from it for their own buffers as well.
+ *
+ * <p>Memory is handed out in the order it was asked for, so a large
+ * request isn't starved by small ones. A request waits for at most the
+ * time given when the budget was made, and fails with an
+ * {@link IOException} after that; with no wait, it fails at once.
+ */
+public final class DecompressionBudget {
+
+  private final long capacity;
+  // Negative to wait for as long as it takes.
+  private final long maxWaitNanos;
+  private final ArrayDeque<Object> waiters = new ArrayDeque<>();
+
+  private long used;
+  private long peak;
+  private long waits;
+  private long waitNanos;
+  private long rejections;
+
+  /**
+   * Makes a budget whose requests wait for as long as it takes.
+   */
+  public DecompressionBudget(long capacity) {
+    this(capacity, -1, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @param maxWait how long a request waits for memory before failing,
+   *                or 0 to fail as soon as there isn't enough.
+   */
+  public DecompressionBudget(long capacity, long maxWait, TimeUnit unit) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity must be positive: " + capacity);
+    }
+    this.capacity = capacity;
+    this.maxWaitNanos = maxWait < 0 ? -1 : unit.toNanos(maxWait);
+  }
+
+  /**
+   * Takes {@code bytes} from the budget, waiting as the budget allows,
+   * until the returned lease is closed.
+   *
+   * @throws IOException if the memory isn't available in time.
+   * @throws InterruptedIOException if interrupted while waiting.
+   */
+  public Lease acquire(long bytes) throws IOException {
+    if (bytes < 0 || bytes > capacity) {
+      throw new IllegalArgumentException("Cannot acquire " + bytes + " bytes of " + capacity);
+    }
+    synchronized (this) {
+      if (waiters.isEmpty() && used + bytes <= capacity) {
+        grant(bytes);
+        return new Lease(bytes);
+      }
+      if (maxWaitNanos == 0) {
+        throw reject(bytes);
+      }
+      Object ticket = new Object();
+      waiters.add(ticket);
+      long start = System.nanoTime();
+      try {
+        while (waiters.peek() != ticket || used + bytes > capacity) {
+          long waited = System.nanoTime() - start;
+          if (maxWaitNanos < 0) {
+            wait();
+          } else if (waited < maxWaitNanos) {
+            TimeUnit.NANOSECONDS.timedWait(this, maxWaitNanos - waited);
+          } else {
+            throw reject(bytes);
+          }
+        }
+        grant(bytes);
+        return new Lease(bytes);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting for " + bytes + " bytes of decompression budget");
+      } finally {
+        waiters.remove(ticket);
+        waits++;
+        waitNanos += System.nanoTime() - start;
+        // The next in line may fit now, or be first now.
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Takes {@code bytes} from the budget if they're available now, and no
+   * one is waiting, or returns null.
+   */
+  public synchronized Lease tryAcquire(long bytes) {
+    if (bytes < 0 || bytes > capacity) {
+      throw new IllegalArgumentException("Cannot acquire " + bytes + " bytes of " + capacity);
+    }
+    if (!waiters.isEmpty() || used + bytes > capacity) {
+      return null;
+    }
+    grant(bytes);
+    return new Lease(bytes);
+  }
+
+  public long capacity() {
+    return capacity;
+  }
+
+  /**
+   * Returns the number of bytes held now.
+   */
+  public synchronized long used() {
+    return used;
+  }
+
+  /**
+   * Returns the most bytes held at once.
+   */
+  public synchronized long peak() {
+    return peak;
+  }
+
+  /**
+   * Returns the number of requests that had to wait, whether or not they
+   * were granted in the end.
+   */
+  public synchronized long waits() {
+    return waits;
+  }
+
+  /**
+   * Returns the total time requests spent waiting, in nanoseconds.
+   */
+  public synchronized long waitNanos() {
+    return waitNanos;
+  }
+
+  /**
+   * Returns the number of requests that failed for want of memory.
+   */
+  public synchronized long rejections() {
+    return rejections;
+  }
+
+  private void grant(long bytes) {
+    used += bytes;
+    peak = Math.max(peak, used);
+  }
+
+  private IOException reject(long bytes) {
+    rejections++;
+    return new IOException("Decompression budget exhausted: " + bytes + " bytes wanted, "
+      + used + " of " + capacity + " in use");
+  }
+
+  private synchronized void release(long bytes) {
+    used -= bytes;
+    notifyAll();
+  }
+
+  /**
+   * Memory taken from a budget, given back when closed.
+   */
+  public final class Lease implements Closeable {
+
+    private final long bytes;
+    private boolean released;
+
+    private Lease(long bytes) {
+      this.bytes = bytes;
+    }
+
+    public long bytes() {
+      return bytes;
+    }
+
+    /**
+     * Gives the memory back. Closing again does nothing.
+     */
+    @Override
+    public void close() {
+      synchronized (DecompressionBudget.this) {
+        if (released) {
+          return;
+        }
+        released = true;
+      }
+      release(bytes);
+    }
+  }
+}
@@ -4,12 +4,172 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.zip.Inflater;
 
 public class Deflate {
 
+  public static final int NO_COMPRESSION = 0;
+  public static final int BEST_SPEED = 1;
+  public static final int DEFAULT_COMPRESSION = 6;
+  public static final int BEST_COMPRESSION = 9;
+
+  /**
+   * The highest level. Levels above {@link #BEST_COMPRESSION} parse
+   * optimally, with more passes at each level, for data that is
+   * compressed once and read many times.
+   */
+  public static final int MAX_COMPRESSION = 12;
+
+  // Strategies, numbered as in zlib.
+
+  /**
+   * Searches for matches as the level directs.
+   */
+  public static final int DEFAULT_STRATEGY = 0;
+
+  /**
+   * Prefers literals to matches shorter than 6 bytes, for data such as
+   * PNG-filtered scanlines whose small values are better entropy coded.
+   * As in zlib, levels 1 to 3 are unaffected.
+   */
+  public static final int FILTERED = 1;
+
+  /**
+   * Entropy codes literals only, without searching for matches.
+   */
+  public static final int HUFFMAN_ONLY = 2;
+
+  /**
+   * Only finds runs of a repeated byte, as matches at distance 1. Nearly
+   * as fast as {@link #HUFFMAN_ONLY}, and as good as a full search on
+   * data such as images with large uniform areas.
+   */
+  public static final int RLE = 3;
+
+  /**
+   * Returns the most bytes that compressing {@code length} bytes can take,
+   * as one raw DEFLATE stream at any level and strategy, with no flushes.
+   * A buffer this large always suffices for
+   * {@link DeflateContext#compress(byte[], int, int, byte[], int)}.
+   */
+  public static int compressBound(int length) {
+    if (length < 0) {
+      throw new IllegalArgumentException("Negative length: " + length);
+    }
+    // No block is larger than stored, and only the last ends within 4 KiB
+    // of its start, so there are at most 42 bits of block header and
+    // padding for every 4 KiB, plus up to one per 64 KiB for stored
+    // blocks too long for one header. Then an empty final block, and
+    // the padding to a whole byte.
+    long bound = length + 6L * (length >>> 12) + 16;
+    if (bound > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Length too large: " + length);
+    }
+    return (int) bound;
+  }
+
   public static byte[] decompress(byte[] compressed) {
-    InputStream input = new DeflateInputStream(new ByteArrayInputStream(compressed));
+    return decompress(new DeflateInputStream(new ByteArrayInputStream(compressed)));
+  }
+
+  /**
+   * Decompresses a stream compressed with the preset {@code dictionary},
+   * or with none if it is null, as {@link DeflateContext#setDictionary}
+   * takes it.
+   */
+  public static byte[] decompress(byte[] compressed, byte[] dictionary) {
+    return decompress(new DeflateInputStream(new ByteArrayInputStream(compressed), dictionary));
+  }
+
+  /**
+   * Decompresses a stream once its decoder has room in {@code budget}.
+   *
+   * @throws IOException if the data is corrupt, or the budget has no room
+   *                     in time.
+   */
+  public static byte[] decompress(byte[] compressed, DecompressionBudget budget) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    try (InputStream input = new DeflateInputStream(new ByteArrayInputStream(compressed), budget)) {
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = input.read(buffer)) != -1) {
+        output.write(buffer, 0, n);
+      }
+    }
+    return output.toByteArray();
+  }
+
+  public static byte[][] decompressAll(List<byte[]> compressed, Executor executor) throws IOException {
+    return decompressAll(compressed, executor, null);
+  }
+
+  /**
+   * Decompresses a batch of independent raw DEFLATE payloads, such as
+   * cache entries or message batches, on {@code executor} and the calling
+   * thread together.
+   *
+   * @param failures if not null, where each payload that fails records
+   *                 why, leaving its result null, rather than the first
+   *                 failure stopping the batch and being thrown.
+   */
+  public static byte[][] decompressAll(List<byte[]> compressed, Executor executor, IOException[] failures)
+    throws IOException {
+    return decompressAll(compressed, executor, failures, null);
+  }
+
+  /**
+   * As {@link #decompressAll(List, Executor, IOException[])}, with each
+   * thread decompressing taking its decoder's memory from {@code budget}.
+   * Threads beyond the first join in only if the budget has room for
+   * them at the time, so a busy budget narrows the batch rather than
+   * stalling it.
+   *
+   * @throws IOException if the budget has no room in time for the first.
+   */
+  public static byte[][] decompressAll(List<byte[]> compressed, Executor executor, IOException[] failures,
+                                       DecompressionBudget budget) throws IOException {
+    byte[][] results = new byte[compressed.size()][];
+    BatchInflater.run(results.length, executor, failures, budget,
+      (i, inflater) -> results[i] = inflater.decompress(compressed.get(i)));
+    return results;
+  }
+
+  public static void decompressAll(ByteBuffer[] compressed, ByteBuffer[] outputs, Executor executor)
+    throws IOException {
+    decompressAll(compressed, outputs, executor, null);
+  }
+
+  /**
+   * Decompresses a batch of independent raw DEFLATE payloads, each from
+   * its position to its limit, into the output buffer at the same index,
+   * whose position is left after the data. A payload that doesn't fit
+   * its output fails.
+   *
+   * @param failures as for {@link #decompressAll(List, Executor, IOException[])}.
+   */
+  public static void decompressAll(ByteBuffer[] compressed, ByteBuffer[] outputs, Executor executor,
+                                   IOException[] failures) throws IOException {
+    decompressAll(compressed, outputs, executor, failures, null);
+  }
+
+  /**
+   * As {@link #decompressAll(ByteBuffer[], ByteBuffer[], Executor, IOException[])},
+   * taking memory from {@code budget} as
+   * {@link #decompressAll(List, Executor, IOException[], DecompressionBudget)} does.
+   */
+  public static void decompressAll(ByteBuffer[] compressed, ByteBuffer[] outputs, Executor executor,
+                                   IOException[] failures, DecompressionBudget budget) throws IOException {
+    if (outputs.length != compressed.length) {
+      throw new IllegalArgumentException("Expected " + compressed.length + " outputs: " + outputs.length);
+    }
+    BatchInflater.run(compressed.length, executor, failures, budget,
+      (i, inflater) -> inflater.decompress(compressed[i], outputs[i]));
+  }
+
+  private static byte[] decompress(InputStream input) {
     ByteArrayOutputStream output = new ByteArrayOutputStream();
 
     while (true) {
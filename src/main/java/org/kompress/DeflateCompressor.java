@@ -0,0 +1,844 @@
+package org.kompress;
+
+/**
+ * The compression engine behind {@link DeflateOutputStream}.
+ *
+ * <p>Input is copied into a window buffer four times the size of the
+ * DEFLATE window, and tokenized into a {@link BlockEncoder}. Each time
+ * its token buffer fills, the statistics of the input shift, or the window
+ * needs to slide, the pending tokens are written as one block to
+ * {@link #output}. Callers drain that buffer whenever
+ * {@link #deflate(int)} returns.
+ *
+ * <p>All state a level needs is allocated as the level is set, so that an
+ * instance costs the same regardless of how much data passes through it.
+ *
+ * <p>Before a new block, the data ahead is sampled by a
+ * {@link CompressibilityProbe}. Data it finds incompressible is stored,
+ * one stored block's worth at a time, without being searched or indexed
+ * for matches, and each following sample is probed in turn, to end the
+ * block early should the data change.
+ */
+final class DeflateCompressor {
+
+  static final int NO_FLUSH = 0;
+  static final int SYNC_FLUSH = 2;
+  static final int FULL_FLUSH = 3;
+  static final int FINISH = 4;
+  // Ends the block, without byte alignment, as zlib's Z_BLOCK does.
+  static final int BLOCK = 5;
+
+  static final int WINDOW_SIZE = 1 << 15;
+
+  // A match can't start in the last window position, since its
+  // hash chain link has been reused by the current position.
+  static final int MAX_DIST = WINDOW_SIZE - 1;
+
+  // Enough lookahead for the longest match, and the
+  // hash of the three bytes that follow it.
+  static final int MIN_LOOKAHEAD = Tokens.MAX_MATCH + Tokens.MIN_MATCH + 1;
+
+  private static final int BUFFER_SIZE = 4 * WINDOW_SIZE;
+  private static final int SLIDE = 2 * WINDOW_SIZE;
+
+  // Lets match extension read a whole long past the lookahead.
+  private static final int PADDING = 8;
+
+  // The optimal parser ends the block rather than parse
+  // a chunk shorter than this into it.
+  private static final int MIN_OPTIMAL_CHUNK = 4096;
+
+  // FILTERED keeps no match shorter than this. As in zlib,
+  // the greedy parsers take no notice.
+  private static final int FILTERED_MIN_MATCH = 6;
+
+  // Matches of the minimum length this far back cost more
+  // than the literals they replace.
+  private static final int TOO_FAR = 4096;
+
+  // A block never covers more than the window buffer, and is never
+  // written larger than its stored encoding.
+  static final int OUTPUT_BUFFER_SIZE = BUFFER_SIZE + 1024;
+
+  private static final Config[] CONFIGS = {
+    /* 0 */ new Config(0, 0, 0, 0, Parser.STORED),
+    /* 1 */ new Config(0, 0, 0, 0, Parser.QUICK),
+    /* 2 */ new Config(4, 5, 16, 8, Parser.FAST),
+    /* 3 */ new Config(4, 6, 32, 32, Parser.FAST),
+    /* 4 */ new Config(4, 4, 16, 16, Parser.LAZY),
+    /* 5 */ new Config(8, 16, 32, 32, Parser.LAZY),
+    /* 6 */ new Config(8, 16, 128, 128, Parser.LAZY),
+    /* 7 */ new Config(8, 32, 128, 256, Parser.LAZY),
+    /* 8 */ new Config(32, 128, 258, 1024, Parser.LAZY),
+    /* 9 */ new Config(32, 258, 258, 4096, Parser.LAZY),
+    /* 10 */ new Config(128, 32, 3),
+    /* 11 */ new Config(192, 128, 6),
+    /* 12 */ new Config(258, 512, 15),
+  };
+
+  final BitWriter output = new BitWriter(new byte[OUTPUT_BUFFER_SIZE], 0);
+
+  private final byte[] window = new byte[BUFFER_SIZE + PADDING];
+  private final BlockEncoder encoder = new BlockEncoder(output);
+
+  // Created as the first level that needs them is set.
+  private HashChainMatchFinder matchFinder;
+  private HashTableMatchFinder quickMatchFinder;
+  private BinaryTreeMatchFinder treeMatchFinder;
+  private OptimalParser optimalParser;
+  private CompressibilityProbe probe;
+
+  private int level;
+  private Config config;
+
+  // The level's settings, as adjusted by the strategy.
+  private int strategy = Deflate.DEFAULT_STRATEGY;
+  private Parser parser;
+  private int maxBlockType;
+  private int minMatch = Tokens.MIN_MATCH;
+
+  private byte[] input;
+  private int inputOff;
+  private int inputEnd;
+
+  private int strstart;
+  private int lookahead;
+  private int blockStart;
+  private boolean finished;
+
+  // Lazy matching state, carried between calls.
+  private int matchLength = Tokens.MIN_MATCH - 1;
+  private int matchStart;
+  private boolean matchAvailable;
+
+  // Where the last sync or full flush ended, so that
+  // repeating one without new input adds nothing.
+  private int flushPosition = -1;
+  // No match reaches back before this: the start of
+  // the window, or the last full flush.
+  private int historyStart;
+
+  // Data the probe found incompressible is stored up to here,
+  // and has been probed up to here. The match finder has not
+  // seen the run of stored data since runStart.
+  private int storedUntil;
+  private int probedUntil;
+  private int runStart;
+
+  DeflateCompressor(int level) {
+    if (level < Deflate.NO_COMPRESSION || level > Deflate.MAX_COMPRESSION) {
+      throw new IllegalArgumentException("Invalid compression level: " + level);
+    }
+    configure(level);
+  }
+
+  private void configure(int level) {
+    this.level = level;
+    this.config = CONFIGS[level];
+    switch (config.parser) {
+      case QUICK:
+        if (quickMatchFinder == null) {
+          quickMatchFinder = new HashTableMatchFinder(window);
+        }
+        break;
+      case FAST:
+      case LAZY:
+        if (matchFinder == null) {
+          matchFinder = new HashChainMatchFinder(window);
+        }
+        break;
+      case OPTIMAL:
+        if (treeMatchFinder == null) {
+          treeMatchFinder = new BinaryTreeMatchFinder(window);
+          optimalParser = new OptimalParser(window, treeMatchFinder);
+        }
+        break;
+      default:
+    }
+    if (config.parser != Parser.STORED && probe == null) {
+      probe = new CompressibilityProbe(window);
+    }
+    this.parser = config.parser;
+    this.maxBlockType = config.maxBlockType;
+  }
+
+  /**
+   * Returns the compressor to its initial state, keeping its level,
+   * strategy and allocations.
+   */
+  void reset() {
+    output.clear();
+    output.pos = 0;
+    encoder.reset();
+    resetMatchFinder();
+    if (probe != null) {
+      probe.reset();
+    }
+    input = null;
+    inputOff = 0;
+    inputEnd = 0;
+    strstart = 0;
+    lookahead = 0;
+    blockStart = 0;
+    finished = false;
+    matchLength = Tokens.MIN_MATCH - 1;
+    matchStart = 0;
+    matchAvailable = false;
+    flushPosition = -1;
+    historyStart = 0;
+    storedUntil = 0;
+    probedUntil = 0;
+    runStart = 0;
+  }
+
+  private void resetMatchFinder() {
+    if (matchFinder != null) {
+      matchFinder.reset();
+    }
+    if (quickMatchFinder != null) {
+      quickMatchFinder.reset();
+    }
+    if (treeMatchFinder != null) {
+      treeMatchFinder.reset();
+    }
+  }
+
+  /**
+   * Primes the window with the last {@link #WINDOW_SIZE} bytes, at most, of
+   * {@code b[off, off + len)}, which the input can then refer back to. The
+   * decompressor must be given the same dictionary. This must come before
+   * any input.
+   */
+  void setDictionary(byte[] b, int off, int len) {
+    if (strstart != 0 || lookahead != 0 || finished) {
+      throw new IllegalStateException("Dictionary must be set before any input");
+    }
+    int n = Math.min(len, WINDOW_SIZE);
+    System.arraycopy(b, off + len - n, window, 0, n);
+    index(0, n, n);
+    strstart = n;
+    blockStart = n;
+  }
+
+  /**
+   * Adds the positions in {@code [from, to)} to the level's match finder,
+   * given that the data ends at {@code end}.
+   */
+  private void index(int from, int to, int end) {
+    int minBytes = config.parser == Parser.QUICK ? HashTableMatchFinder.HASH_BYTES : Tokens.MIN_MATCH;
+    for (int p = from; p < to && p + minBytes <= end; p++) {
+      switch (config.parser) {
+        case QUICK:
+          quickMatchFinder.insert(p);
+          break;
+        case FAST:
+        case LAZY:
+          matchFinder.insert(p);
+          break;
+        case OPTIMAL:
+          treeMatchFinder.skip(p, Math.min(Tokens.MAX_MATCH, end - p), config.maxChain, config.niceLength);
+          break;
+        default:
+          return;
+      }
+    }
+  }
+
+  /**
+   * Sets the level for the input not yet compressed, as zlib's
+   * {@code deflateParams} does, keeping the strategy. A match finder that
+   * takes over from another's is first given the last window of history,
+   * so that matches still reach back across the change. Ending the block
+   * first, with {@link #BLOCK}, keeps each block to one level.
+   */
+  void setLevel(int level) {
+    if (level < Deflate.NO_COMPRESSION || level > Deflate.MAX_COMPRESSION) {
+      throw new IllegalArgumentException("Invalid compression level: " + level);
+    }
+    if (level == this.level) {
+      return;
+    }
+    tallyHeldByte();
+    Object finder = finder();
+    configure(level);
+    if (finder() != finder && finder() != null) {
+      resetMatchFinder();
+      index(Math.max(historyStart, strstart - WINDOW_SIZE), strstart, strstart + lookahead);
+    }
+    setStrategy(strategy);
+  }
+
+  int level() {
+    return level;
+  }
+
+  private Object finder() {
+    switch (config.parser) {
+      case QUICK:
+        return quickMatchFinder;
+      case FAST:
+      case LAZY:
+        return matchFinder;
+      case OPTIMAL:
+        return treeMatchFinder;
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Sets the strategy, one of those in {@link Deflate}, for the input not
+   * yet compressed. Level 0 stores everything regardless. Ending the block
+   * first, with {@link #BLOCK}, keeps each block to one strategy.
+   */
+  void setStrategy(int strategy) {
+    if (strategy < Deflate.DEFAULT_STRATEGY || strategy > Deflate.RLE) {
+      throw new IllegalArgumentException("Invalid strategy: " + strategy);
+    }
+    this.strategy = strategy;
+    if (config.parser == Parser.STORED) {
+      return;
+    }
+    // The other parsers know nothing of a lazily held byte.
+    tallyHeldByte();
+    parser = strategy == Deflate.HUFFMAN_ONLY ? Parser.HUFFMAN
+      : strategy == Deflate.RLE ? Parser.RLE : config.parser;
+    // Without matches to find, the time saved goes to dynamic codes.
+    maxBlockType = parser == config.parser ? config.maxBlockType : BlockEncoder.DYNAMIC;
+    minMatch = strategy == Deflate.FILTERED ? FILTERED_MIN_MATCH : Tokens.MIN_MATCH;
+  }
+
+  int strategy() {
+    return strategy;
+  }
+
+  void setInput(byte[] b, int off, int len) {
+    input = b;
+    inputOff = off;
+    inputEnd = off + len;
+  }
+
+  boolean needsInput() {
+    return inputOff == inputEnd;
+  }
+
+  boolean finished() {
+    return finished;
+  }
+
+  /**
+   * Compresses pending input until it has all been consumed, or until a
+   * block has been written to {@link #output}. Returns true in the latter
+   * case, and callers should drain the output and call again.
+   *
+   * <p>With {@link #NO_FLUSH}, up to {@link #MIN_LOOKAHEAD} bytes are held
+   * back to search for matches once more input arrives. {@link #SYNC_FLUSH}
+   * compresses everything and ends with an empty stored block, which
+   * byte-aligns the output. {@link #FULL_FLUSH} does the same, and then
+   * forgets all match history, so that decoding can restart from there.
+   * {@link #FINISH} compresses everything and ends the stream with a
+   * final block, and {@link #BLOCK} compresses everything and ends the
+   * block.
+   */
+  boolean deflate(int flush) {
+    if (finished) {
+      return false;
+    }
+    boolean flushing = flush != NO_FLUSH;
+    // The optimal parser works on whole chunks.
+    int minLookahead = parser == Parser.OPTIMAL
+      ? OptimalParser.CHUNK_SIZE + MIN_LOOKAHEAD : MIN_LOOKAHEAD;
+
+    while (true) {
+      if (lookahead < minLookahead) {
+        if (strstart >= SLIDE + WINDOW_SIZE && inputOff < inputEnd) {
+          if (blockStart < SLIDE) {
+            // The block would lose the start of its data.
+            emitBlock(false);
+            return true;
+          }
+          slideWindow();
+        }
+        fillWindow();
+        if (lookahead < minLookahead && !flushing) {
+          return false;
+        }
+        if (lookahead == 0) {
+          break;
+        }
+      }
+
+      if (strstart < storedUntil) {
+        if (deflateStoredRun()) {
+          return true;
+        }
+        continue;
+      }
+      // The block is empty, but for a byte the lazy parser may hold.
+      if (parser != Parser.STORED && encoder.tokenCount == 0 && blockStart >= probedUntil
+        && strstart + lookahead - blockStart >= CompressibilityProbe.SAMPLE_LENGTH) {
+        probedUntil = blockStart + CompressibilityProbe.SAMPLE_LENGTH;
+        if (probe.incompressible(historyStart, blockStart)) {
+          if (blockStart != storedUntil) {
+            // A held byte has been indexed already.
+            runStart = strstart;
+          }
+          lookahead += strstart - blockStart;
+          strstart = blockStart;
+          matchAvailable = false;
+          matchLength = Tokens.MIN_MATCH - 1;
+          storedUntil = strstart + BlockEncoder.MAX_STORED;
+          continue;
+        }
+        if (blockStart == storedUntil) {
+          indexStoredRun(blockStart);
+        }
+      }
+
+      boolean emitted;
+      switch (parser) {
+        case STORED:
+          emitted = deflateStored();
+          break;
+        case QUICK:
+          emitted = deflateQuick(flushing);
+          break;
+        case FAST:
+          emitted = deflateFast(flushing);
+          break;
+        case OPTIMAL:
+          emitted = deflateOptimal(flushing);
+          break;
+        case HUFFMAN:
+          emitted = deflateHuffman(flushing);
+          break;
+        case RLE:
+          emitted = deflateRle(flushing);
+          break;
+        default:
+          emitted = deflateLazy(flushing);
+      }
+      if (emitted) {
+        return true;
+      }
+    }
+
+    tallyHeldByte();
+    if (flush == SYNC_FLUSH || flush == FULL_FLUSH) {
+      if (strstart != flushPosition) {
+        if (strstart > blockStart) {
+          emitBlock(false);
+        }
+        encoder.writeBlock(window, strstart, 0, false, BlockEncoder.STORED);
+        flushPosition = strstart;
+      }
+      if (flush == FULL_FLUSH) {
+        resetMatchFinder();
+        historyStart = strstart;
+      }
+    } else if (flush == FINISH) {
+      emitBlock(true);
+      output.alignToByte();
+      finished = true;
+    } else if (flush == BLOCK && strstart > blockStart) {
+      emitBlock(false);
+    }
+    return false;
+  }
+
+  /**
+   * Tokenizes the byte the lazy parser holds back, if any.
+   */
+  private void tallyHeldByte() {
+    if (matchAvailable) {
+      encoder.literal(window[strstart - 1]);
+      matchAvailable = false;
+      matchLength = Tokens.MIN_MATCH - 1;
+    }
+  }
+
+  private void fillWindow() {
+    int n = Math.min(inputEnd - inputOff, BUFFER_SIZE - strstart - lookahead);
+    if (n == 0) {
+      return;
+    }
+    System.arraycopy(input, inputOff, window, strstart + lookahead, n);
+    inputOff += n;
+    lookahead += n;
+  }
+
+  private void slideWindow() {
+    System.arraycopy(window, SLIDE, window, 0, strstart + lookahead - SLIDE);
+    strstart -= SLIDE;
+    blockStart -= SLIDE;
+    matchStart -= SLIDE;
+    flushPosition -= SLIDE;
+    historyStart = Math.max(historyStart - SLIDE, 0);
+    storedUntil -= SLIDE;
+    probedUntil -= SLIDE;
+    runStart -= SLIDE;
+    if (matchFinder != null) {
+      matchFinder.slide(SLIDE);
+    }
+    if (quickMatchFinder != null) {
+      quickMatchFinder.slide(SLIDE);
+    }
+    if (treeMatchFinder != null) {
+      treeMatchFinder.slide(SLIDE);
+    }
+    if (probe != null) {
+      probe.slide(SLIDE);
+    }
+  }
+
+  private boolean deflateStored() {
+    int n = Math.min(lookahead, BlockEncoder.MAX_STORED - (strstart - blockStart));
+    strstart += n;
+    lookahead -= n;
+    if (strstart - blockStart == BlockEncoder.MAX_STORED) {
+      emitBlock(false);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Passes data found incompressible through as stored blocks, leaving
+   * it out of the match finder.
+   */
+  private boolean deflateStoredRun() {
+    while (lookahead > 0 && strstart < storedUntil) {
+      if (strstart >= probedUntil && lookahead >= CompressibilityProbe.SAMPLE_LENGTH
+        && storedUntil - strstart >= CompressibilityProbe.SAMPLE_LENGTH) {
+        probedUntil = strstart + CompressibilityProbe.SAMPLE_LENGTH;
+        if (!probe.incompressible(historyStart, strstart)) {
+          storedUntil = strstart;
+          indexStoredRun(strstart);
+          break;
+        }
+      }
+      int n = Math.min(lookahead, storedUntil - strstart);
+      if (strstart < probedUntil) {
+        n = Math.min(n, probedUntil - strstart);
+      }
+      strstart += n;
+      lookahead -= n;
+    }
+    if (strstart == storedUntil && strstart > blockStart) {
+      emitBlock(false);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Indexes the last window of a stored run ending at {@code end}, once
+   * the data after it is to be searched, so that matches can reach back
+   * into it.
+   */
+  private void indexStoredRun(int end) {
+    index(Math.max(Math.max(runStart, historyStart), end - WINDOW_SIZE), end, strstart + lookahead);
+  }
+
+  /**
+   * Greedy parsing with a single probe per position. Positions inside a
+   * match are skipped entirely, and blocks are never given dynamic codes.
+   */
+  private boolean deflateQuick(boolean flushing) {
+    int minLookahead = flushing ? 1 : MIN_LOOKAHEAD;
+    HashTableMatchFinder finder = quickMatchFinder;
+    BlockEncoder encoder = this.encoder;
+    byte[] window = this.window;
+    int strstart = this.strstart;
+    int lookahead = this.lookahead;
+    boolean full = false;
+
+    while (lookahead >= minLookahead) {
+      int length = 0;
+      int candidate = -1;
+      // The last few bytes are literals.
+      if (lookahead >= HashTableMatchFinder.HASH_BYTES) {
+        candidate = finder.insert(strstart);
+        if (candidate >= 0 && strstart - candidate <= MAX_DIST) {
+          length = finder.matchLength(candidate, strstart, Math.min(Tokens.MAX_MATCH, lookahead));
+        }
+      }
+
+      if (length >= Tokens.MIN_MATCH) {
+        encoder.match(length, strstart - candidate);
+        strstart += length;
+        lookahead -= length;
+      } else {
+        encoder.literal(window[strstart]);
+        strstart++;
+        lookahead--;
+      }
+      if (encoder.isFull()) {
+        full = true;
+        break;
+      }
+    }
+
+    this.strstart = strstart;
+    this.lookahead = lookahead;
+    if (full) {
+      emitBlock(false);
+    }
+    return full;
+  }
+
+  /**
+   * Greedy parsing: takes the longest match at each position. Positions
+   * inside a match are only added to the hash chains if the match is no
+   * longer than the level's {@code lazy} length.
+   */
+  private boolean deflateFast(boolean flushing) {
+    int minLookahead = flushing ? 1 : MIN_LOOKAHEAD;
+    HashChainMatchFinder finder = matchFinder;
+
+    while (lookahead >= minLookahead) {
+      int length = 0;
+      if (lookahead >= Tokens.MIN_MATCH) {
+        int candidate = finder.insert(strstart);
+        if (candidate >= 0 && strstart - candidate <= MAX_DIST) {
+          length = finder.longestMatch(strstart, candidate, Tokens.MIN_MATCH - 1,
+            Math.min(Tokens.MAX_MATCH, lookahead), config.maxChain, config.goodLength, config.niceLength);
+        }
+      }
+
+      if (length >= Tokens.MIN_MATCH) {
+        encoder.match(length, strstart - finder.matchStart);
+        lookahead -= length;
+        if (length <= config.lazyLength && lookahead >= Tokens.MIN_MATCH) {
+          int end = strstart + length;
+          while (++strstart < end) {
+            finder.insert(strstart);
+          }
+        } else {
+          strstart += length;
+        }
+      } else {
+        encoder.literal(window[strstart]);
+        strstart++;
+        lookahead--;
+      }
+
+      if (endBlockIfDone()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Lazy parsing: a match is only taken if the next position doesn't
+   * start a longer one. The search at the next position is skipped once
+   * a match reaches the level's {@code lazy} length.
+   */
+  private boolean deflateLazy(boolean flushing) {
+    int minLookahead = flushing ? 1 : MIN_LOOKAHEAD;
+    HashChainMatchFinder finder = matchFinder;
+
+    while (lookahead >= minLookahead) {
+      int candidate = -1;
+      if (lookahead >= Tokens.MIN_MATCH) {
+        candidate = finder.insert(strstart);
+      }
+
+      int prevLength = matchLength;
+      int prevMatch = matchStart;
+      matchLength = Tokens.MIN_MATCH - 1;
+
+      if (candidate >= 0 && prevLength < config.lazyLength && strstart - candidate <= MAX_DIST) {
+        matchLength = finder.longestMatch(strstart, candidate, prevLength,
+          Math.min(Tokens.MAX_MATCH, lookahead), config.maxChain, config.goodLength, config.niceLength);
+        if (matchLength > prevLength) {
+          matchStart = finder.matchStart;
+        }
+        if (matchLength < minMatch || matchLength == Tokens.MIN_MATCH && strstart - matchStart > TOO_FAR) {
+          matchLength = Tokens.MIN_MATCH - 1;
+        }
+      }
+
+      if (prevLength >= Tokens.MIN_MATCH && matchLength <= prevLength) {
+        // The previous match is at least as good: emit it, and
+        // index the rest of its positions.
+        int maxInsert = strstart + lookahead - Tokens.MIN_MATCH;
+        encoder.match(prevLength, strstart - 1 - prevMatch);
+        lookahead -= prevLength - 1;
+        int end = strstart - 1 + prevLength;
+        while (++strstart < end) {
+          if (strstart <= maxInsert) {
+            finder.insert(strstart);
+          }
+        }
+        matchAvailable = false;
+        matchLength = Tokens.MIN_MATCH - 1;
+        if (endBlockIfDone()) {
+          return true;
+        }
+      } else if (matchAvailable) {
+        // The match here is better: the previous position
+        // becomes a literal.
+        encoder.literal(window[strstart - 1]);
+        strstart++;
+        lookahead--;
+        if (endBlockIfDone()) {
+          return true;
+        }
+      } else {
+        matchAvailable = true;
+        strstart++;
+        lookahead--;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Literals only, as zlib's {@code deflate_huff}.
+   */
+  private boolean deflateHuffman(boolean flushing) {
+    int minLookahead = flushing ? 1 : MIN_LOOKAHEAD;
+    while (lookahead >= minLookahead) {
+      encoder.literal(window[strstart]);
+      strstart++;
+      lookahead--;
+      if (endBlockIfDone()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Runs of the previous byte only, as matches at distance 1, as
+   * zlib's {@code deflate_rle}.
+   */
+  private boolean deflateRle(boolean flushing) {
+    int minLookahead = flushing ? 1 : MIN_LOOKAHEAD;
+    byte[] window = this.window;
+    while (lookahead >= minLookahead) {
+      int length = 0;
+      if (lookahead >= Tokens.MIN_MATCH && strstart > historyStart) {
+        byte prev = window[strstart - 1];
+        int max = Math.min(Tokens.MAX_MATCH, lookahead);
+        while (length < max && window[strstart + length] == prev) {
+          length++;
+        }
+      }
+
+      if (length >= Tokens.MIN_MATCH) {
+        encoder.match(length, 1);
+        strstart += length;
+        lookahead -= length;
+      } else {
+        encoder.literal(window[strstart]);
+        strstart++;
+        lookahead--;
+      }
+      if (endBlockIfDone()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Parses the next chunk optimally into the block, then ends the block
+   * at the seam or within the chunk if two blocks cost fewer bits than
+   * one. The block is written out first if its token buffer has little
+   * room left.
+   */
+  private boolean deflateOptimal(boolean flushing) {
+    int available = flushing ? lookahead : lookahead - MIN_LOOKAHEAD;
+    int room = BlockEncoder.TOKEN_BUFFER_SIZE - encoder.tokenCount;
+    if (room < MIN_OPTIMAL_CHUNK && room < available) {
+      emitBlock(false);
+      return true;
+    }
+
+    int n = Math.min(available, Math.min(OptimalParser.CHUNK_SIZE, room));
+    int before = encoder.tokenCount;
+    optimalParser.parse(strstart, n, lookahead, config.maxChain, config.niceLength, config.iterations,
+      minMatch, encoder);
+    strstart += n;
+    lookahead -= n;
+
+    int split = encoder.bestSplit(before, maxBlockType);
+    if (split > 0) {
+      blockStart += encoder.writeFirst(window, blockStart, maxBlockType, split);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Writes out the block if its token buffer is full, or its latest
+   * tokens if the data has changed character, and returns whether it did.
+   */
+  private boolean endBlockIfDone() {
+    if (encoder.isFull()) {
+      emitBlock(false);
+      return true;
+    }
+    int split = encoder.splitPoint(strstart - blockStart);
+    if (split > 0) {
+      blockStart += encoder.writeFirst(window, blockStart, maxBlockType, split);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Writes the tokens so far as a block, or the data as stored if it is
+   * within a stored run. A lazily held byte, not yet tokenized, is left
+   * for the next block.
+   */
+  private void emitBlock(boolean last) {
+    int end = matchAvailable ? strstart - 1 : strstart;
+    encoder.writeBlock(window, blockStart, end - blockStart, last,
+      blockStart < storedUntil ? BlockEncoder.STORED : maxBlockType);
+    blockStart = end;
+  }
+
+  private enum Parser {
+    STORED, QUICK, FAST, LAZY, OPTIMAL, HUFFMAN, RLE
+  }
+
+  /**
+   * The per-level tuning from zlib's {@code configuration_table}, and
+   * for the optimal levels, the search and the number of passes. There,
+   * {@code maxChain} bounds the depth of the binary tree walk.
+   */
+  private static class Config {
+    final int goodLength;
+    final int lazyLength;
+    final int niceLength;
+    final int maxChain;
+    final Parser parser;
+    final int maxBlockType;
+    final int iterations;
+
+    Config(int goodLength, int lazyLength, int niceLength, int maxChain, Parser parser) {
+      this.goodLength = goodLength;
+      this.lazyLength = lazyLength;
+      this.niceLength = niceLength;
+      this.maxChain = maxChain;
+      this.parser = parser;
+      this.maxBlockType = parser == Parser.STORED ? BlockEncoder.STORED
+        : parser == Parser.QUICK ? BlockEncoder.FIXED : BlockEncoder.DYNAMIC;
+      this.iterations = 0;
+    }
+
+    Config(int niceLength, int maxDepth, int iterations) {
+      this.goodLength = Tokens.MAX_MATCH;
+      this.lazyLength = 0;
+      this.niceLength = niceLength;
+      this.maxChain = maxDepth;
+      this.parser = Parser.OPTIMAL;
+      this.maxBlockType = BlockEncoder.DYNAMIC;
+      this.iterations = iterations;
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package org.kompress;
+
+import java.util.Arrays;
+
+/**
+ * Compresses whole buffers in one call, keeping its window and tables
+ * from call to call, for the many small records that would each cost
+ * a stream's allocations. Nothing is allocated after construction, and
+ * resetting between calls costs the same however little the last call
+ * compressed.
+ *
+ * <p>A context is not thread safe: keep one per thread.
+ */
+public final class DeflateContext {
+
+  private final DeflateCompressor compressor;
+  private final byte[] buffer;
+  private byte[] dictionary;
+
+  public DeflateContext() {
+    this(Deflate.DEFAULT_COMPRESSION);
+  }
+
+  public DeflateContext(int level) {
+    this(level, Deflate.DEFAULT_STRATEGY);
+  }
+
+  /**
+   * @param strategy one of {@link Deflate#DEFAULT_STRATEGY}, {@link Deflate#FILTERED},
+   *                 {@link Deflate#HUFFMAN_ONLY} or {@link Deflate#RLE}.
+   */
+  public DeflateContext(int level, int strategy) {
+    this.compressor = new DeflateCompressor(level);
+    this.compressor.setStrategy(strategy);
+    this.buffer = compressor.output.buf;
+  }
+
+  /**
+   * Primes every later call with the last 32 KiB, at most, of
+   * {@code b[off, off + len)}, which each record can then refer back to,
+   * or with nothing if {@code b} is null. Records must be decompressed
+   * with the same dictionary.
+   */
+  public void setDictionary(byte[] b, int off, int len) {
+    if (b == null) {
+      dictionary = null;
+      return;
+    }
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    int n = Math.min(len, DeflateCompressor.WINDOW_SIZE);
+    dictionary = Arrays.copyOfRange(b, off + len - n, off + len);
+  }
+
+  /**
+   * Compresses {@code src[off, off + len)} into {@code dst} from
+   * {@code dstOff} as a complete raw DEFLATE stream, and returns its
+   * length.
+   *
+   * <p>Given {@link Deflate#compressBound} bytes of room, the output is
+   * written in place. Otherwise it is copied from the context's own
+   * buffer, block by block, and if it doesn't fit an
+   * {@link IllegalArgumentException} is thrown, with {@code dst} partly
+   * written.
+   */
+  public int compress(byte[] src, int off, int len, byte[] dst, int dstOff) {
+    if (off < 0 || len < 0 || len > src.length - off || dstOff < 0 || dstOff > dst.length) {
+      throw new IndexOutOfBoundsException();
+    }
+    DeflateCompressor compressor = this.compressor;
+    BitWriter output = compressor.output;
+    compressor.reset();
+    if (dictionary != null) {
+      compressor.setDictionary(dictionary, 0, dictionary.length);
+    }
+    compressor.setInput(src, off, len);
+
+    if (dst.length - dstOff >= Deflate.compressBound(len)) {
+      output.reset(dst, dstOff);
+      try {
+        while (compressor.deflate(DeflateCompressor.FINISH)) {
+          // Each block lands in dst directly.
+        }
+        return output.pos - dstOff;
+      } finally {
+        output.reset(buffer, 0);
+      }
+    }
+
+    int pos = dstOff;
+    boolean more;
+    do {
+      more = compressor.deflate(DeflateCompressor.FINISH);
+      output.flushBytes();
+      if (output.pos > dst.length - pos) {
+        throw new IllegalArgumentException("Output larger than the " + (dst.length - dstOff)
+          + " bytes of room in dst");
+      }
+      System.arraycopy(buffer, 0, dst, pos, output.pos);
+      pos += output.pos;
+      output.pos = 0;
+    } while (more);
+    return pos - dstOff;
+  }
+}
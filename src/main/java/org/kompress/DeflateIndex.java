@@ -0,0 +1,527 @@
+package org.kompress;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.ZipException;
+
+/**
+ * Checkpoints from which a raw DEFLATE or GZIP stream can be decoded
+ * without starting at its beginning, in the manner of zlib's
+ * {@code zran.c}. Each records a block boundary: its bit offset into the
+ * compressed stream, its uncompressed offset, and the 32 KiB of output
+ * before it, which the blocks after it may copy from. Windows are kept
+ * compressed, so an index of a text file takes about a third of the
+ * 32 KiB per checkpoint that zran does.
+ *
+ * <p>Every member of a multi-member GZIP file starts with a checkpoint
+ * of its own, with an empty window.
+ *
+ * <p>An index is held in the same little endian layout in memory as on
+ * disk, so that an index file is used by mapping it, without reading it
+ * in. A 64 byte header:
+ *
+ * <pre>
+ *   0  magic "KZIX"          32  compressed length
+ *   4  version               40  CRC-32 of the last 4 KiB compressed
+ *   8  flags, 1 for GZIP     48  record table position
+ *  12  record size           56  reserved
+ *  16  checkpoint count
+ *  24  uncompressed length
+ * </pre>
+ *
+ * is followed by the deflated windows, then a table of 32 byte records,
+ * ordered by uncompressed offset: that offset, the bit offset, the file
+ * position of the window and its length. {@link #update} appends to a
+ * file without rewriting it: new windows, then a new record table, and
+ * only then a new header, so that a reader sees the old index or the
+ * new one.
+ */
+public class DeflateIndex {
+
+  /**
+   * The default uncompressed distance between checkpoints.
+   */
+  public static final long DEFAULT_SPAN = 1 << 20;
+
+  static final int WINDOW_SIZE = 1 << 15;
+
+  // "KZIX", read little endian.
+  private static final int MAGIC = 0x58495a4b;
+  private static final int VERSION = 1;
+  private static final int FLAG_GZIP = 1;
+  private static final int HEADER_SIZE = 64;
+  private static final int RECORD_SIZE = 32;
+  private static final int TAIL_SIZE = 1 << 12;
+
+  private final ByteBuffer image;
+  private final boolean gzip;
+  private final int count;
+  private final int recordSize;
+  private final int records;
+  private final long length;
+  private final long compressedLength;
+  private final int crc;
+
+  private DeflateIndex(ByteBuffer image) throws IOException {
+    this.image = image.order(ByteOrder.LITTLE_ENDIAN);
+    if (image.limit() < HEADER_SIZE || image.getInt(0) != MAGIC) {
+      throw new IOException("Invalid deflate index header");
+    }
+    if (image.getInt(4) != VERSION) {
+      throw new IOException("Unsupported deflate index version: " + image.getInt(4));
+    }
+    gzip = (image.getInt(8) & FLAG_GZIP) != 0;
+    recordSize = image.getInt(12);
+    long count = image.getLong(16);
+    long records = image.getLong(48);
+    if (recordSize < RECORD_SIZE || count < 1 || records < HEADER_SIZE
+      || count > (image.limit() - records) / recordSize) {
+      throw new IOException("Invalid deflate index record table");
+    }
+    this.count = (int) count;
+    this.records = (int) records;
+    // An update rewrites the header under any existing mapping.
+    length = image.getLong(24);
+    compressedLength = image.getLong(32);
+    crc = image.getInt(40);
+  }
+
+  public static DeflateIndex build(InputStream compressed, boolean gzip) throws IOException {
+    return build(compressed, gzip, DEFAULT_SPAN);
+  }
+
+  /**
+   * Builds an index by decoding a whole stream, with a checkpoint at the
+   * first block boundary at least {@code span} bytes of output past the
+   * one before.
+   */
+  public static DeflateIndex build(InputStream compressed, boolean gzip, long span) throws IOException {
+    if (span <= 0) {
+      throw new IllegalArgumentException("Span must be positive: " + span);
+    }
+    Scanner scanner = new Scanner(gzip, span, new TailInputStream(new BufferedInputStream(compressed)));
+    long base = 0;
+    if (gzip) {
+      base = readHeader(scanner.in);
+      if (base == -1) {
+        throw new EOFException("Empty GZIP stream");
+      }
+    }
+    scanner.scan(new DeflateInputStream(scanner.in), base, 0, 0, true);
+
+    ByteBuffer image = scanner.layout(HEADER_SIZE, null, HEADER_SIZE);
+    putHeader(image, gzip, scanner.count, scanner.length, scanner.in.count, scanner.in.crc(), image.limit()
+      - (long) scanner.count * RECORD_SIZE);
+    return new DeflateIndex(image);
+  }
+
+  /**
+   * Opens an index file by mapping it.
+   */
+  public static DeflateIndex open(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file)) {
+      return map(channel);
+    }
+  }
+
+  public static DeflateIndex update(Path file, SeekableByteChannel compressed) throws IOException {
+    return update(file, compressed, DEFAULT_SPAN);
+  }
+
+  /**
+   * Extends an index file with checkpoints for the GZIP members appended
+   * to {@code compressed} since it was last built or updated, and returns
+   * it mapped again.
+   *
+   * @throws IOException if the data indexed has since changed.
+   */
+  public static DeflateIndex update(Path file, SeekableByteChannel compressed, long span) throws IOException {
+    if (span <= 0) {
+      throw new IllegalArgumentException("Span must be positive: " + span);
+    }
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      DeflateIndex index = map(channel);
+      if (index.recordSize != RECORD_SIZE) {
+        throw new IOException("Unsupported deflate index record size: " + index.recordSize);
+      }
+      if (!index.matches(compressed)) {
+        throw new IOException("Indexed data has changed");
+      }
+      long end = index.compressedLength();
+      if (!index.gzip || compressed.size() == end) {
+        return index;
+      }
+
+      // Decode again from the last checkpoint, so that there's a window
+      // for the new ones, and stop checkpointing until a span past it.
+      int last = index.count - 1;
+      long bitOffset = index.bitOffset(last);
+      long resume = bitOffset >>> 3;
+      long seed = Math.max(0, Math.min(resume, end - TAIL_SIZE));
+      compressed.position(seed);
+      TailInputStream in = new TailInputStream(new BufferedInputStream(Channels.newInputStream(compressed)));
+      in.count = seed;
+      while (in.count < resume) {
+        if (in.read() == -1) {
+          throw new EOFException();
+        }
+      }
+      Scanner scanner = new Scanner(true, span, in);
+      scanner.scan(new DeflateInputStream(in, index.window(last), (int) bitOffset & 7), resume,
+        index.offset(last), -1, false);
+
+      ByteBuffer records = index.image.duplicate();
+      records.position(index.records).limit(index.records + index.count * index.recordSize);
+      long position = channel.size();
+      ByteBuffer tail = scanner.layout(0, records.slice(), position);
+      while (tail.hasRemaining()) {
+        channel.write(tail, position + tail.position());
+      }
+      channel.force(false);
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      putHeader(header, true, index.count + scanner.count, scanner.length, in.count, in.crc(),
+        position + tail.limit() - (long) (index.count + scanner.count) * RECORD_SIZE);
+      channel.write(header, 0);
+      channel.force(false);
+      return map(channel);
+    }
+  }
+
+  public void write(OutputStream out) throws IOException {
+    ByteBuffer b = image.duplicate();
+    b.clear();
+    byte[] buffer = new byte[1 << 16];
+    while (b.hasRemaining()) {
+      int n = Math.min(buffer.length, b.remaining());
+      b.get(buffer, 0, n);
+      out.write(buffer, 0, n);
+    }
+  }
+
+  /**
+   * Returns whether {@code compressed} still holds the data this index
+   * was built from, ending with the same bytes and perhaps with more
+   * after them.
+   */
+  public boolean matches(SeekableByteChannel compressed) throws IOException {
+    long end = compressedLength();
+    if (compressed.size() < end) {
+      return false;
+    }
+    ByteBuffer tail = ByteBuffer.allocate((int) Math.min(TAIL_SIZE, end));
+    compressed.position(end - tail.capacity());
+    while (tail.hasRemaining()) {
+      if (compressed.read(tail) == -1) {
+        return false;
+      }
+    }
+    CRC32 crc = new CRC32();
+    crc.update(tail.array());
+    return (int) crc.getValue() == this.crc;
+  }
+
+  private static DeflateIndex map(FileChannel channel) throws IOException {
+    if (channel.size() > Integer.MAX_VALUE) {
+      throw new IOException("Deflate index too large: " + channel.size());
+    }
+    return new DeflateIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+  }
+
+  private static void putHeader(ByteBuffer b, boolean gzip, int count, long length, long compressedLength,
+                                int crc, long records) {
+    b.order(ByteOrder.LITTLE_ENDIAN)
+      .putInt(0, MAGIC)
+      .putInt(4, VERSION)
+      .putInt(8, gzip ? FLAG_GZIP : 0)
+      .putInt(12, RECORD_SIZE)
+      .putLong(16, count)
+      .putLong(24, length)
+      .putLong(32, compressedLength)
+      .putInt(40, crc)
+      .putLong(48, records);
+  }
+
+  /**
+   * Reads a GZIP member header a byte at a time, so that {@code in} is
+   * left at the start of its data, returning its length, or -1 if
+   * {@code in} is at its end.
+   */
+  static int readHeader(InputStream in) throws IOException {
+    byte[] header = new byte[Gzip.MIN_HEADER_SIZE];
+    int n = 0;
+    while (true) {
+      int length = Gzip.headerLength(header, 0, n);
+      if (length != -1) {
+        return length;
+      }
+      int b = in.read();
+      if (b == -1) {
+        if (n == 0) {
+          return -1;
+        }
+        throw new EOFException("Truncated GZIP header");
+      }
+      if (n == header.length) {
+        header = Arrays.copyOf(header, n * 2);
+      }
+      header[n++] = (byte) b;
+    }
+  }
+
+  /**
+   * Returns the last checkpoint at or before {@code offset}.
+   */
+  int checkpoint(long offset) {
+    if (offset < 0) {
+      throw new IllegalArgumentException("Negative offset: " + offset);
+    }
+    // Empty members share an offset with their successor, which is the
+    // one to start from.
+    int lo = 0;
+    int hi = count - 1;
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (offset(mid) <= offset) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return lo;
+  }
+
+  boolean gzip() {
+    return gzip;
+  }
+
+  long offset(int checkpoint) {
+    return image.getLong(records + checkpoint * recordSize);
+  }
+
+  long bitOffset(int checkpoint) {
+    return image.getLong(records + checkpoint * recordSize + 8);
+  }
+
+  /**
+   * Returns the window before {@code checkpoint}, deflated.
+   */
+  byte[] deflatedWindow(int checkpoint) throws IOException {
+    int record = records + checkpoint * recordSize;
+    long position = image.getLong(record + 16);
+    int length = image.getInt(record + 24);
+    if (position < HEADER_SIZE || length < 0 || position > image.limit() - length) {
+      throw new IOException("Invalid deflate index window " + checkpoint);
+    }
+    byte[] window = new byte[length];
+    ByteBuffer b = image.duplicate();
+    b.position((int) position);
+    b.get(window);
+    return window;
+  }
+
+  byte[] window(int checkpoint) throws IOException {
+    return Deflate.decompress(deflatedWindow(checkpoint));
+  }
+
+  /**
+   * Returns the number of checkpoints.
+   */
+  public int size() {
+    return count;
+  }
+
+  /**
+   * Returns the length of the uncompressed data.
+   */
+  public long uncompressedLength() {
+    return length;
+  }
+
+  /**
+   * Returns the length of the compressed data indexed, up to the end of
+   * its last GZIP member or of its DEFLATE stream.
+   */
+  public long compressedLength() {
+    return compressedLength;
+  }
+
+  /**
+   * Decodes a stream to its end, collecting checkpoints.
+   */
+  private static final class Scanner {
+
+    private final boolean gzip;
+    private final long span;
+    private final TailInputStream in;
+    private final DeflateContext context = new DeflateContext(Deflate.DEFAULT_COMPRESSION);
+    private final byte[] window = new byte[WINDOW_SIZE];
+    private final byte[] deflated = new byte[Deflate.compressBound(WINDOW_SIZE)];
+    private final byte[] buffer = new byte[1 << 16];
+
+    private long[] bitOffsets = new long[64];
+    private long[] offsets = new long[64];
+    private byte[][] windows = new byte[64][];
+    private int count;
+    private long length;
+
+    Scanner(boolean gzip, long span, TailInputStream in) {
+      this.gzip = gzip;
+      this.span = span;
+      this.in = in;
+    }
+
+    /**
+     * Decodes from {@code inflater}, which starts {@code base} bytes into
+     * the compressed stream and {@code offset} bytes into the output, in
+     * a member that starts at {@code memberOffset}, or -1 if not known.
+     */
+    void scan(DeflateInputStream inflater, long base, long offset, long memberOffset, boolean checkpoint)
+      throws IOException {
+      byte[] trailer = new byte[Gzip.TRAILER_SIZE];
+      while (true) {
+        long last = offset;
+        while (true) {
+          long at = offset + inflater.decodedLength();
+          if (checkpoint || at - last >= span) {
+            add(base * 8 + inflater.bitPosition(), at, inflater);
+            last = at;
+            checkpoint = false;
+          }
+          // Decodes, discarding the output, to the end of the block:
+          // reads return there, if not sooner.
+          int n;
+          do {
+            n = inflater.read(buffer);
+          } while (n != -1 && !inflater.betweenBlocks());
+          if (inflater.finished()) {
+            break;
+          }
+        }
+
+        base += (inflater.bitPosition() + 7) >>> 3;
+        offset += inflater.decodedLength();
+        if (!gzip) {
+          break;
+        }
+        new DataInputStream(in).readFully(trailer);
+        if (memberOffset >= 0
+          && (Gzip.getInt(trailer, 4) & 0xffffffffL) != ((offset - memberOffset) & 0xffffffffL)) {
+          throw new ZipException("Incorrect length of GZIP member at " + base);
+        }
+        base += Gzip.TRAILER_SIZE;
+        int header = readHeader(in);
+        if (header == -1) {
+          break;
+        }
+        base += header;
+        inflater = new DeflateInputStream(in);
+        memberOffset = offset;
+        checkpoint = true;
+      }
+      length = offset;
+    }
+
+    private void add(long bitOffset, long offset, DeflateInputStream inflater) {
+      if (count == offsets.length) {
+        bitOffsets = Arrays.copyOf(bitOffsets, count * 2);
+        offsets = Arrays.copyOf(offsets, count * 2);
+        windows = Arrays.copyOf(windows, count * 2);
+      }
+      int n = inflater.window(window);
+      bitOffsets[count] = bitOffset;
+      offsets[count] = offset;
+      windows[count] = Arrays.copyOf(deflated, context.compress(window, 0, n, deflated, 0));
+      count++;
+    }
+
+    /**
+     * Lays out the windows collected, as if at file position
+     * {@code start}, then a record table of any {@code old} records
+     * followed by the new ones, leaving {@code prefix} bytes free at the
+     * front.
+     */
+    ByteBuffer layout(int prefix, ByteBuffer old, long start) {
+      long size = prefix + (old == null ? 0 : old.remaining()) + (long) count * RECORD_SIZE;
+      for (int i = 0; i < count; i++) {
+        size += windows[i].length;
+      }
+      if (size > Integer.MAX_VALUE) {
+        throw new IllegalStateException("Deflate index too large: " + size);
+      }
+      ByteBuffer b = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+      long[] positions = new long[count];
+      b.position(prefix);
+      for (int i = 0; i < count; i++) {
+        positions[i] = start + b.position() - prefix;
+        b.put(windows[i]);
+      }
+      if (old != null) {
+        b.put(old);
+      }
+      for (int i = 0; i < count; i++) {
+        b.putLong(offsets[i]).putLong(bitOffsets[i]).putLong(positions[i]).putInt(windows[i].length).putInt(0);
+      }
+      b.position(prefix);
+      return b;
+    }
+  }
+
+  /**
+   * Counts the bytes read and keeps the last of them, which fingerprint
+   * the data indexed.
+   */
+  private static final class TailInputStream extends FilterInputStream {
+
+    private final byte[] tail = new byte[TAIL_SIZE];
+    private long count;
+
+    TailInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = in.read();
+      if (b != -1) {
+        tail[(int) count++ & (TAIL_SIZE - 1)] = (byte) b;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = in.read(b, off, len);
+      for (int i = 0; i < n; i++) {
+        tail[(int) count++ & (TAIL_SIZE - 1)] = b[off + i];
+      }
+      return n;
+    }
+
+    /**
+     * Returns the CRC-32 of the last bytes read, up to 4 KiB.
+     */
+    int crc() {
+      CRC32 crc = new CRC32();
+      int n = (int) Math.min(TAIL_SIZE, count);
+      int start = (int) (count - n) & (TAIL_SIZE - 1);
+      int first = Math.min(n, TAIL_SIZE - start);
+      crc.update(tail, start, first);
+      crc.update(tail, 0, n - first);
+      return (int) crc.getValue();
+    }
+  }
+}
@@ -3,43 +3,330 @@ package org.kompress;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
+import java.util.concurrent.Executor;
 
 /**
  * Decompresses using the
  * <a href="https://www.ietf.org/rfc/rfc1951.txt">DEFLATE</a> compression scheme.
+ *
+ * <p>A stream compressed with a preset dictionary, as by
+ * {@link DeflateOutputStream#setDictionary}, must be read with the same
+ * dictionary.
  */
 public class DeflateInputStream extends InputStream {
 
+  private static final int WINDOW_SIZE = 1 << 15;
+
+  /**
+   * The bytes a stream acquires from a {@link DecompressionBudget}: its
+   * window, and the largest pair of decoding tables, of 2<sup>15</sup>
+   * entries each, that a block may need.
+   */
+  public static final int MEMORY = WINDOW_SIZE + 2 * 4 * (1 << 15);
+
   private final DeflateState state = new DeflateState();
-  private final CircularByteBuffer history = new CircularByteBuffer(1 << 15);
+  private final CircularByteBuffer history;
   private final InputStream compressed;
+  // Where input comes from instead, when reading a channel.
+  private final ChannelInput channel;
+  private ByteBuffer input;
+  // Where the symbol, or block header, being decoded from a channel
+  // started, to go back to if the input runs out partway.
+  private int markPosition;
+  private long markBytesRead;
+  private int markBits;
+  private int markNbits;
+  private int markSkipBits;
+  // Whether the last fill() stopped for want of input from a
+  // non-blocking channel, rather than at the end.
+  private boolean starved;
+  // Held until the end of the stream, if there is a budget.
+  private DecompressionBudget.Lease lease;
 
   public DeflateInputStream(InputStream compressed) {
     this.compressed = compressed;
+    channel = null;
+    history = new CircularByteBuffer(WINDOW_SIZE);
+  }
+
+  /**
+   * Reads a stream from {@code position} in a file, with the bit reader
+   * taking input straight from the file mapped into memory, or where it
+   * can't be mapped, from large positional reads. The channel's own
+   * position isn't used, and it is closed with this stream.
+   */
+  public DeflateInputStream(FileChannel channel, long position) {
+    this(new ChannelInput(channel, position, ChannelInput.MAP_SIZE));
+  }
+
+  DeflateInputStream(ChannelInput channel) {
+    this.channel = channel;
+    compressed = null;
+    history = new CircularByteBuffer(WINDOW_SIZE);
+  }
+
+  /**
+   * Opens a raw DEFLATE file, or if {@code gzip}, the first member of a
+   * GZIP file, whose trailer is not checked, as
+   * {@link #DeflateInputStream(FileChannel, long)} reads it.
+   */
+  public static DeflateInputStream open(Path path, boolean gzip) throws IOException {
+    FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      return new DeflateInputStream(file, gzip ? headerLength(file) : 0);
+    } catch (IOException | RuntimeException e) {
+      file.close();
+      throw e;
+    }
+  }
+
+  private static int headerLength(FileChannel file) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(Gzip.MIN_HEADER_SIZE);
+    while (true) {
+      if (file.read(header, header.position()) == -1) {
+        throw new EOFException("Truncated GZIP header");
+      }
+      int length = Gzip.headerLength(header.array(), 0, header.position());
+      if (length != -1) {
+        return length;
+      }
+      if (!header.hasRemaining()) {
+        ByteBuffer larger = ByteBuffer.allocate(header.capacity() * 2);
+        header.flip();
+        header = larger.put(header);
+      }
+    }
+  }
+
+  /**
+   * Reads a stream once {@link #MEMORY} bytes are acquired from
+   * {@code budget}, which has them back at the end of the stream or when
+   * this is closed.
+   *
+   * @throws IOException if the budget has no room in time.
+   */
+  public DeflateInputStream(InputStream compressed, DecompressionBudget budget) throws IOException {
+    this.compressed = compressed;
+    channel = null;
+    lease = budget.acquire(MEMORY);
+    history = new CircularByteBuffer(WINDOW_SIZE);
+  }
+
+  public static InputStream pipelined(InputStream compressed) {
+    return pipelined(compressed, ReadAheadInputStream.DEFAULT_DEPTH, ReadAheadInputStream.DEFAULT_BUFFER_SIZE,
+      true, null);
+  }
+
+  /**
+   * Returns a stream that decodes {@code compressed} with its input read
+   * ahead on another thread, into {@code depth} buffers of
+   * {@code bufferSize} bytes, so that decoding doesn't wait on storage.
+   * If {@code decodeAhead}, decoding moves to a thread of its own as
+   * well, filling as many buffers of output ahead of the reader.
+   *
+   * @param executor runs both, or null for threads of their own; see
+   *                 {@link ReadAheadInputStream}.
+   */
+  public static InputStream pipelined(InputStream compressed, int depth, int bufferSize, boolean decodeAhead,
+                                      Executor executor) {
+    InputStream decoded = new DeflateInputStream(new ReadAheadInputStream(compressed, depth, bufferSize, executor));
+    return decodeAhead ? new ReadAheadInputStream(decoded, depth, bufferSize, executor) : decoded;
+  }
+
+  /**
+   * Reads a stream that may refer back into {@code dictionary}, of which
+   * only the last 32 KiB can be reached, or a stream with no dictionary if
+   * it is null.
+   */
+  public DeflateInputStream(InputStream compressed, byte[] dictionary) {
+    this(compressed);
+    if (dictionary != null) {
+      history.preset(dictionary, 0, dictionary.length);
+    }
+  }
+
+  /**
+   * Resumes reading a stream between two of its blocks, from where
+   * {@link #bitPosition()} and {@link #window(byte[])} were taken:
+   * {@code compressed} is positioned at the byte holding the next block's
+   * first bit, which is {@code bitOffset} bits into it.
+   */
+  DeflateInputStream(InputStream compressed, byte[] window, int bitOffset) {
+    this(compressed, window);
+    state.skipBits = bitOffset;
+  }
+
+  /**
+   * Returns the number of bits of compressed input decoded so far,
+   * whether or not their output has been read.
+   */
+  long bitPosition() {
+    return state.bytesRead * 8 - state.nbits;
+  }
+
+  /**
+   * Returns the number of bytes decoded so far, whether or not they
+   * have been read.
+   */
+  long decodedLength() {
+    return history.written;
+  }
+
+  /**
+   * Returns whether decoding has stopped between two blocks, from where
+   * it can resume with only the bit position and the window.
+   */
+  boolean betweenBlocks() {
+    return !state.inBlock && !state.finished;
+  }
+
+  /**
+   * Copies the last 32 KiB decoded, or all of it if less, into
+   * {@code dst}, returning how many bytes that is.
+   */
+  int window(byte[] dst) {
+    return history.window(dst);
+  }
+
+  /**
+   * Returns whether the final block has been decoded.
+   */
+  boolean finished() {
+    return state.finished;
   }
 
   @Override
   public int read() throws IOException {
-    if (history.maxRead() > 0) {
+    if (history.maxRead() > 0 || fill()) {
       return history.read();
     }
 
-    return slowRead();
+    return -1;
   }
 
-  private int slowRead() throws IOException {
-    if (state.finished) {
-      return -1;
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (len == 0) {
+      return 0;
     }
+    if (history.maxRead() > 0 || fill()) {
+      return history.read(b, off, len);
+    }
+
+    return -1;
+  }
 
-    refill();
+  /**
+   * Reads decoded data into {@code dst}, from a channel that may be
+   * non-blocking, returning how many bytes that was: 0 if there is no
+   * input to decode for now, or -1 at the end of the stream.
+   */
+  int read(ByteBuffer dst) throws IOException {
+    if (!dst.hasRemaining()) {
+      return 0;
+    }
+    int start = dst.position();
+    while (dst.hasRemaining() && (history.maxRead() > 0 || fill())) {
+      history.read(dst);
+    }
+    int n = dst.position() - start;
+    return n > 0 || starved ? n : -1;
+  }
 
-    if (history.maxRead() == 0) {
-      state.finished = true;
-      return -1;
+  /**
+   * Closes the compressed stream, and gives back memory taken from a
+   * budget.
+   */
+  @Override
+  public void close() throws IOException {
+    release();
+    if (channel != null) {
+      input = null;
+      channel.close();
     } else {
-      return history.read();
+      compressed.close();
+    }
+  }
+
+  /**
+   * Decodes more output into the history buffer, returning
+   * false once the stream is exhausted.
+   */
+  private boolean fill() throws IOException {
+    starved = false;
+    // Blocks may be empty, like those that end a sync flush.
+    while (history.maxRead() == 0) {
+      if (state.finished) {
+        // The tables are no longer needed, though the window may be.
+        state.lenLitDecoder = null;
+        state.distDecoder = null;
+        release();
+        return false;
+      }
+      if (channel == null) {
+        refill();
+      } else if (!refillFromChannel()) {
+        starved = true;
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Decodes what the input buffered from the channel holds, going back
+   * to the start of a symbol or block header it ends partway through,
+   * and then buffers more; returns false if a non-blocking channel has
+   * none for now.
+   */
+  private boolean refillFromChannel() throws IOException {
+    try {
+      refill();
+      return true;
+    } catch (Underflow e) {
+      rollBack();
+    }
+    if (history.maxRead() > 0) {
+      return true;
+    }
+    int before = input == null ? 0 : input.remaining();
+    input = channel.more(input);
+    // Past the end, running out of input is an error to be found.
+    return input.remaining() > before || channel.ended();
+  }
+
+  private void mark() {
+    if (channel != null) {
+      markPosition = input == null ? 0 : input.position();
+      markBytesRead = state.bytesRead;
+      markBits = state.bits;
+      markNbits = state.nbits;
+      markSkipBits = state.skipBits;
+    }
+  }
+
+  private void rollBack() {
+    if (input != null) {
+      input.position(markPosition);
+    }
+    state.bytesRead = markBytesRead;
+    state.bits = markBits;
+    state.nbits = markNbits;
+    state.skipBits = markSkipBits;
+  }
+
+  private void release() {
+    if (lease != null) {
+      lease.close();
+      lease = null;
     }
   }
 
@@ -47,6 +334,11 @@ public class DeflateInputStream extends InputStream {
     assert !state.finished;
 
     if (!state.inBlock) {
+      mark();
+      if (state.skipBits > 0) {
+        bits(state.skipBits);
+        state.skipBits = 0;
+      }
       state.lastBlock = bits(1) == 1;
       switch (bits(2)) {
         case 0:
@@ -70,10 +362,12 @@ public class DeflateInputStream extends InputStream {
     switch (state.blockType) {
       case NONE:
         while (history.maxWrite() > 0 && state.uncompressedLen > 0) {
-          int read = compressed.read();
+          mark();
+          int read = nextByte();
           if (read == -1) {
             throw new EOFException();
           }
+          state.bytesRead++;
           history.write((byte) (read & 0xff));
           state.uncompressedLen--;
         }
@@ -87,6 +381,7 @@ public class DeflateInputStream extends InputStream {
         // A single DEFLATE code can create
         // up to 258 bytes in the output.
         while (history.maxWrite() > 258) {
+          mark();
           int llCode = decode(state.lenLitDecoder);
           assert llCode <= 285;
 
@@ -215,7 +510,9 @@ public class DeflateInputStream extends InputStream {
       distanceTable[i] = createCode(i, 5);
     }
 
-    int[] lenLitTable = new int[286];
+    // Codes 286 and 287 never occur in the data, but
+    // they take part in the construction of the code.
+    int[] lenLitTable = new int[288];
     for (int i = 0; i < lenLitTable.length; i++) {
       if (i < 144) {
         lenLitTable[i] = createCode(i, 8);
@@ -272,22 +569,53 @@ public class DeflateInputStream extends InputStream {
   }
 
   private void readByte() throws IOException {
-    int read = compressed.read();
+    int read = nextByte();
     if (read == -1) throw new EOFException();
+    state.bytesRead++;
     state.bits = state.bits | (read << state.nbits);
     state.nbits += 8;
   }
 
+  private int nextByte() throws IOException {
+    if (channel == null) {
+      return compressed.read();
+    }
+    if (input == null || !input.hasRemaining()) {
+      if (!channel.ended()) {
+        throw Underflow.INSTANCE;
+      }
+      return -1;
+    }
+    return input.get() & 0xff;
+  }
+
   private int keepLastNBits(int value, int n) {
     return value & ((1 << n) - 1);
   }
 
+  /**
+   * Thrown when the input buffered from a channel runs out before it has
+   * ended, for decoding to go back to its mark and wait for more.
+   */
+  private static final class Underflow extends IOException {
+    private static final long serialVersionUID = 1L;
+    static final Underflow INSTANCE = new Underflow();
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+      return this;
+    }
+  }
+
   private enum BlockType {
     NONE, FIXED, DYNAMIC
   }
 
   private static class DeflateState {
     int uncompressedLen;
+    long bytesRead;
+    // Bits to skip before the first block.
+    int skipBits;
     int nbits;
     int bits;
     boolean finished = false;
@@ -305,6 +633,9 @@ public class DeflateInputStream extends InputStream {
     private int maxRead = 0;
     private int nextRead = 0;
     private int nextWrite = 0;
+    private int presetLength;
+    // Not counting preset bytes.
+    private long written;
 
     private CircularByteBuffer(int capacity) {
       this.capacity = roundUpToPower2(capacity);
@@ -330,7 +661,52 @@ public class DeflateInputStream extends InputStream {
       maxRead--;
       int readIndex = nextRead;
       nextRead = (nextRead + 1) & mask;
-      return bytes[readIndex];
+      return bytes[readIndex] & 0xff;
+    }
+
+    public int read(byte[] dst, int off, int len) {
+      int n = Math.min(len, maxRead);
+      int first = Math.min(n, capacity - nextRead);
+      System.arraycopy(bytes, nextRead, dst, off, first);
+      System.arraycopy(bytes, 0, dst, off + first, n - first);
+      maxRead -= n;
+      nextRead = (nextRead + n) & mask;
+      return n;
+    }
+
+    public void read(ByteBuffer dst) {
+      int n = Math.min(dst.remaining(), maxRead);
+      int first = Math.min(n, capacity - nextRead);
+      dst.put(bytes, nextRead, first);
+      dst.put(bytes, 0, n - first);
+      maxRead -= n;
+      nextRead = (nextRead + n) & mask;
+    }
+
+    /**
+     * Fills the history with the last of {@code b[off, off + len)},
+     * as if it had been written and read.
+     */
+    public void preset(byte[] b, int off, int len) {
+      assert maxRead == 0 && nextWrite == 0;
+      int n = Math.min(len, capacity);
+      System.arraycopy(b, off + len - n, bytes, 0, n);
+      nextWrite = n & mask;
+      nextRead = nextWrite;
+      presetLength = n;
+    }
+
+    /**
+     * Copies the last bytes written, preset ones included, up to the
+     * capacity, into {@code dst}, returning how many.
+     */
+    public int window(byte[] dst) {
+      int n = (int) Math.min(capacity, presetLength + written);
+      int start = (nextWrite - n) & mask;
+      int first = Math.min(n, capacity - start);
+      System.arraycopy(bytes, start, dst, 0, first);
+      System.arraycopy(bytes, 0, dst, first, n - first);
+      return n;
     }
 
     public int maxWrite() {
@@ -340,6 +716,7 @@ public class DeflateInputStream extends InputStream {
     public void write(byte b) {
       assert maxWrite() > 0;
       maxRead++;
+      written++;
       int writeIndex = nextWrite;
       nextWrite = (nextWrite + 1) & mask;
       bytes[writeIndex] = b;
@@ -0,0 +1,236 @@
+package org.kompress;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compresses using the
+ * <a href="https://www.ietf.org/rfc/rfc1951.txt">DEFLATE</a> compression scheme.
+ *
+ * <p>Levels follow zlib: {@link Deflate#NO_COMPRESSION} writes stored
+ * blocks only, levels 2 and 3 parse greedily, and levels 4 to 9 parse
+ * lazily with increasingly long hash chain searches. Each block is written
+ * as whichever of a stored, fixed or dynamic Huffman block is smallest.
+ *
+ * <p>{@link Deflate#BEST_SPEED} is tuned for throughput rather than
+ * ratio, like zlib-ng's level 1: a single hash probe per position, no
+ * hash chains, and fixed Huffman codes instead of building dynamic ones.
+ *
+ * <p>Levels 10 to {@link Deflate#MAX_COMPRESSION} go beyond zlib, choosing
+ * matches by shortest path under an iteratively refined cost model, as
+ * Zopfli does. They are many times slower, and suit data that is
+ * compressed once and read often. Streams share no state, so separate
+ * files can be compressed on separate threads.
+ *
+ * <p>{@link #flush(int)} makes everything written so far decodable, for
+ * protocols that send messages as they are written.
+ *
+ * <p>A strategy from {@link Deflate} narrows the search for data it suits,
+ * as zlib's do: {@link Deflate#FILTERED}, {@link Deflate#HUFFMAN_ONLY} and
+ * {@link Deflate#RLE}. It may be changed between writes, as may the level,
+ * and either takes effect from a new block.
+ *
+ * <p>A preset dictionary, such as one from {@link DictionaryTrainer}, lets
+ * short messages refer back to content typical of them; the reader must
+ * be given the same dictionary.
+ */
+public class DeflateOutputStream extends OutputStream {
+
+  /**
+   * Compresses nothing more than usual; only flushes the underlying stream.
+   */
+  public static final int NO_FLUSH = DeflateCompressor.NO_FLUSH;
+
+  /**
+   * Compresses all pending input and ends with an empty stored block, so
+   * that the output is byte aligned and decodes to everything written.
+   */
+  public static final int SYNC_FLUSH = DeflateCompressor.SYNC_FLUSH;
+
+  /**
+   * A {@link #SYNC_FLUSH} after which no match refers back past the flush,
+   * so that decoding can start from there.
+   */
+  public static final int FULL_FLUSH = DeflateCompressor.FULL_FLUSH;
+
+  /**
+   * Ends the stream, as {@link #finish()} does.
+   */
+  public static final int FINISH = DeflateCompressor.FINISH;
+
+  private final DeflateCompressor compressor;
+  private final OutputStream out;
+  private final byte[] single = new byte[1];
+  private boolean closed;
+
+  public DeflateOutputStream(OutputStream out) {
+    this(out, Deflate.DEFAULT_COMPRESSION);
+  }
+
+  public DeflateOutputStream(OutputStream out, int level) {
+    this(out, level, Deflate.DEFAULT_STRATEGY);
+  }
+
+  /**
+   * @param strategy one of {@link Deflate#DEFAULT_STRATEGY}, {@link Deflate#FILTERED},
+   *                 {@link Deflate#HUFFMAN_ONLY} or {@link Deflate#RLE}.
+   */
+  public DeflateOutputStream(OutputStream out, int level, int strategy) {
+    this.compressor = new DeflateCompressor(level);
+    this.compressor.setStrategy(strategy);
+    this.out = out;
+  }
+
+  /**
+   * Primes the compressor with the last 32 KiB, at most, of
+   * {@code b[off, off + len)}, which the data can then refer back to.
+   *
+   * @throws IllegalStateException if anything has been written.
+   */
+  public void setDictionary(byte[] b, int off, int len) {
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    compressor.setDictionary(b, off, len);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    single[0] = (byte) b;
+    write(single, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (compressor.finished()) {
+      throw new IOException("write beyond end of stream");
+    }
+    if (len == 0) {
+      return;
+    }
+
+    compressor.setInput(b, off, len);
+    while (compressor.deflate(DeflateCompressor.NO_FLUSH)) {
+      drain();
+    }
+    drain();
+  }
+
+  /**
+   * Compresses all remaining input and writes the final block,
+   * without closing the underlying stream.
+   */
+  public void finish() throws IOException {
+    if (compressor.finished()) {
+      return;
+    }
+    while (compressor.deflate(DeflateCompressor.FINISH)) {
+      drain();
+    }
+    drain();
+  }
+
+  @Override
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  /**
+   * Compresses pending input as {@code mode} directs, writes the result,
+   * and flushes the underlying stream. Repeating a sync or full flush
+   * with nothing written in between writes nothing more.
+   *
+   * @param mode one of {@link #NO_FLUSH}, {@link #SYNC_FLUSH},
+   *             {@link #FULL_FLUSH} or {@link #FINISH}.
+   */
+  public void flush(int mode) throws IOException {
+    switch (mode) {
+      case NO_FLUSH:
+        break;
+      case SYNC_FLUSH:
+      case FULL_FLUSH:
+        while (compressor.deflate(mode)) {
+          drain();
+        }
+        drain();
+        break;
+      case FINISH:
+        finish();
+        break;
+      default:
+        throw new IllegalArgumentException("Invalid flush mode: " + mode);
+    }
+    out.flush();
+  }
+
+  /**
+   * Compresses everything written so far under the current strategy,
+   * ending its block, and switches to {@code strategy} for what follows.
+   * Unlike {@link #flush(int)}, this adds no empty block and doesn't flush
+   * the underlying stream.
+   */
+  public void setStrategy(int strategy) throws IOException {
+    if (strategy == compressor.strategy()) {
+      return;
+    }
+    if (strategy < Deflate.DEFAULT_STRATEGY || strategy > Deflate.RLE) {
+      throw new IllegalArgumentException("Invalid strategy: " + strategy);
+    }
+    endBlock();
+    compressor.setStrategy(strategy);
+  }
+
+  /**
+   * Compresses everything written so far at the current level, ending its
+   * block, and switches to {@code level} for what follows, as zlib's
+   * {@code deflateParams} does. The output remains a single stream.
+   */
+  public void setLevel(int level) throws IOException {
+    if (level == compressor.level()) {
+      return;
+    }
+    if (level < Deflate.NO_COMPRESSION || level > Deflate.MAX_COMPRESSION) {
+      throw new IllegalArgumentException("Invalid compression level: " + level);
+    }
+    endBlock();
+    compressor.setLevel(level);
+  }
+
+  public int level() {
+    return compressor.level();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      finish();
+    } finally {
+      out.close();
+    }
+  }
+
+  private void endBlock() throws IOException {
+    if (!compressor.finished()) {
+      while (compressor.deflate(DeflateCompressor.BLOCK)) {
+        drain();
+      }
+      drain();
+    }
+  }
+
+  private void drain() throws IOException {
+    BitWriter output = compressor.output;
+    output.flushBytes();
+    if (output.pos > 0) {
+      out.write(output.buf, 0, output.pos);
+      output.pos = 0;
+    }
+  }
+}
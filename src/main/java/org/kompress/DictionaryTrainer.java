@@ -0,0 +1,394 @@
+package org.kompress;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Builds a preset dictionary from sample messages, for compressing many
+ * small messages alike, such as JSON records, that are too short to find
+ * much to match within themselves.
+ *
+ * <p>Segments are chosen as zstd's COVER trainer chooses them. The input
+ * is cut into one epoch per segment the dictionary has room for, and
+ * from each the segment is taken whose 8-byte substrings recur in the
+ * most samples, counting each substring once, and only until a segment
+ * is chosen that holds it. Substrings found in a single sample are
+ * ignored. The segments are laid out by value, the most valuable last,
+ * where they are nearest the data and distances are cheapest.
+ *
+ * <p>The segment length is chosen by compressing samples held out from
+ * training, one in every {@value #HOLD_OUT}, with each candidate's
+ * dictionary. Those same samples give the expected gain that
+ * {@link #train()} reports. With fewer than {@value #MIN_HELD_OUT}
+ * samples to hold out, all are trained on and measured, and the gain is
+ * overstated.
+ */
+public final class DictionaryTrainer {
+
+  /**
+   * The most of a dictionary that DEFLATE distances can reach.
+   */
+  public static final int MAX_DICTIONARY_SIZE = DeflateCompressor.WINDOW_SIZE;
+
+  private static final int DMER_LENGTH = 8;
+  private static final int[] SEGMENT_LENGTHS = {64, 256, 1024};
+
+  static final int HOLD_OUT = 5;
+  static final int MIN_HELD_OUT = 2;
+
+  private final int maxSize;
+  private final int level;
+  private final List<byte[]> samples = new ArrayList<>();
+
+  public DictionaryTrainer() {
+    this(MAX_DICTIONARY_SIZE, Deflate.DEFAULT_COMPRESSION);
+  }
+
+  /**
+   * @param maxSize the dictionary's largest size, at most {@link #MAX_DICTIONARY_SIZE}.
+   * @param level   the level the messages will be compressed at.
+   */
+  public DictionaryTrainer(int maxSize, int level) {
+    if (maxSize < 1 || maxSize > MAX_DICTIONARY_SIZE) {
+      throw new IllegalArgumentException("Invalid dictionary size: " + maxSize);
+    }
+    if (level < Deflate.NO_COMPRESSION || level > Deflate.MAX_COMPRESSION) {
+      throw new IllegalArgumentException("Invalid compression level: " + level);
+    }
+    this.maxSize = maxSize;
+    this.level = level;
+  }
+
+  public void addSample(byte[] b) {
+    addSample(b, 0, b.length);
+  }
+
+  /**
+   * Adds a copy of {@code b[off, off + len)} as one sample message.
+   */
+  public void addSample(byte[] b, int off, int len) {
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    samples.add(Arrays.copyOfRange(b, off, off + len));
+  }
+
+  /**
+   * Builds a dictionary from all the samples added so far.
+   *
+   * @throws IllegalStateException if no samples have been added.
+   */
+  public Result train() {
+    if (samples.isEmpty()) {
+      throw new IllegalStateException("No samples");
+    }
+
+    List<byte[]> training = new ArrayList<>();
+    List<byte[]> heldOut = new ArrayList<>();
+    for (int i = 0; i < samples.size(); i++) {
+      (i % HOLD_OUT == HOLD_OUT - 1 ? heldOut : training).add(samples.get(i));
+    }
+    if (heldOut.size() < MIN_HELD_OUT) {
+      training = samples;
+      heldOut = samples;
+    }
+
+    DeflateContext context = new DeflateContext(level);
+    byte[] best = null;
+    int bestSegmentLength = 0;
+    long bestSize = Long.MAX_VALUE;
+    for (int segmentLength : SEGMENT_LENGTHS) {
+      byte[] dictionary = build(training, maxSize, segmentLength);
+      long size = compressedSize(context, heldOut, dictionary);
+      if (size < bestSize) {
+        best = dictionary;
+        bestSegmentLength = segmentLength;
+        bestSize = size;
+      }
+    }
+
+    long length = 0;
+    for (byte[] sample : heldOut) {
+      length += sample.length;
+    }
+    long baseline = compressedSize(context, heldOut, null);
+    if (training != heldOut) {
+      best = build(samples, maxSize, bestSegmentLength);
+    }
+    return new Result(best, length, baseline, bestSize);
+  }
+
+  /**
+   * A dictionary, and how well it compressed the samples measured.
+   */
+  public static final class Result {
+    private final byte[] dictionary;
+    private final long sampleLength;
+    private final long compressedLength;
+    private final long compressedLengthWithDictionary;
+
+    Result(byte[] dictionary, long sampleLength, long compressedLength, long compressedLengthWithDictionary) {
+      this.dictionary = dictionary;
+      this.sampleLength = sampleLength;
+      this.compressedLength = compressedLength;
+      this.compressedLengthWithDictionary = compressedLengthWithDictionary;
+    }
+
+    /**
+     * The dictionary, for {@link DeflateOutputStream#setDictionary},
+     * {@link DeflateContext#setDictionary} and
+     * {@link DeflateInputStream#DeflateInputStream(java.io.InputStream, byte[])}.
+     */
+    public byte[] dictionary() {
+      return dictionary.clone();
+    }
+
+    /**
+     * The total length of the samples measured.
+     */
+    public long sampleLength() {
+      return sampleLength;
+    }
+
+    /**
+     * The samples' total length compressed one by one, without a dictionary.
+     */
+    public long compressedLength() {
+      return compressedLength;
+    }
+
+    /**
+     * The samples' total length compressed one by one, with the dictionary.
+     */
+    public long compressedLengthWithDictionary() {
+      return compressedLengthWithDictionary;
+    }
+
+    /**
+     * How many times smaller the samples compress with the dictionary
+     * than without it.
+     */
+    public double improvement() {
+      return (double) compressedLength / compressedLengthWithDictionary;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d byte dictionary: %d bytes compress to %d, rather than %d (%.2fx)",
+        dictionary.length, sampleLength, compressedLengthWithDictionary, compressedLength, improvement());
+    }
+  }
+
+  private static long compressedSize(DeflateContext context, List<byte[]> samples, byte[] dictionary) {
+    int maxLength = 0;
+    for (byte[] sample : samples) {
+      maxLength = Math.max(maxLength, sample.length);
+    }
+    byte[] dst = new byte[Deflate.compressBound(maxLength)];
+    context.setDictionary(dictionary, 0, dictionary == null ? 0 : dictionary.length);
+    long size = 0;
+    for (byte[] sample : samples) {
+      size += context.compress(sample, 0, sample.length, dst, 0);
+    }
+    return size;
+  }
+
+  /**
+   * Chooses segments of {@code segmentLength} bytes from {@code samples}
+   * into a dictionary of at most {@code maxSize} bytes.
+   */
+  static byte[] build(List<byte[]> samples, int maxSize, int segmentLength) {
+    segmentLength = Math.min(segmentLength, maxSize);
+    if (segmentLength < DMER_LENGTH) {
+      return new byte[0];
+    }
+    int total = 0;
+    for (byte[] sample : samples) {
+      total = Math.addExact(total, sample.length);
+    }
+    byte[] data = new byte[total];
+    int[] dmers = new int[total];
+    DmerTable table = new DmerTable();
+    // The number of samples holding each substring,
+    // and the last of them.
+    int[] value = new int[16];
+    int[] lastSample = new int[16];
+
+    // Numbers each position's substring, or -1 for
+    // positions too near the end of their sample.
+    int pos = 0;
+    for (int s = 0; s < samples.size(); s++) {
+      byte[] sample = samples.get(s);
+      System.arraycopy(sample, 0, data, pos, sample.length);
+      for (int i = 0; i < sample.length; i++) {
+        if (i + DMER_LENGTH > sample.length) {
+          dmers[pos + i] = -1;
+          continue;
+        }
+        int id = table.id(key(sample, i));
+        if (id == value.length) {
+          value = Arrays.copyOf(value, 2 * id);
+          lastSample = Arrays.copyOf(lastSample, 2 * id);
+        }
+        if (value[id] == 0 || lastSample[id] != s) {
+          lastSample[id] = s;
+          value[id]++;
+        }
+        dmers[pos + i] = id;
+      }
+      pos += sample.length;
+    }
+    // A substring in one sample is unlikely to be in the next.
+    for (int id = 0; id < table.size; id++) {
+      if (value[id] < 2) {
+        value[id] = 0;
+      }
+    }
+
+    int epochs = Math.max(1, Math.min(maxSize / segmentLength, total / segmentLength));
+    int epochLength = total / epochs;
+    int[] active = new int[table.size];
+    List<int[]> segments = new ArrayList<>();
+    for (int e = 0; e < epochs; e++) {
+      int[] segment = bestSegment(dmers, value, active, e * epochLength,
+        e == epochs - 1 ? total : (e + 1) * epochLength, segmentLength);
+      if (segment != null) {
+        segments.add(segment);
+        for (int p = segment[0]; p + DMER_LENGTH <= segment[1]; p++) {
+          if (dmers[p] >= 0) {
+            value[dmers[p]] = 0;
+          }
+        }
+      }
+    }
+
+    // Most valuable last, dropping the least valuable
+    // if trimmed segments still overflow.
+    segments.sort((a, b) -> Integer.compare(b[2], a[2]));
+    int size = 0;
+    int count = 0;
+    while (count < segments.size() && size + segments.get(count)[1] - segments.get(count)[0] <= maxSize) {
+      int[] segment = segments.get(count++);
+      size += segment[1] - segment[0];
+    }
+    byte[] dictionary = new byte[size];
+    for (int i = 0; i < count; i++) {
+      int[] segment = segments.get(i);
+      size -= segment[1] - segment[0];
+      System.arraycopy(data, segment[0], dictionary, size, segment[1] - segment[0]);
+    }
+    return dictionary;
+  }
+
+  /**
+   * Returns the start, end and value of the best segment starting in
+   * {@code [from, to)}, trimmed of substrings of no value, or null if
+   * every segment is worthless.
+   */
+  private static int[] bestSegment(int[] dmers, int[] value, int[] active,
+                                   int from, int to, int segmentLength) {
+    int score = 0;
+    int bestScore = 0;
+    int bestStart = -1;
+    // The substrings starting in the segment.
+    int span = segmentLength - DMER_LENGTH + 1;
+    for (int end = from; end < to; end++) {
+      int id = dmers[end];
+      if (id >= 0 && active[id]++ == 0) {
+        score += value[id];
+      }
+      int start = end - span + 1;
+      if (start > from) {
+        int old = dmers[start - 1];
+        if (old >= 0 && --active[old] == 0) {
+          score -= value[old];
+        }
+      }
+      if (score > bestScore) {
+        bestScore = score;
+        bestStart = Math.max(start, from);
+      }
+    }
+    for (int p = Math.max(to - span, from); p < to; p++) {
+      if (dmers[p] >= 0) {
+        active[dmers[p]]--;
+      }
+    }
+    if (bestStart < 0) {
+      return null;
+    }
+
+    int first = bestStart;
+    int last = Math.min(bestStart + span, to) - 1;
+    while (dmers[first] < 0 || value[dmers[first]] == 0) {
+      first++;
+    }
+    while (dmers[last] < 0 || value[dmers[last]] == 0) {
+      last--;
+    }
+    return new int[]{first, last + DMER_LENGTH, bestScore};
+  }
+
+  private static long key(byte[] b, int p) {
+    long key = 0;
+    for (int i = DMER_LENGTH - 1; i >= 0; i--) {
+      key = key << 8 | (b[p + i] & 0xff);
+    }
+    return key;
+  }
+
+  /**
+   * Numbers distinct 8-byte substrings from 0, in order of first sight.
+   */
+  private static final class DmerTable {
+    private long[] keys = new long[1 << 10];
+    private int[] ids = new int[1 << 10];
+    int size;
+
+    DmerTable() {
+      Arrays.fill(ids, -1);
+    }
+
+    int id(long key) {
+      int mask = keys.length - 1;
+      int i = slot(key, mask);
+      while (ids[i] >= 0) {
+        if (keys[i] == key) {
+          return ids[i];
+        }
+        i = (i + 1) & mask;
+      }
+      keys[i] = key;
+      ids[i] = size++;
+      if (2 * size > keys.length) {
+        grow();
+      }
+      return size - 1;
+    }
+
+    private static int slot(long key, int mask) {
+      long h = key * 0x9E3779B97F4A7C15L;
+      return (int) (h >>> 32) & mask;
+    }
+
+    private void grow() {
+      long[] oldKeys = keys;
+      int[] oldIds = ids;
+      keys = new long[2 * oldKeys.length];
+      ids = new int[2 * oldIds.length];
+      Arrays.fill(ids, -1);
+      int mask = keys.length - 1;
+      for (int j = 0; j < oldKeys.length; j++) {
+        if (oldIds[j] >= 0) {
+          int i = slot(oldKeys[j], mask);
+          while (ids[i] >= 0) {
+            i = (i + 1) & mask;
+          }
+          keys[i] = oldKeys[j];
+          ids[i] = oldIds[j];
+        }
+      }
+    }
+  }
+}
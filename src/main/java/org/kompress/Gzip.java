@@ -0,0 +1,111 @@
+package org.kompress;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Constants, and member header parsing and writing, for the
+ * <a href="https://www.ietf.org/rfc/rfc1952.txt">GZIP</a> file format.
+ */
+final class Gzip {
+
+  static final int ID1 = 0x1f;
+  static final int ID2 = 0x8b;
+  static final int CM_DEFLATE = 8;
+
+  static final int FHCRC = 1 << 1;
+  static final int FEXTRA = 1 << 2;
+  static final int FNAME = 1 << 3;
+  static final int FCOMMENT = 1 << 4;
+
+  static final int MIN_HEADER_SIZE = 10;
+  static final int TRAILER_SIZE = 8;
+
+  private static final int XFL_MAX_COMPRESSION = 2;
+  private static final int XFL_FASTEST = 4;
+  private static final int OS_UNKNOWN = 255;
+
+  private Gzip() {
+  }
+
+  /**
+   * Returns the length of the member header that starts at {@code off},
+   * or -1 if the header extends past the {@code len} available bytes.
+   */
+  static int headerLength(byte[] b, int off, int len) throws IOException {
+    if (len < MIN_HEADER_SIZE) {
+      return -1;
+    }
+    if ((b[off] & 0xff) != ID1 || (b[off + 1] & 0xff) != ID2) {
+      throw new ZipException("Not in GZIP format");
+    }
+    if (b[off + 2] != CM_DEFLATE) {
+      throw new ZipException("Unsupported compression method: " + b[off + 2]);
+    }
+    int flags = b[off + 3] & 0xff;
+    int end = off + len;
+    int p = off + MIN_HEADER_SIZE;
+
+    if ((flags & FEXTRA) != 0) {
+      if (p + 2 > end) {
+        return -1;
+      }
+      p += 2 + getUnsignedShort(b, p);
+    }
+    if ((flags & FNAME) != 0) {
+      p = skipZeroTerminated(b, p, end);
+    }
+    if ((flags & FCOMMENT) != 0) {
+      p = skipZeroTerminated(b, p, end);
+    }
+    if ((flags & FHCRC) != 0) {
+      p += 2;
+    }
+    return p <= end ? p - off : -1;
+  }
+
+  /**
+   * Writes a member header with no optional fields and no
+   * modification time.
+   */
+  static void writeHeader(OutputStream out, int level) throws IOException {
+    int xfl = level >= Deflate.BEST_COMPRESSION ? XFL_MAX_COMPRESSION
+      : level == Deflate.BEST_SPEED ? XFL_FASTEST : 0;
+    out.write(new byte[]{ID1, (byte) ID2, CM_DEFLATE, 0, 0, 0, 0, 0, (byte) xfl, (byte) OS_UNKNOWN});
+  }
+
+  /**
+   * Writes a member trailer: the CRC-32 of the uncompressed data, and
+   * its size modulo 2^32.
+   */
+  static void writeTrailer(OutputStream out, int crc, long size) throws IOException {
+    byte[] trailer = new byte[TRAILER_SIZE];
+    putInt(trailer, 0, crc);
+    putInt(trailer, 4, (int) size);
+    out.write(trailer);
+  }
+
+  static int getUnsignedShort(byte[] b, int i) {
+    return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8;
+  }
+
+  static int getInt(byte[] b, int i) {
+    return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | (b[i + 3] & 0xff) << 24;
+  }
+
+  private static void putInt(byte[] b, int i, int value) {
+    b[i] = (byte) value;
+    b[i + 1] = (byte) (value >>> 8);
+    b[i + 2] = (byte) (value >>> 16);
+    b[i + 3] = (byte) (value >>> 24);
+  }
+
+  private static int skipZeroTerminated(byte[] b, int p, int end) {
+    while (p < end && b[p] != 0) {
+      p++;
+    }
+    // Past the terminator, or past the end when it wasn't found.
+    return p + 1;
+  }
+}
@@ -0,0 +1,210 @@
+package org.kompress;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Finds LZ77 matches through hash chains, as zlib does: {@code head} holds
+ * the most recent position for each hash of three bytes, and {@code prev}
+ * links every position in the window to the previous one with the same
+ * hash.
+ *
+ * <p>Positions index the compressor's window buffer; a negative one ends
+ * a chain.
+ */
+final class HashChainMatchFinder {
+
+  static final int HASH_BITS = 15;
+  private static final int HASH_MASK = (1 << HASH_BITS) - 1;
+
+  // Three shifts move a byte out of the hash, making
+  // it a rolling hash of the last three bytes.
+  private static final int HASH_SHIFT = (HASH_BITS + Tokens.MIN_MATCH - 1) / Tokens.MIN_MATCH;
+
+  private static final int WINDOW_MASK = DeflateCompressor.WINDOW_SIZE - 1;
+
+  private final byte[] window;
+  private final ByteBuffer longs;
+  private final HeadTable head;
+  private final int[] prev = new int[DeflateCompressor.WINDOW_SIZE];
+
+  /**
+   * The start of the match found by the last call to {@link #longestMatch}.
+   */
+  int matchStart;
+
+  HashChainMatchFinder(byte[] window) {
+    this.window = window;
+    this.longs = ByteBuffer.wrap(window).order(ByteOrder.LITTLE_ENDIAN);
+    this.head = new HeadTable(HASH_BITS, window.length);
+  }
+
+  /**
+   * Forgets every position. Chains are only reached through
+   * {@code head}, so they are left as they are.
+   */
+  void reset() {
+    head.clear();
+  }
+
+  /**
+   * Returns the hash of the three bytes at {@code p}. This is the value
+   * zlib's rolling {@code UPDATE_HASH} reaches after those three bytes,
+   * computed without the state of the previous position.
+   */
+  int hash(int p) {
+    return ((window[p] & 0xff) << (2 * HASH_SHIFT)
+      ^ (window[p + 1] & 0xff) << HASH_SHIFT
+      ^ (window[p + 2] & 0xff)) & HASH_MASK;
+  }
+
+  /**
+   * Links {@code p} into its hash chain, returning the previous
+   * head of that chain, or a negative value.
+   */
+  int insert(int p) {
+    int chain = head.replace(hash(p), p);
+    prev[p & WINDOW_MASK] = chain;
+    return chain;
+  }
+
+  /**
+   * Follows the chain from {@code candidate} for a match at {@code p} longer
+   * than {@code prevLength}, returning its length and setting
+   * {@link #matchStart}. If there is none, returns at most {@code prevLength}.
+   *
+   * @param maxLength   the longest match allowed, at most the lookahead.
+   * @param maxChain    the number of candidates to try.
+   * @param goodLength  quarter the chain when {@code prevLength} is at least this.
+   * @param niceLength  stop searching once a match is this long.
+   */
+  int longestMatch(int p, int candidate, int prevLength, int maxLength,
+                   int maxChain, int goodLength, int niceLength) {
+    byte[] window = this.window;
+    int chain = prevLength >= goodLength ? maxChain >> 2 : maxChain;
+    int nice = Math.min(niceLength, maxLength);
+    int best = prevLength;
+    if (best >= maxLength) {
+      return best;
+    }
+    int limit = Math.max(p - DeflateCompressor.MAX_DIST, 0);
+
+    // Candidates that can't beat the best match so far are rejected by
+    // looking at the byte that would extend it, before a full comparison.
+    byte scanEnd1 = window[p + best - 1];
+    byte scanEnd = window[p + best];
+    byte first = window[p];
+    byte second = window[p + 1];
+
+    do {
+      if (window[candidate + best] != scanEnd
+        || window[candidate + best - 1] != scanEnd1
+        || window[candidate] != first
+        || window[candidate + 1] != second) {
+        continue;
+      }
+
+      int len = matchLength(candidate, p, maxLength);
+      if (len > best) {
+        matchStart = candidate;
+        best = len;
+        if (len >= nice) {
+          break;
+        }
+        scanEnd1 = window[p + best - 1];
+        scanEnd = window[p + best];
+      }
+    } while ((candidate = prev[candidate & WINDOW_MASK]) >= limit && --chain != 0);
+
+    return best;
+  }
+
+  /**
+   * Follows the chain from {@code candidate}, recording each match at
+   * {@code p} that is longer than all those before it, packed as by
+   * {@link Tokens#match}. The chain runs from near to far, so each recorded
+   * match has the smallest distance of any match up to its length.
+   *
+   * <p>Returns the number of matches recorded in {@code matches[off..)}.
+   * Once {@code maxMatches} are recorded, a longer match replaces the last.
+   */
+  int findMatches(int p, int candidate, int maxLength, int maxChain, int niceLength,
+                  int[] matches, int off, int maxMatches) {
+    byte[] window = this.window;
+    int chain = maxChain;
+    int nice = Math.min(niceLength, maxLength);
+    int best = Tokens.MIN_MATCH - 1;
+    int count = 0;
+    if (best >= maxLength) {
+      return 0;
+    }
+    int limit = Math.max(p - DeflateCompressor.MAX_DIST, 0);
+
+    byte scanEnd1 = window[p + best - 1];
+    byte scanEnd = window[p + best];
+    byte first = window[p];
+    byte second = window[p + 1];
+
+    do {
+      if (window[candidate + best] != scanEnd
+        || window[candidate + best - 1] != scanEnd1
+        || window[candidate] != first
+        || window[candidate + 1] != second) {
+        continue;
+      }
+
+      int len = matchLength(candidate, p, maxLength);
+      if (len > best) {
+        if (count == maxMatches) {
+          count--;
+        }
+        matches[off + count++] = Tokens.match(len, p - candidate);
+        best = len;
+        if (len >= nice) {
+          break;
+        }
+        scanEnd1 = window[p + best - 1];
+        scanEnd = window[p + best];
+      }
+    } while ((candidate = prev[candidate & WINDOW_MASK]) >= limit && --chain != 0);
+
+    return count;
+  }
+
+  /**
+   * Returns how many bytes at {@code a} and {@code b} agree, up to {@code max},
+   * comparing eight bytes at a time. Reads may run up to seven bytes past
+   * {@code b + max}, which the window's padding allows for.
+   */
+  int matchLength(int a, int b, int max) {
+    return matchLength(longs, a, b, max);
+  }
+
+  static int matchLength(ByteBuffer longs, int a, int b, int max) {
+    int len = 0;
+    while (len < max) {
+      long diff = longs.getLong(a + len) ^ longs.getLong(b + len);
+      if (diff != 0) {
+        len += Long.numberOfTrailingZeros(diff) >>> 3;
+        return Math.min(len, max);
+      }
+      len += 8;
+    }
+    return max;
+  }
+
+  /**
+   * Moves every position down by {@code amount}, a multiple of the window
+   * size, dropping those that fall off the start of the buffer.
+   */
+  void slide(int amount) {
+    head.slide(amount);
+    slide(prev, amount);
+  }
+
+  private static void slide(int[] positions, int amount) {
+    for (int i = 0; i < positions.length; i++) {
+      positions[i] = Math.max(positions[i] - amount, -1);
+    }
+  }
+}
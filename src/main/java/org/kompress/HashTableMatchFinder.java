@@ -0,0 +1,63 @@
+package org.kompress;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Finds LZ77 matches with a single probe: the table remembers only the
+ * most recent position for each hash of four bytes, so there is no chain
+ * to follow and no work for positions that are never looked up.
+ *
+ * <p>This trades ratio for speed, in the manner of zlib-ng's
+ * {@code deflate_quick} and libdeflate's level 1.
+ */
+final class HashTableMatchFinder {
+
+  static final int HASH_BITS = 15;
+
+  /**
+   * The bytes hashed and compared at each position. Fewer than this at
+   * the end of the input must not be looked up, or the bytes past it,
+   * left in the window by earlier input, would decide the output.
+   */
+  static final int HASH_BYTES = 4;
+
+  // Knuth's multiplicative hash; the top bits mix all four bytes.
+  private static final int HASH_MULTIPLIER = 0x9e3779b1;
+
+  private final ByteBuffer longs;
+  private final HeadTable table;
+
+  HashTableMatchFinder(byte[] window) {
+    this.longs = ByteBuffer.wrap(window).order(ByteOrder.LITTLE_ENDIAN);
+    this.table = new HeadTable(HASH_BITS, window.length);
+  }
+
+  void reset() {
+    table.clear();
+  }
+
+  /**
+   * Replaces the table entry for the four bytes at {@code p}, returning
+   * the position it held, or a negative value. The returned position
+   * shares the hash, but not necessarily the bytes.
+   */
+  int insert(int p) {
+    return table.replace((longs.getInt(p) * HASH_MULTIPLIER) >>> (32 - HASH_BITS), p);
+  }
+
+  /**
+   * Returns how many bytes at {@code a} and {@code b} agree, up to
+   * {@code max}, or 0 if their first four bytes differ.
+   */
+  int matchLength(int a, int b, int max) {
+    if (longs.getInt(a) != longs.getInt(b)) {
+      return 0;
+    }
+    return HashChainMatchFinder.matchLength(longs, a, b, max);
+  }
+
+  void slide(int amount) {
+    table.slide(amount);
+  }
+}
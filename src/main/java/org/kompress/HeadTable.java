@@ -0,0 +1,57 @@
+package org.kompress;
+
+import java.util.Arrays;
+
+/**
+ * The most recent window position for each hash value, as the match
+ * finders keep it.
+ *
+ * <p>Entries are stored plus the total distance slid so far, so that
+ * sliding is a subtraction at lookup, rather than a pass over the table.
+ * Forgetting every position is a slide past the end of the window, which
+ * keeps resetting cheap for compressors reused on small inputs.
+ */
+final class HeadTable {
+
+  private static final int MAX_OFFSET = 1 << 30;
+
+  private final int[] table;
+  // More than any position.
+  private final int span;
+  private int offset;
+
+  HeadTable(int bits, int span) {
+    this.table = new int[1 << bits];
+    this.span = span;
+    Arrays.fill(table, -1);
+  }
+
+  /**
+   * Sets the entry for hash {@code h} to {@code p}, returning the position
+   * it held, or a negative value.
+   */
+  int replace(int h, int p) {
+    int old = table[h] - offset;
+    table[h] = p + offset;
+    return old;
+  }
+
+  /**
+   * Moves every position down by {@code amount}; those that fall
+   * below zero are gone.
+   */
+  void slide(int amount) {
+    offset += amount;
+    if (offset >= MAX_OFFSET) {
+      int[] table = this.table;
+      for (int i = 0; i < table.length; i++) {
+        table[i] = Math.max(table[i] - offset, -1);
+      }
+      offset = 0;
+    }
+  }
+
+  void clear() {
+    slide(span);
+  }
+}
@@ -0,0 +1,75 @@
+package org.kompress;
+
+import java.util.Arrays;
+
+/**
+ * Canonical Huffman codes for the compressor. Codes are stored bit
+ * reversed, since DEFLATE packs them starting from their most
+ * significant bit.
+ */
+final class Huffman {
+
+  static final int MAX_BITS = 15;
+
+  static final int[] FIXED_LIT_LEN_LENGTHS = new int[288];
+  static final int[] FIXED_LIT_LEN_CODES;
+  static final int[] FIXED_DIST_LENGTHS = new int[30];
+  static final int[] FIXED_DIST_CODES;
+
+  static {
+    for (int i = 0; i < FIXED_LIT_LEN_LENGTHS.length; i++) {
+      if (i < 144) {
+        FIXED_LIT_LEN_LENGTHS[i] = 8;
+      } else if (i < 256) {
+        FIXED_LIT_LEN_LENGTHS[i] = 9;
+      } else if (i < 280) {
+        FIXED_LIT_LEN_LENGTHS[i] = 7;
+      } else {
+        FIXED_LIT_LEN_LENGTHS[i] = 8;
+      }
+    }
+    FIXED_LIT_LEN_CODES = new int[FIXED_LIT_LEN_LENGTHS.length];
+    canonicalCodes(FIXED_LIT_LEN_LENGTHS, FIXED_LIT_LEN_LENGTHS.length, FIXED_LIT_LEN_CODES);
+
+    for (int i = 0; i < FIXED_DIST_LENGTHS.length; i++) {
+      FIXED_DIST_LENGTHS[i] = 5;
+    }
+    FIXED_DIST_CODES = new int[FIXED_DIST_LENGTHS.length];
+    canonicalCodes(FIXED_DIST_LENGTHS, FIXED_DIST_LENGTHS.length, FIXED_DIST_CODES);
+  }
+
+  private Huffman() {
+  }
+
+  /**
+   * Assigns the canonical, bit reversed codes for the first {@code n}
+   * code lengths, as described in section 3.2.2 of RFC 1951: codes of
+   * each length are consecutive, in symbol order, and follow on from
+   * the last code of the next shorter length.
+   */
+  static void canonicalCodes(int[] lengths, int n, int[] codes) {
+    canonicalCodes(lengths, n, codes, new int[MAX_BITS + 1]);
+  }
+
+  /**
+   * As {@link #canonicalCodes(int[], int, int[])}, with {@code nextCode},
+   * of {@link #MAX_BITS} + 1 entries, as scratch space.
+   */
+  static void canonicalCodes(int[] lengths, int n, int[] codes, int[] nextCode) {
+    Arrays.fill(nextCode, 0);
+    for (int i = 0; i < n; i++) {
+      nextCode[lengths[i]]++;
+    }
+    int code = 0;
+    for (int len = 1; len <= MAX_BITS; len++) {
+      int count = nextCode[len];
+      nextCode[len] = code;
+      code = (code + count) << 1;
+    }
+    for (int i = 0; i < n; i++) {
+      int len = lengths[i];
+      codes[i] = len == 0 ? 0 : Integer.reverse(nextCode[len]++) >>> (32 - len);
+    }
+  }
+
+}
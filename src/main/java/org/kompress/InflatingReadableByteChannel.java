@@ -0,0 +1,57 @@
+package org.kompress;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Decompresses raw DEFLATE data read from a channel, which may be
+ * non-blocking: a read that finds no input to decode returns 0, as the
+ * source did, and decoding picks up where it stopped on the next.
+ *
+ * <p>Input is read into a buffer of its own, in reads of up to
+ * {@code bufferSize} bytes, and the decoder takes it from there. A
+ * symbol, or block header, that the input buffered so far ends partway
+ * through is decoded again from its start once more comes, so a read
+ * may take in more than it decodes.
+ */
+public class InflatingReadableByteChannel implements ReadableByteChannel {
+
+  public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+  private final DeflateInputStream decoder;
+  private boolean open = true;
+
+  public InflatingReadableByteChannel(ReadableByteChannel source) {
+    this(source, DEFAULT_BUFFER_SIZE);
+  }
+
+  public InflatingReadableByteChannel(ReadableByteChannel source, int bufferSize) {
+    decoder = new DeflateInputStream(new ChannelInput(source, bufferSize));
+  }
+
+  @Override
+  public int read(ByteBuffer dst) throws IOException {
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+    return decoder.read(dst);
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  /**
+   * Closes the source.
+   */
+  @Override
+  public void close() throws IOException {
+    if (open) {
+      open = false;
+      decoder.close();
+    }
+  }
+}
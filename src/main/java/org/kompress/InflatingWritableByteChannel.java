@@ -0,0 +1,148 @@
+package org.kompress;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Decompresses raw DEFLATE data written to it, writing the decoded data
+ * to a sink channel in writes of a whole buffer at a time.
+ *
+ * <p>A write takes in as much of its input as the decoder can buffer
+ * and the sink will accept the output of: with a non-blocking sink that
+ * takes no more, a write may take in less than it was given, or none.
+ * Closing decodes and writes out the rest, waiting on the sink if it
+ * must, and fails if the compressed data ended early. Data after the end
+ * of the DEFLATE stream is taken in and ignored.
+ */
+public class InflatingWritableByteChannel implements WritableByteChannel {
+
+  public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+  private final WritableByteChannel sink;
+  private final Input input = new Input();
+  private final DeflateInputStream decoder;
+  // Decoded data not yet written, from 0 to its position.
+  private final ByteBuffer output;
+  private boolean open = true;
+
+  public InflatingWritableByteChannel(WritableByteChannel sink) {
+    this(sink, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @param bufferSize the size of the buffers of compressed input and of
+   *                   decoded output, which is written when full.
+   */
+  public InflatingWritableByteChannel(WritableByteChannel sink, int bufferSize) {
+    this.sink = sink;
+    decoder = new DeflateInputStream(new ChannelInput(input, bufferSize));
+    output = ByteBuffer.allocate(bufferSize);
+  }
+
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+    int start = src.position();
+    input.src = src;
+    try {
+      while (output.hasRemaining() || flush()) {
+        int n = decoder.read(output);
+        if (n == -1) {
+          src.position(src.limit());
+        }
+        if (n <= 0) {
+          // Out of input for now, or at the end.
+          break;
+        }
+      }
+    } finally {
+      input.src = null;
+    }
+    return src.position() - start;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  /**
+   * Writes out the rest of the decoded data, and closes the sink.
+   */
+  @Override
+  public void close() throws IOException {
+    if (!open) {
+      return;
+    }
+    open = false;
+    input.ended = true;
+    try {
+      // With no more input to come, this decodes to the end, or fails.
+      do {
+        if (!output.hasRemaining()) {
+          flushFully();
+        }
+      } while (decoder.read(output) != -1);
+      flushFully();
+    } finally {
+      sink.close();
+    }
+  }
+
+  /**
+   * Writes what the sink will take of the output, returning whether
+   * that was all of it.
+   */
+  private boolean flush() throws IOException {
+    output.flip();
+    sink.write(output);
+    boolean flushed = !output.hasRemaining();
+    output.compact();
+    return flushed;
+  }
+
+  private void flushFully() throws IOException {
+    output.flip();
+    while (output.hasRemaining()) {
+      sink.write(output);
+    }
+    output.clear();
+  }
+
+  /**
+   * The data of the write in progress, as a non-blocking channel that
+   * has nothing more to give between writes, until closed.
+   */
+  private static final class Input implements ReadableByteChannel {
+
+    ByteBuffer src;
+    boolean ended;
+
+    @Override
+    public int read(ByteBuffer dst) {
+      if (src == null || !src.hasRemaining()) {
+        return ended ? -1 : 0;
+      }
+      int n = Math.min(dst.remaining(), src.remaining());
+      ByteBuffer slice = src.duplicate();
+      slice.limit(slice.position() + n);
+      dst.put(slice);
+      src.position(src.position() + n);
+      return n;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
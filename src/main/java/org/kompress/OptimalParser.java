@@ -0,0 +1,269 @@
+package org.kompress;
+
+import java.util.Arrays;
+
+/**
+ * Chooses tokens by shortest path, as Zopfli does. Every match found at
+ * each position of a chunk is an edge, priced by a model of the bits it
+ * costs, and the cheapest route from the start of the chunk to its end
+ * becomes the parse.
+ *
+ * <p>The first pass prices symbols by their fixed Huffman code lengths.
+ * Each further pass prices them by their entropy in the previous pass's
+ * parse, which converges on a parse that suits its own statistics. The
+ * pass with the smallest estimated size wins.
+ *
+ * <p>Matches are searched once per chunk, through a
+ * {@link BinaryTreeMatchFinder}, and cached for all passes.
+ */
+final class OptimalParser {
+
+  // Each token covers at least one byte, so a chunk's
+  // tokens always fit in an empty block.
+  static final int CHUNK_SIZE = BlockEncoder.TOKEN_BUFFER_SIZE;
+
+  private static final int MAX_MATCHES = 16;
+
+  private static final float LOG_2 = (float) Math.log(2);
+
+  private final byte[] window;
+  private final BinaryTreeMatchFinder finder;
+
+  private final int[] matchCount = new int[CHUNK_SIZE];
+  private final int[] matches = new int[CHUNK_SIZE * MAX_MATCHES];
+
+  private final float[] cost = new float[CHUNK_SIZE + 1];
+  // The token of the cheapest step into each position.
+  private final int[] step = new int[CHUNK_SIZE + 1];
+
+  private final int[] tokens = new int[CHUNK_SIZE];
+  private int tokenCount;
+  private final int[] bestTokens = new int[CHUNK_SIZE];
+  private int bestCount;
+
+  private final int[] litLenFreq = new int[Tokens.NUM_LIT_LEN];
+  private final int[] distFreq = new int[Tokens.NUM_DIST];
+  private final float[] litLenCost = new float[Tokens.NUM_LIT_LEN];
+  // Both include extra bits; lengths are indexed by length.
+  private final float[] lengthCost = new float[Tokens.MAX_MATCH + 1];
+  private final float[] distCost = new float[Tokens.NUM_DIST];
+
+  OptimalParser(byte[] window, BinaryTreeMatchFinder finder) {
+    this.window = window;
+    this.finder = finder;
+  }
+
+  /**
+   * Parses {@code window[start, start + n)} into {@code encoder}, which must
+   * have room for {@code n} tokens. Matches may not extend past the chunk,
+   * but positions up to {@code start + available} are valid data. None is
+   * shorter than {@code minLength}.
+   */
+  void parse(int start, int n, int available, int maxDepth, int niceLength, int iterations,
+             int minLength, BlockEncoder encoder) {
+    findMatches(start, n, start + available, maxDepth, niceLength);
+
+    fixedCosts();
+    float bestSize = Float.MAX_VALUE;
+    for (int i = 0; i < iterations; i++) {
+      shortestPath(start, n, minLength);
+      float size = statisticCosts();
+      if (size < bestSize) {
+        bestSize = size;
+        System.arraycopy(tokens, 0, bestTokens, 0, tokenCount);
+        bestCount = tokenCount;
+      }
+    }
+
+    for (int i = 0; i < bestCount; i++) {
+      int token = bestTokens[i];
+      if (Tokens.isLiteral(token)) {
+        encoder.literal((byte) token);
+      } else {
+        encoder.match(Tokens.length(token), Tokens.distance(token));
+      }
+    }
+  }
+
+  /**
+   * Indexes every position of the chunk and caches its matches. The
+   * positions covered by a match of {@code niceLength} or more are only
+   * indexed: long repetitions are then taken whole, rather than costing
+   * a search and hundreds of edges at every position.
+   */
+  private void findMatches(int start, int n, int end, int maxDepth, int niceLength) {
+    BinaryTreeMatchFinder finder = this.finder;
+    for (int i = 0; i < n; ) {
+      int p = start + i;
+      int count = 0;
+      if (p + Tokens.MIN_MATCH <= end) {
+        // The tree is ordered by all the data that follows, so the
+        // search only stops at the chunk's end as the matches are stored.
+        count = finder.findMatches(p, Math.min(Tokens.MAX_MATCH, end - p), maxDepth, niceLength,
+          matches, i * MAX_MATCHES, MAX_MATCHES);
+        count = truncateMatches(i * MAX_MATCHES, count, n - i);
+      }
+      matchCount[i] = count;
+
+      int skip = count > 0 ? Tokens.length(matches[i * MAX_MATCHES + count - 1]) : 0;
+      i++;
+      if (skip >= niceLength) {
+        for (int skipEnd = i - 1 + skip; i < skipEnd; i++) {
+          matchCount[i] = 0;
+          int q = start + i;
+          if (q + Tokens.MIN_MATCH <= end) {
+            finder.skip(q, Math.min(Tokens.MAX_MATCH, end - q), maxDepth, niceLength);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Shortens the matches at {@code matches[off..)} to at most {@code max}
+   * bytes, returning how many remain.
+   */
+  private int truncateMatches(int off, int count, int max) {
+    for (int k = 0; k < count; k++) {
+      int match = matches[off + k];
+      if (Tokens.length(match) >= max) {
+        if (max < Tokens.MIN_MATCH) {
+          return 0;
+        }
+        matches[off + k] = Tokens.match(max, Tokens.distance(match));
+        return k + 1;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Finds the cheapest parse under the current costs into {@link #tokens}.
+   */
+  private void shortestPath(int start, int n, int minLength) {
+    byte[] window = this.window;
+    float[] cost = this.cost;
+    int[] step = this.step;
+
+    cost[0] = 0;
+    for (int i = 1; i <= n; i++) {
+      cost[i] = Float.MAX_VALUE;
+    }
+
+    for (int i = 0; i < n; i++) {
+      float here = cost[i];
+      int b = window[start + i] & 0xff;
+      float literal = here + litLenCost[b];
+      if (literal < cost[i + 1]) {
+        cost[i + 1] = literal;
+        step[i + 1] = Tokens.literal(b);
+      }
+
+      // Each cached match serves every length from just
+      // past the previous one up to its own.
+      int len = minLength;
+      for (int k = 0, count = matchCount[i]; k < count; k++) {
+        int match = matches[i * MAX_MATCHES + k];
+        int distance = Tokens.distance(match);
+        float base = here + distCost[Tokens.distCode(distance)];
+        for (int maxLen = Tokens.length(match); len <= maxLen; len++) {
+          float c = base + lengthCost[len];
+          if (c < cost[i + len]) {
+            cost[i + len] = c;
+            step[i + len] = Tokens.match(len, distance);
+          }
+        }
+      }
+    }
+
+    int count = 0;
+    for (int i = n; i > 0; ) {
+      int token = step[i];
+      tokens[count++] = token;
+      i -= Tokens.isLiteral(token) ? 1 : Tokens.length(token);
+    }
+    for (int i = 0, j = count - 1; i < j; i++, j--) {
+      int t = tokens[i];
+      tokens[i] = tokens[j];
+      tokens[j] = t;
+    }
+    tokenCount = count;
+  }
+
+  private void fixedCosts() {
+    for (int i = 0; i < Tokens.NUM_LIT_LEN; i++) {
+      litLenCost[i] = Huffman.FIXED_LIT_LEN_LENGTHS[i];
+    }
+    for (int i = 0; i < Tokens.NUM_DIST; i++) {
+      distCost[i] = Huffman.FIXED_DIST_LENGTHS[i] + Tokens.DIST_EXTRA[i];
+    }
+    updateLengthCosts();
+  }
+
+  /**
+   * Prices each symbol by its entropy in the current parse, and returns
+   * the parse's size in bits under those prices.
+   */
+  private float statisticCosts() {
+    Arrays.fill(litLenFreq, 0);
+    Arrays.fill(distFreq, 0);
+    for (int i = 0; i < tokenCount; i++) {
+      int token = tokens[i];
+      if (Tokens.isLiteral(token)) {
+        litLenFreq[token]++;
+      } else {
+        litLenFreq[257 + Tokens.lengthCode(Tokens.length(token))]++;
+        distFreq[Tokens.distCode(Tokens.distance(token))]++;
+      }
+    }
+    litLenFreq[Tokens.END_OF_BLOCK] = 1;
+
+    entropy(litLenFreq, litLenCost);
+    // Without matches there is nothing to learn about
+    // distances, and the previous prices stand.
+    if (entropy(distFreq, distCost)) {
+      for (int i = 0; i < Tokens.NUM_DIST; i++) {
+        distCost[i] += Tokens.DIST_EXTRA[i];
+      }
+    }
+    updateLengthCosts();
+
+    float size = 0;
+    for (int i = 0; i < tokenCount; i++) {
+      int token = tokens[i];
+      if (Tokens.isLiteral(token)) {
+        size += litLenCost[token];
+      } else {
+        size += lengthCost[Tokens.length(token)] + distCost[Tokens.distCode(Tokens.distance(token))];
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Sets each cost to the symbol's information content, in bits. Unused
+   * symbols are priced as if seen once. Returns false, leaving the costs
+   * unchanged, if no symbol was used.
+   */
+  private static boolean entropy(int[] freq, float[] costs) {
+    long total = 0;
+    for (int f : freq) {
+      total += f;
+    }
+    if (total == 0) {
+      return false;
+    }
+    float log2Total = (float) Math.log(total) / LOG_2;
+    for (int i = 0; i < freq.length; i++) {
+      costs[i] = freq[i] == 0 ? log2Total : log2Total - (float) Math.log(freq[i]) / LOG_2;
+    }
+    return true;
+  }
+
+  private void updateLengthCosts() {
+    for (int len = Tokens.MIN_MATCH; len <= Tokens.MAX_MATCH; len++) {
+      int lc = Tokens.lengthCode(len);
+      lengthCost[len] = litLenCost[257 + lc] + Tokens.LENGTH_EXTRA[lc];
+    }
+  }
+}
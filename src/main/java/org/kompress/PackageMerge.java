@@ -0,0 +1,165 @@
+package org.kompress;
+
+import java.util.Arrays;
+
+/**
+ * Builds optimal length-limited Huffman code lengths with the
+ * package-merge algorithm of Larmore and Hirschberg.
+ *
+ * <p>Starting from the symbols sorted by frequency, each of the
+ * {@code maxBits - 1} rounds pairs up the previous list into packages and
+ * merges them back with the symbols. The first {@code 2n - 2} items of the
+ * final list form the code: a symbol's code length is the number of times
+ * it occurs inside them.
+ *
+ * <p>Most blocks need no limit, though: an ordinary Huffman code is built
+ * first, in linear time from the sorted frequencies, and package-merge
+ * only runs if that code is too deep.
+ *
+ * <p>Scratch space is allocated once, for the largest alphabet it serves.
+ */
+final class PackageMerge {
+
+  private final long[] sorted;
+  private final int[] symbols;
+
+  // Nodes 0 to n - 1 are the symbols; packages follow.
+  private final long[] weight;
+  private final int[] left;
+  private final int[] right;
+
+  private int[] list;
+  private int[] next;
+
+  PackageMerge(int maxSymbols, int maxBits) {
+    sorted = new long[maxSymbols];
+    symbols = new int[maxSymbols];
+    int maxNodes = maxSymbols * (maxBits + 1);
+    weight = new long[maxNodes];
+    left = new int[maxNodes];
+    right = new int[maxNodes];
+    list = new int[2 * maxSymbols];
+    next = new int[2 * maxSymbols];
+  }
+
+  /**
+   * Fills {@code lengths[0..n)} with code lengths of at most {@code maxBits}
+   * for the given frequencies. Symbols with zero frequency get length zero.
+   * When fewer than two symbols occur, the lowest unused symbols are given
+   * codes too, so that the code is always complete.
+   */
+  void build(int[] freq, int n, int maxBits, int[] lengths) {
+    Arrays.fill(lengths, 0, n, 0);
+
+    int count = 0;
+    for (int i = 0; i < n; i++) {
+      if (freq[i] > 0) {
+        sorted[count++] = (long) freq[i] << 16 | i;
+      }
+    }
+    for (int i = 0; count < 2 && i < n; i++) {
+      if (freq[i] == 0) {
+        // Weight zero sorts it first, ahead of any real symbol.
+        sorted[count++] = i;
+      }
+    }
+    Arrays.sort(sorted, 0, count);
+    if (count == 2) {
+      lengths[(int) (sorted[0] & 0xffff)] = 1;
+      lengths[(int) (sorted[1] & 0xffff)] = 1;
+      return;
+    }
+    if ((1 << maxBits) < count) {
+      throw new IllegalArgumentException(count + " symbols don't fit in " + maxBits + " bits");
+    }
+
+    for (int i = 0; i < count; i++) {
+      symbols[i] = (int) (sorted[i] & 0xffff);
+      weight[i] = sorted[i] >>> 16;
+    }
+    if (huffman(count, maxBits, lengths)) {
+      return;
+    }
+
+    for (int i = 0; i < count; i++) {
+      left[i] = -1;
+      list[i] = i;
+    }
+    int listSize = count;
+    int nodes = count;
+
+    for (int round = 1; round < maxBits; round++) {
+      int packages = listSize / 2;
+      int merged = 0;
+      int s = 0;
+      int p = 0;
+      while (s < count || p < packages) {
+        long packageWeight = p < packages ? weight[list[2 * p]] + weight[list[2 * p + 1]] : Long.MAX_VALUE;
+        if (s < count && weight[s] <= packageWeight) {
+          next[merged++] = s++;
+        } else {
+          weight[nodes] = packageWeight;
+          left[nodes] = list[2 * p];
+          right[nodes] = list[2 * p + 1];
+          next[merged++] = nodes++;
+          p++;
+        }
+      }
+      int[] t = list;
+      list = next;
+      next = t;
+      listSize = merged;
+    }
+
+    for (int i = 0; i < 2 * count - 2; i++) {
+      countLeaves(list[i], lengths);
+    }
+  }
+
+  /**
+   * Builds an unlimited Huffman code for the {@code count} sorted weights,
+   * with two queues: the leaves, and the internal nodes, which are made
+   * in order of weight. Sets the lengths and returns true if none is
+   * longer than {@code maxBits}.
+   */
+  private boolean huffman(int count, int maxBits, int[] lengths) {
+    long[] weight = this.weight;
+    // The parent of each node, then its depth.
+    int[] parent = left;
+    int[] depth = right;
+
+    int leaf = 0;
+    int node = count;
+    int nodes = count;
+    for (int k = 1; k < count; k++) {
+      int a = leaf < count && (node == nodes || weight[leaf] <= weight[node]) ? leaf++ : node++;
+      int b = leaf < count && (node == nodes || weight[leaf] <= weight[node]) ? leaf++ : node++;
+      weight[nodes] = weight[a] + weight[b];
+      parent[a] = nodes;
+      parent[b] = nodes;
+      nodes++;
+    }
+
+    depth[nodes - 1] = 0;
+    for (int i = nodes - 2; i >= 0; i--) {
+      depth[i] = depth[parent[i]] + 1;
+    }
+    for (int i = 0; i < count; i++) {
+      if (depth[i] > maxBits) {
+        return false;
+      }
+    }
+    for (int i = 0; i < count; i++) {
+      lengths[symbols[i]] = depth[i];
+    }
+    return true;
+  }
+
+  private void countLeaves(int node, int[] lengths) {
+    while (left[node] != -1) {
+      countLeaves(left[node], lengths);
+      node = right[node];
+    }
+    lengths[symbols[node]]++;
+  }
+}
@@ -0,0 +1,620 @@
+package org.kompress;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+import java.util.zip.ZipException;
+
+/**
+ * Decompresses a single DEFLATE or GZIP stream on several threads, in the
+ * manner of <a href="https://github.com/mxmlnkn/rapidgzip">rapidgzip</a>.
+ *
+ * <p>The compressed input is cut into chunks of {@link #CHUNK_SIZE} bytes.
+ * Each chunk but the first is decoded on an {@link Executor} from the
+ * first position in it that passes for the start of a dynamic or stored
+ * block, up to the first block boundary at or past its end. The 32 KiB
+ * window before that position isn't known yet, so back-references into it
+ * are decoded as markers. Chunks are taken in order: each one's start is
+ * checked against where the chunk before it ended, and its markers are
+ * then resolved from the output before it, in a pass over only the part
+ * of its output that comes before its last marker. Only those in its last
+ * 32 KiB, the next chunk's window, are resolved on the reading thread; the
+ * rest, and the CRC-32, are left to the executor. Where a chunk's start is
+ * wrong, or none was found, the stream is decoded on the reading thread
+ * instead, from where the chunk before it ended.
+ *
+ * <p>The output is the same whatever the executor or the timing of its
+ * threads. Fixed Huffman blocks can't be told from noise, so a stream of
+ * nothing else is decoded on the reading thread; so is the rest of any
+ * chunk that decodes to more than {@link #MAX_CHUNK_OUTPUT} bytes. Each
+ * GZIP member's CRC-32 and size are checked, and further members may
+ * follow the first.
+ */
+public class ParallelDeflateInputStream extends InputStream {
+
+  static final int CHUNK_SIZE = 512 * 1024;
+
+  static final int MAX_CHUNK_OUTPUT = 16 * 1024 * 1024;
+
+  // Input past the end of a chunk, for its last block.
+  static final int LOOKAHEAD = 128 * 1024;
+
+  private static final int WINDOW_SIZE = BlockInflater.WINDOW_SIZE;
+  private static final int DEFAULT_MAX_IN_FLIGHT = 2 * Runtime.getRuntime().availableProcessors();
+
+  private final InputStream in;
+  private final boolean gzip;
+  private final Executor executor;
+  private final int maxInFlight;
+  private final int chunkSize;
+  // Inflaters not in use by a chunk.
+  private final ConcurrentLinkedQueue<BlockInflater> inflaters = new ConcurrentLinkedQueue<>();
+  private final BlockInflater serial = new BlockInflater();
+  private final byte[] single = new byte[1];
+
+  // From the one holding the next block on.
+  private final ArrayList<Chunk> chunks = new ArrayList<>();
+  private long inputLength;
+  private boolean inputEnded;
+
+  // The bit at which the next block starts, or the next member's header
+  // once the member has ended.
+  private long position;
+  private boolean started;
+  private boolean memberEnded;
+  private boolean ended;
+  // The last bytes of output, right-aligned.
+  private final byte[] window = new byte[WINDOW_SIZE];
+  private int windowLength;
+
+  // Output not yet read, in order, which may still be resolving.
+  private final ArrayDeque<CompletableFuture<Piece>> pieces = new ArrayDeque<>();
+  // Of the member's output read so far.
+  private int crc;
+  private long size;
+  // Bytes of output decoded ahead, rather than on the reading thread.
+  private long speculated;
+
+  private byte[] buffer;
+  private int bufferPos;
+  private int bufferLength;
+  private boolean closed;
+
+  public ParallelDeflateInputStream(InputStream in, boolean gzip) {
+    this(in, gzip, ForkJoinPool.commonPool(), DEFAULT_MAX_IN_FLIGHT);
+  }
+
+  /**
+   * @param gzip        whether the input is GZIP, rather than raw DEFLATE.
+   * @param executor    runs chunk decoding.
+   * @param maxInFlight maximum number of chunks read and decoding ahead of the reader.
+   */
+  public ParallelDeflateInputStream(InputStream in, boolean gzip, Executor executor, int maxInFlight) {
+    this(in, gzip, executor, maxInFlight, CHUNK_SIZE);
+  }
+
+  ParallelDeflateInputStream(InputStream in, boolean gzip, Executor executor, int maxInFlight, int chunkSize) {
+    if (maxInFlight < 1) {
+      throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+    }
+    this.in = in;
+    this.gzip = gzip;
+    this.executor = executor;
+    this.maxInFlight = maxInFlight;
+    this.chunkSize = chunkSize;
+  }
+
+  @Override
+  public int read() throws IOException {
+    int n = read(single, 0, 1);
+    return n == -1 ? -1 : single[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    if (len == 0) {
+      return 0;
+    }
+    while (bufferPos == bufferLength) {
+      while (!ended && pieces.size() < maxInFlight) {
+        step();
+      }
+      CompletableFuture<Piece> next = pieces.poll();
+      if (next == null) {
+        return -1;
+      }
+      take(await(next));
+    }
+    int n = Math.min(len, bufferLength - bufferPos);
+    System.arraycopy(buffer, bufferPos, b, off, n);
+    bufferPos += n;
+    return n;
+  }
+
+  @Override
+  public int available() {
+    return bufferLength - bufferPos;
+  }
+
+  long speculated() {
+    return speculated;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    for (CompletableFuture<Piece> piece : pieces) {
+      piece.cancel(false);
+    }
+    pieces.clear();
+    for (Chunk chunk : chunks) {
+      if (chunk.result != null) {
+        chunk.result.cancel(false);
+      }
+    }
+    chunks.clear();
+    buffer = null;
+    in.close();
+  }
+
+  private void take(Piece piece) throws IOException {
+    if (piece.data == null) {
+      if (piece.crc != crc) {
+        throw new ZipException("Corrupt GZIP trailer: CRC32 mismatch");
+      }
+      if (piece.length != (int) size) {
+        throw new ZipException("Corrupt GZIP trailer: ISIZE mismatch");
+      }
+      crc = 0;
+      size = 0;
+      return;
+    }
+    crc = Crc32.combine(crc, piece.crc, piece.length);
+    size += piece.length;
+    buffer = piece.data;
+    bufferPos = 0;
+    bufferLength = piece.length;
+  }
+
+  /**
+   * Moves the stream on by a chunk's speculative output, by some blocks
+   * decoded here, or past a member's header or trailer.
+   */
+  private void step() throws IOException {
+    if (!started) {
+      started = true;
+      if (gzip) {
+        readHeader();
+      }
+      return;
+    }
+    if (memberEnded) {
+      endMember();
+      return;
+    }
+
+    Chunk chunk = chunkAt(position);
+    if (chunk.result != null) {
+      chunk.speculation = await(chunk.result);
+      chunk.result = null;
+    }
+    Speculation speculation = chunk.speculation;
+    chunk.speculation = null;
+    if (speculation != null && speculation.startsAt(position)) {
+      deliver(speculation);
+      return;
+    }
+    long until = chunk.end() * 8;
+    if (speculation != null && speculation.start > position) {
+      // Worth another look once decoding gets there.
+      chunk.speculation = speculation;
+      until = speculation.start;
+    }
+    decode(chunk, until);
+  }
+
+  private void readHeader() throws IOException {
+    long offset = position >>> 3;
+    for (int n = 64; ; n *= 2) {
+      byte[] b = bytes(offset, n);
+      int headerLength = Gzip.headerLength(b, 0, b.length);
+      if (headerLength >= 0) {
+        position = (offset + headerLength) * 8;
+        return;
+      }
+      if (b.length < n) {
+        throw new EOFException("Unexpected end of GZIP header");
+      }
+    }
+  }
+
+  /**
+   * Queues a check of the trailer of the member just ended, and starts
+   * the next one, if another follows.
+   */
+  private void endMember() throws IOException {
+    memberEnded = false;
+    windowLength = 0;
+    if (!gzip) {
+      ended = true;
+      return;
+    }
+    long offset = (position + 7) >>> 3;
+    byte[] trailer = bytes(offset, Gzip.TRAILER_SIZE);
+    if (trailer.length < Gzip.TRAILER_SIZE) {
+      throw new EOFException("Unexpected end of GZIP trailer");
+    }
+    pieces.add(CompletableFuture.completedFuture(
+      new Piece(null, Gzip.getInt(trailer, 4), Gzip.getInt(trailer, 0))));
+    position = (offset + Gzip.TRAILER_SIZE) * 8;
+    if (bytes(position >>> 3, 1).length == 0) {
+      ended = true;
+    } else {
+      readHeader();
+    }
+  }
+
+  /**
+   * Queues a chunk's speculative output. Only the markers in its last
+   * {@value BlockInflater#WINDOW_SIZE} bytes, the next chunk's window, are
+   * resolved here; the rest are resolved on the executor.
+   */
+  private void deliver(Speculation speculation) throws IOException {
+    byte[] data = speculation.data;
+    int n = data.length;
+    int[] table = resolution();
+    int tail = Math.min(speculation.marked.length, Math.max(n - WINDOW_SIZE, 0));
+    if (!resolve(speculation.marked, tail, speculation.marked.length, data, table)) {
+      throw new ZipException("Invalid distance too far back");
+    }
+    pieces.add(CompletableFuture.supplyAsync(() -> resolve(speculation, tail, table), executor));
+    updateWindow(data, n);
+    speculated += n;
+    position = speculation.end;
+    memberEnded = speculation.last;
+  }
+
+  /**
+   * Returns the byte each char of speculative output stands for, given
+   * the window: itself, for a byte, or the byte of the window a marker
+   * points to, or -1 for a marker before the start of the stream.
+   */
+  private int[] resolution() {
+    int[] table = new int[BlockInflater.MARKER + WINDOW_SIZE];
+    for (int i = 0; i < 256; i++) {
+      table[i] = i;
+    }
+    int unknown = WINDOW_SIZE - windowLength;
+    for (int i = 0; i < WINDOW_SIZE; i++) {
+      table[BlockInflater.MARKER + i] = i < unknown ? -1 : window[i] & 0xff;
+    }
+    return table;
+  }
+
+  private static Piece resolve(Speculation speculation, int to, int[] table) {
+    byte[] data = speculation.data;
+    int marked = speculation.marked.length;
+    if (!resolve(speculation.marked, 0, to, data, table)) {
+      throw new UncheckedIOException(new ZipException("Invalid distance too far back"));
+    }
+    CRC32 crc = new CRC32();
+    crc.update(data, 0, marked);
+    return new Piece(data, data.length, Crc32.combine((int) crc.getValue(), speculation.crc, data.length - marked));
+  }
+
+  /**
+   * Resolves {@code marked[from, to)} into {@code data}, returning false
+   * if a marker points before the start of the stream.
+   */
+  private static boolean resolve(char[] marked, int from, int to, byte[] data, int[] table) {
+    int invalid = 0;
+    for (int i = from; i < to; i++) {
+      int b = table[marked[i]];
+      invalid |= b;
+      data[i] = (byte) b;
+    }
+    return invalid >= 0;
+  }
+
+  /**
+   * Decodes blocks from the current position on this thread, until one
+   * ends at or past {@code until}, or the last one of the member.
+   */
+  private void decode(Chunk chunk, long until) throws IOException {
+    BlockInflater serial = this.serial;
+    long base = chunk.offset * 8;
+    long end = chunk.end() + LOOKAHEAD;
+    byte[] input = input(chunk, end);
+    serial.setInput(input, input.length);
+    serial.window(window, WINDOW_SIZE - windowLength, windowLength);
+    serial.seek(position - base);
+    while (position < until) {
+      if (!serial.inflateBlock()) {
+        if (inputEnded && end >= inputLength) {
+          throw new EOFException("Unexpected end of DEFLATE stream");
+        }
+        end += LOOKAHEAD;
+        readUntil(end);
+        input = input(chunk, end);
+        serial.setInput(input, input.length);
+        serial.seek(position - base);
+        continue;
+      }
+      position = base + serial.position();
+      if (serial.finalBlock()) {
+        memberEnded = true;
+        break;
+      }
+      if (serial.outputEnd() - WINDOW_SIZE >= MAX_CHUNK_OUTPUT) {
+        break;
+      }
+    }
+    int n = serial.outputEnd() - WINDOW_SIZE;
+    byte[] data = new byte[n];
+    char[] out = serial.output();
+    for (int i = 0; i < n; i++) {
+      data[i] = (byte) out[WINDOW_SIZE + i];
+    }
+    CRC32 crc = new CRC32();
+    crc.update(data, 0, n);
+    pieces.add(CompletableFuture.completedFuture(new Piece(data, n, (int) crc.getValue())));
+    updateWindow(data, n);
+  }
+
+  private void updateWindow(byte[] data, int n) {
+    if (n >= WINDOW_SIZE) {
+      System.arraycopy(data, n - WINDOW_SIZE, window, 0, WINDOW_SIZE);
+    } else {
+      System.arraycopy(window, n, window, 0, WINDOW_SIZE - n);
+      System.arraycopy(data, 0, window, WINDOW_SIZE - n, n);
+    }
+    windowLength = Math.min(windowLength + n, WINDOW_SIZE);
+  }
+
+  /**
+   * Returns the chunk holding bit {@code position}, having dropped those
+   * before it and read ahead so that {@code maxInFlight} are decoding.
+   */
+  private Chunk chunkAt(long position) throws IOException {
+    long offset = position >>> 3;
+    while (!chunks.isEmpty() && chunks.get(0).end() <= offset) {
+      Chunk passed = chunks.remove(0);
+      if (passed.result != null) {
+        passed.result.cancel(false);
+      }
+    }
+    readUntil(offset + (long) (maxInFlight + 1) * chunkSize + LOOKAHEAD);
+    if (chunks.isEmpty() || chunks.get(0).offset > offset) {
+      throw new EOFException("Unexpected end of DEFLATE stream");
+    }
+    return chunks.get(0);
+  }
+
+  /**
+   * Returns up to {@code n} bytes of input from {@code offset}, fewer only
+   * at the end of the input.
+   */
+  private byte[] bytes(long offset, int n) throws IOException {
+    readUntil(offset + n);
+    return copy(offset, (int) Math.max(0, Math.min(n, inputLength - offset)));
+  }
+
+  /**
+   * Returns the input from the start of {@code first} to {@code end}, or
+   * to the end of the input read so far.
+   */
+  private byte[] input(Chunk first, long end) {
+    return copy(first.offset, (int) (Math.min(end, inputLength) - first.offset));
+  }
+
+  private byte[] copy(long offset, int n) {
+    byte[] b = new byte[n];
+    for (Chunk chunk : chunks) {
+      long from = Math.max(offset, chunk.offset);
+      long to = Math.min(offset + b.length, chunk.end());
+      if (from < to) {
+        System.arraycopy(chunk.data, (int) (from - chunk.offset), b, (int) (from - offset), (int) (to - from));
+      }
+    }
+    return b;
+  }
+
+  private void readUntil(long end) throws IOException {
+    while (!inputEnded && inputLength < end) {
+      readChunk();
+    }
+  }
+
+  /**
+   * Reads the next chunk of input, and hands to the executor each chunk
+   * that now has {@link #LOOKAHEAD} bytes of input after it.
+   */
+  private void readChunk() throws IOException {
+    byte[] data = new byte[chunkSize];
+    int n = 0;
+    while (n < data.length) {
+      int read = in.read(data, n, data.length - n);
+      if (read == -1) {
+        inputEnded = true;
+        break;
+      }
+      n += read;
+    }
+    if (n > 0) {
+      chunks.add(new Chunk(inputLength, Arrays.copyOf(data, n)));
+      inputLength += n;
+    }
+    for (Chunk chunk : chunks) {
+      if (!chunk.submitted && (inputEnded || inputLength >= chunk.end() + LOOKAHEAD)) {
+        speculate(chunk);
+      }
+    }
+  }
+
+  private void speculate(Chunk chunk) {
+    chunk.submitted = true;
+    // The first chunk starts at a known position, and is quicker decoded
+    // here than guessed at.
+    if (chunk.offset == 0) {
+      return;
+    }
+    byte[] input = input(chunk, chunk.end() + LOOKAHEAD);
+    int end = chunk.data.length;
+    long base = chunk.offset * 8;
+    chunk.result = CompletableFuture.supplyAsync(() -> speculate(input, end, base), executor);
+  }
+
+  /**
+   * Decodes from the first block that starts in {@code input[0, end)} and
+   * decodes without error, until a block ends at or past {@code end}.
+   * Returns null if there is none.
+   */
+  private Speculation speculate(byte[] input, int end, long base) {
+    BlockInflater inflater = inflaters.poll();
+    if (inflater == null) {
+      inflater = new BlockInflater();
+    }
+    try {
+      inflater.setInput(input, input.length);
+      long endBit = (long) end * 8;
+      long from = 0;
+      for (long start; (start = inflater.findBlock(from, endBit)) >= 0; ) {
+        long storedData = inflater.storedData(start);
+        // Every start in a stored block's zero bits decodes alike.
+        from = storedData >= 0 ? storedData - 2 : start + 1;
+        inflater.seek(start);
+        inflater.unknownWindow();
+        try {
+          boolean last = false;
+          while (inflater.position() < endBit && inflater.outputEnd() - WINDOW_SIZE < MAX_CHUNK_OUTPUT
+            && inflater.inflateBlock()) {
+            if (inflater.finalBlock()) {
+              last = true;
+              break;
+            }
+          }
+          if (inflater.position() == start) {
+            // The input ran out within the first block.
+            return null;
+          }
+          return new Speculation(base + start, storedData < 0 ? -1 : base + storedData,
+            base + inflater.position(), last, inflater.output(), inflater.outputEnd());
+        } catch (ZipException e) {
+          // Not a block after all.
+        }
+      }
+      return null;
+    } finally {
+      inflaters.add(inflater);
+    }
+  }
+
+  private static <T> T await(CompletableFuture<T> future) throws IOException {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) e.getCause()).getCause();
+      }
+      throw e;
+    }
+  }
+
+  private static class Chunk {
+    final long offset;
+    final byte[] data;
+    boolean submitted;
+    CompletableFuture<Speculation> result;
+    Speculation speculation;
+
+    Chunk(long offset, byte[] data) {
+      this.offset = offset;
+      this.data = data;
+    }
+
+    long end() {
+      return offset + data.length;
+    }
+  }
+
+  /**
+   * Output ready to be read, once resolved, or the CRC-32 and size in
+   * a GZIP member's trailer, if it has no data.
+   */
+  private static class Piece {
+    final byte[] data;
+    final int length;
+    final int crc;
+
+    Piece(byte[] data, int length, int crc) {
+      this.data = data;
+      this.length = length;
+      this.crc = crc;
+    }
+  }
+
+  /**
+   * A chunk's output, decoded from a guessed start. The output before its
+   * last marker is kept as it was decoded, until the window is known; the
+   * rest is already bytes, with its CRC-32.
+   */
+  private static class Speculation {
+    final long start;
+    // The bit at which the data of a stored first block starts, or -1.
+    final long storedData;
+    final long end;
+    final boolean last;
+    final char[] marked;
+    final byte[] data;
+    final int crc;
+
+    Speculation(long start, long storedData, long end, boolean last, char[] out, int outEnd) {
+      this.start = start;
+      this.storedData = storedData;
+      this.end = end;
+      this.last = last;
+      int n = outEnd - WINDOW_SIZE;
+      int markedLength = n;
+      while (markedLength > 0 && out[WINDOW_SIZE + markedLength - 1] < BlockInflater.MARKER) {
+        markedLength--;
+      }
+      byte[] data = new byte[n];
+      for (int i = markedLength; i < n; i++) {
+        data[i] = (byte) out[WINDOW_SIZE + i];
+      }
+      this.marked = Arrays.copyOfRange(out, WINDOW_SIZE, WINDOW_SIZE + markedLength);
+      this.data = data;
+      CRC32 crc = new CRC32();
+      crc.update(data, markedLength, n - markedLength);
+      this.crc = (int) crc.getValue();
+    }
+
+    /**
+     * Returns whether decoding from {@code position} gives this output:
+     * if it starts there, or if {@code position} is in the zero bits before
+     * the data of a stored first block, which any header of it lies in.
+     */
+    boolean startsAt(long position) {
+      return position == start || storedData >= 0 && position >= start && position + 3 <= storedData;
+    }
+  }
+}
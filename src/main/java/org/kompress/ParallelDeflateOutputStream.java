@@ -0,0 +1,240 @@
+package org.kompress;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+
+/**
+ * Compresses on several threads into a single DEFLATE or GZIP stream, in
+ * the manner of <a href="https://zlib.net/pigz/">pigz</a>.
+ *
+ * <p>Input is cut into chunks of {@link #CHUNK_SIZE} bytes, which are
+ * compressed independently on an {@link Executor}. Each chunk is primed
+ * with the last 32 KiB of the chunk before as its dictionary, so little
+ * ratio is lost at the seams. Every chunk but the last ends with a sync
+ * flush, whose empty stored block leaves the output byte aligned, and the
+ * compressed chunks are written out in order, back to back. The CRC-32
+ * of a GZIP stream is combined from those of the chunks.
+ *
+ * <p>The output depends only on the input and the level, never on the
+ * executor or the timing of its threads. At most {@code maxInFlight}
+ * chunks are buffered at a time: writes wait for the oldest chunk to be
+ * compressed once that many are pending.
+ */
+public class ParallelDeflateOutputStream extends OutputStream {
+
+  static final int CHUNK_SIZE = 128 * 1024;
+
+  private static final int DEFAULT_MAX_IN_FLIGHT = 2 * Runtime.getRuntime().availableProcessors();
+
+  private final OutputStream out;
+  private final int level;
+  private final boolean gzip;
+  private final Executor executor;
+  private final int maxInFlight;
+  private final ArrayDeque<CompletableFuture<Chunk>> pending = new ArrayDeque<>();
+  // Compressors not in use by a chunk; no more than
+  // maxInFlight are ever created.
+  private final ConcurrentLinkedQueue<DeflateCompressor> compressors = new ConcurrentLinkedQueue<>();
+  private final byte[] single = new byte[1];
+
+  private byte[] buffer = new byte[CHUNK_SIZE];
+  private int count;
+  private byte[] dictionary;
+  private int dictionaryLength;
+
+  private boolean started;
+  private int crc;
+  private long size;
+  private boolean finished;
+  private boolean closed;
+
+  public ParallelDeflateOutputStream(OutputStream out) {
+    this(out, Deflate.DEFAULT_COMPRESSION, false, ForkJoinPool.commonPool(), DEFAULT_MAX_IN_FLIGHT);
+  }
+
+  /**
+   * @param gzip        whether to frame the output as a GZIP member, rather than raw DEFLATE.
+   * @param executor    runs chunk compression.
+   * @param maxInFlight maximum number of chunks buffered and compressing at a time.
+   */
+  public ParallelDeflateOutputStream(OutputStream out, int level, boolean gzip,
+                                     Executor executor, int maxInFlight) {
+    if (level < Deflate.NO_COMPRESSION || level > Deflate.MAX_COMPRESSION) {
+      throw new IllegalArgumentException("Invalid compression level: " + level);
+    }
+    if (maxInFlight < 1) {
+      throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+    }
+    this.out = out;
+    this.level = level;
+    this.gzip = gzip;
+    this.executor = executor;
+    this.maxInFlight = maxInFlight;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    single[0] = (byte) b;
+    write(single, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (finished) {
+      throw new IOException("write beyond end of stream");
+    }
+
+    while (len > 0) {
+      int n = Math.min(len, CHUNK_SIZE - count);
+      System.arraycopy(b, off, buffer, count, n);
+      count += n;
+      off += n;
+      len -= n;
+      if (count == CHUNK_SIZE) {
+        submit(false);
+      }
+    }
+  }
+
+  /**
+   * Compresses all remaining input and writes the final block, and for
+   * GZIP the trailer, without closing the underlying stream.
+   */
+  public void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+    submit(true);
+    while (!pending.isEmpty()) {
+      writeChunk(pending.removeFirst());
+    }
+    if (gzip) {
+      Gzip.writeTrailer(out, crc, size);
+    }
+    finished = true;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      finish();
+    } catch (IOException | RuntimeException e) {
+      for (CompletableFuture<Chunk> future : pending) {
+        future.cancel(false);
+      }
+      pending.clear();
+      throw e;
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Hands the buffered input to the executor as the next chunk, first
+   * writing out the oldest chunk if {@code maxInFlight} are pending.
+   */
+  private void submit(boolean last) throws IOException {
+    if (pending.size() == maxInFlight) {
+      writeChunk(pending.removeFirst());
+    }
+
+    byte[] data = buffer;
+    int length = count;
+    byte[] dictionary = this.dictionary;
+    int dictionaryLength = this.dictionaryLength;
+    pending.addLast(CompletableFuture.supplyAsync(
+      () -> compress(data, length, dictionary, dictionaryLength, last), executor));
+
+    // The chunk's data stays untouched while it compresses, and
+    // serves as the next chunk's dictionary.
+    this.dictionary = data;
+    this.dictionaryLength = length;
+    buffer = new byte[CHUNK_SIZE];
+    count = 0;
+  }
+
+  private void writeChunk(CompletableFuture<Chunk> future) throws IOException {
+    Chunk chunk = future.join();
+    if (!started) {
+      started = true;
+      if (gzip) {
+        Gzip.writeHeader(out, level);
+      }
+    }
+    out.write(chunk.compressed, 0, chunk.compressedLength);
+    crc = Crc32.combine(crc, chunk.crc, chunk.length);
+    size += chunk.length;
+  }
+
+  private Chunk compress(byte[] data, int length, byte[] dictionary, int dictionaryLength, boolean last) {
+    DeflateCompressor compressor = compressors.poll();
+    if (compressor == null) {
+      compressor = new DeflateCompressor(level);
+    } else {
+      compressor.reset();
+    }
+
+    try {
+      if (dictionary != null) {
+        compressor.setDictionary(dictionary, 0, dictionaryLength);
+      }
+      compressor.setInput(data, 0, length);
+
+      BitWriter output = compressor.output;
+      byte[] compressed = new byte[length / 2 + 64];
+      int compressedLength = 0;
+      int flush = last ? DeflateCompressor.FINISH : DeflateCompressor.SYNC_FLUSH;
+      boolean more;
+      do {
+        more = compressor.deflate(flush);
+        output.flushBytes();
+        if (compressedLength + output.pos > compressed.length) {
+          compressed = Arrays.copyOf(compressed,
+            Math.max(compressed.length * 2, compressedLength + output.pos));
+        }
+        System.arraycopy(output.buf, 0, compressed, compressedLength, output.pos);
+        compressedLength += output.pos;
+        output.pos = 0;
+      } while (more);
+
+      CRC32 crc = new CRC32();
+      crc.update(data, 0, length);
+      return new Chunk(compressed, compressedLength, (int) crc.getValue(), length);
+    } finally {
+      compressors.add(compressor);
+    }
+  }
+
+  private static class Chunk {
+    final byte[] compressed;
+    final int compressedLength;
+    final int crc;
+    final int length;
+
+    Chunk(byte[] compressed, int compressedLength, int crc, int length) {
+      this.compressed = compressed;
+      this.compressedLength = compressedLength;
+      this.crc = crc;
+      this.length = length;
+    }
+  }
+}
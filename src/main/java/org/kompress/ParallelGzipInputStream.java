@@ -0,0 +1,423 @@
+package org.kompress;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+import java.util.zip.ZipException;
+
+/**
+ * Decompresses a GZIP file of many members, such as those written by
+ * {@code pigz --independent}, by {@code bgzip}, or by concatenating
+ * files, decoding whole members on an {@link Executor} and returning
+ * their output in order.
+ *
+ * <p>Members are found by scanning the input for GZIP headers. Where a
+ * header gives the member's size in a BGZF {@code BC} subfield, the
+ * next header is taken to be right after it, without scanning. Each
+ * stretch from one header to the next is decoded as one member, and is
+ * accepted only if it decodes to exactly its end, with a matching
+ * trailer. Anything else, a header that was really compressed data, a
+ * member with no header found within {@link #MAX_MEMBER_SIZE} bytes
+ * after its own, or one that decodes to more than
+ * {@link #MAX_MEMBER_OUTPUT} bytes, is decoded on the reading thread
+ * instead, with scanning resuming after it.
+ *
+ * <p>A file of one large member gains nothing from this; see
+ * {@link ParallelDeflateInputStream}.
+ */
+public class ParallelGzipInputStream extends InputStream {
+
+  static final int MAX_MEMBER_SIZE = 16 * 1024 * 1024;
+
+  static final int MAX_MEMBER_OUTPUT = 64 * 1024 * 1024;
+
+  private static final int READ_SIZE = 1024 * 1024;
+  private static final int DEFAULT_MAX_IN_FLIGHT = 2 * Runtime.getRuntime().availableProcessors();
+
+  private final InputStream in;
+  private final Executor executor;
+  private final int maxInFlight;
+  private final int maxMemberSize;
+  private final ArrayDeque<Member> pending = new ArrayDeque<>();
+  private final byte[] single = new byte[1];
+
+  // Input from the start of the member being read on, with buffer[0] at
+  // offset base.
+  private byte[] buffer = new byte[READ_SIZE];
+  private int bufferLength;
+  private long base;
+  private boolean inputEnded;
+  // The start of the next member to read.
+  private long start;
+  // The last header found, which has yet to be given an end.
+  private long last;
+  private long scanned;
+  // The next header, if a BGZF size says where it is.
+  private long nextHeader = -1;
+
+  private byte[] data = new byte[0];
+  private int dataPos;
+
+  // A member being decoded on the reading thread, when not null.
+  private DeflateInputStream serial;
+  private SerialInput serialInput;
+  private final CRC32 crc = new CRC32();
+  private long size;
+  private boolean ended;
+  // Bytes of output decoded ahead, rather than on the reading thread.
+  private long speculated;
+
+  public ParallelGzipInputStream(InputStream in) {
+    this(in, ForkJoinPool.commonPool(), DEFAULT_MAX_IN_FLIGHT);
+  }
+
+  /**
+   * @param executor    runs member decoding.
+   * @param maxInFlight maximum number of members decoding ahead of the reader.
+   */
+  public ParallelGzipInputStream(InputStream in, Executor executor, int maxInFlight) {
+    this(in, executor, maxInFlight, MAX_MEMBER_SIZE);
+  }
+
+  ParallelGzipInputStream(InputStream in, Executor executor, int maxInFlight, int maxMemberSize) {
+    if (maxInFlight < 1) {
+      throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+    }
+    this.in = in;
+    this.executor = executor;
+    this.maxInFlight = maxInFlight;
+    this.maxMemberSize = maxMemberSize;
+  }
+
+  @Override
+  public int read() throws IOException {
+    return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (len == 0) {
+      return 0;
+    }
+    while (true) {
+      if (dataPos < data.length) {
+        int n = Math.min(len, data.length - dataPos);
+        System.arraycopy(data, dataPos, b, off, n);
+        dataPos += n;
+        return n;
+      }
+      if (serial != null) {
+        int n = serial.read(b, off, len);
+        if (n != -1) {
+          crc.update(b, off, n);
+          size += n;
+          return n;
+        }
+        endSerial();
+      } else if (!next()) {
+        return -1;
+      }
+    }
+  }
+
+  @Override
+  public int available() {
+    return data.length - dataPos;
+  }
+
+  @Override
+  public void close() throws IOException {
+    cancel();
+    ended = true;
+    in.close();
+  }
+
+  /**
+   * Takes the next member decoded ahead, or starts decoding it on this
+   * thread, returning false at the end of the input.
+   */
+  private boolean next() throws IOException {
+    if (ended) {
+      return false;
+    }
+    fill();
+    Member member = pending.poll();
+    if (member == null) {
+      if (inputEnded && start == base + bufferLength) {
+        if (start == 0) {
+          throw new EOFException("Unexpected end of GZIP header");
+        }
+        ended = true;
+        return false;
+      }
+      // A member too large to decode ahead.
+      startSerial();
+      return true;
+    }
+    byte[] output = member.output.join();
+    if (output == null) {
+      startSerial();
+      return true;
+    }
+    data = output;
+    dataPos = 0;
+    start = member.end;
+    speculated += output.length;
+    fill();
+    return true;
+  }
+
+  private void fill() throws IOException {
+    scan();
+    while (!inputEnded && pending.size() < maxInFlight && base + bufferLength - last < maxMemberSize) {
+      readMore();
+      scan();
+    }
+  }
+
+  private void readMore() throws IOException {
+    if (bufferLength == buffer.length) {
+      int keep = (int) (start - base);
+      if (keep > buffer.length / 2) {
+        System.arraycopy(buffer, keep, buffer, 0, bufferLength - keep);
+        bufferLength -= keep;
+        base = start;
+      } else {
+        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+      }
+    }
+    int n = in.read(buffer, bufferLength, Math.min(READ_SIZE, buffer.length - bufferLength));
+    if (n == -1) {
+      inputEnded = true;
+    } else {
+      bufferLength += n;
+    }
+  }
+
+  /**
+   * Looks for headers in the input not yet scanned, giving the stretch
+   * before each to the executor as a member.
+   */
+  private void scan() throws IOException {
+    long end = base + bufferLength;
+    while (scanned < end) {
+      if (nextHeader > scanned) {
+        scanned = Math.min(nextHeader, end);
+        continue;
+      }
+      int i = (int) (scanned - base);
+      if (buffer[i] != Gzip.ID1) {
+        scanned++;
+        continue;
+      }
+      if (i + 4 > bufferLength) {
+        if (inputEnded) {
+          break;
+        }
+        return;
+      }
+      if (buffer[i + 1] == (byte) Gzip.ID2 && buffer[i + 2] == Gzip.CM_DEFLATE && (buffer[i + 3] & 0xe0) == 0) {
+        int headerLength = Gzip.headerLength(buffer, i, bufferLength - i);
+        if (headerLength == -1 && !inputEnded) {
+          return;
+        }
+        if (headerLength != -1) {
+          if (scanned > last) {
+            submit(last, scanned);
+            last = scanned;
+          }
+          int bgzfSize = bgzfSize(buffer, i, headerLength);
+          if (bgzfSize > 0) {
+            nextHeader = scanned + bgzfSize;
+          }
+        }
+      }
+      scanned++;
+    }
+    if (inputEnded && last < end) {
+      submit(last, end);
+      last = end;
+    }
+  }
+
+  private void submit(long from, long to) {
+    byte[] member = Arrays.copyOfRange(buffer, (int) (from - base), (int) (to - base));
+    pending.add(new Member(to, CompletableFuture.supplyAsync(() -> inflate(member), executor)));
+  }
+
+  /**
+   * Returns the member size from a BGZF {@code BC} subfield, which comes
+   * first in the extra field when there is one, or -1.
+   */
+  private static int bgzfSize(byte[] b, int i, int headerLength) {
+    if ((b[i + 3] & Gzip.FEXTRA) == 0 || headerLength < BgzfInputStream.BGZF_HEADER_SIZE
+      || Gzip.getUnsignedShort(b, i + 10) < 6 || b[i + 12] != 'B' || b[i + 13] != 'C'
+      || Gzip.getUnsignedShort(b, i + 14) != 2) {
+      return -1;
+    }
+    return Gzip.getUnsignedShort(b, i + 16) + 1;
+  }
+
+  /**
+   * Decodes {@code member} as exactly one GZIP member, returning null if
+   * it isn't one.
+   */
+  private static byte[] inflate(byte[] member) {
+    try {
+      int headerLength = Gzip.headerLength(member, 0, member.length);
+      if (headerLength == -1) {
+        return null;
+      }
+      ByteArrayInputStream compressed = new ByteArrayInputStream(member, headerLength,
+        member.length - headerLength);
+      InputStream in = new DeflateInputStream(compressed);
+      byte[] output = new byte[Math.max(1024, 4 * member.length)];
+      int n = 0;
+      while (true) {
+        if (n == output.length) {
+          if (n >= MAX_MEMBER_OUTPUT) {
+            return null;
+          }
+          output = Arrays.copyOf(output, Math.min(2 * n, MAX_MEMBER_OUTPUT));
+        }
+        int read = in.read(output, n, output.length - n);
+        if (read == -1) {
+          break;
+        }
+        n += read;
+      }
+      int trailer = member.length - Gzip.TRAILER_SIZE;
+      if (compressed.available() != Gzip.TRAILER_SIZE) {
+        return null;
+      }
+      CRC32 crc = new CRC32();
+      crc.update(output, 0, n);
+      if (Gzip.getInt(member, trailer) != (int) crc.getValue() || Gzip.getInt(member, trailer + 4) != n) {
+        return null;
+      }
+      return n == output.length ? output : Arrays.copyOf(output, n);
+    } catch (IOException | RuntimeException e) {
+      // Left for the reading thread to find again, if the data is bad.
+      return null;
+    }
+  }
+
+  private void startSerial() throws IOException {
+    cancel();
+    serialInput = new SerialInput((int) (start - base));
+    if (DeflateIndex.readHeader(serialInput) == -1) {
+      ended = true;
+      return;
+    }
+    serial = new DeflateInputStream(serialInput);
+    crc.reset();
+    size = 0;
+  }
+
+  private void endSerial() throws IOException {
+    byte[] trailer = new byte[Gzip.TRAILER_SIZE];
+    new DataInputStream(serialInput).readFully(trailer);
+    if (Gzip.getInt(trailer, 0) != (int) crc.getValue()) {
+      throw new ZipException("Corrupt GZIP trailer: CRC32 mismatch");
+    }
+    if (Gzip.getInt(trailer, 4) != (int) size) {
+      throw new ZipException("Corrupt GZIP trailer: ISIZE mismatch");
+    }
+    serial = null;
+    // Scan again from after the member, past any false headers in it.
+    if (serialInput.pos < bufferLength) {
+      start = base + serialInput.pos;
+    } else {
+      // Past the buffer, and whatever was read from the input after it.
+      base += bufferLength + serialInput.unbuffered;
+      bufferLength = 0;
+      start = base;
+      inputEnded = false;
+    }
+    last = start;
+    scanned = start;
+    nextHeader = -1;
+  }
+
+  long speculated() {
+    return speculated;
+  }
+
+  /**
+   * Returns the offset in the input of the next member to read.
+   */
+  long position() {
+    return start;
+  }
+
+  private void cancel() {
+    for (Member member : pending) {
+      member.output.cancel(false);
+    }
+    pending.clear();
+  }
+
+  /**
+   * The buffered input from a position, then the rest of the input, read
+   * no further than asked.
+   */
+  private final class SerialInput extends InputStream {
+
+    private int pos;
+    // Bytes read from the input itself, once past the buffer.
+    private long unbuffered;
+
+    SerialInput(int pos) {
+      this.pos = pos;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (pos < bufferLength) {
+        return buffer[pos++] & 0xff;
+      }
+      int b = in.read();
+      if (b != -1) {
+        unbuffered++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (pos < bufferLength) {
+        int n = Math.min(len, bufferLength - pos);
+        System.arraycopy(buffer, pos, b, off, n);
+        pos += n;
+        return n;
+      }
+      int n = in.read(b, off, len);
+      if (n > 0) {
+        unbuffered += n;
+      }
+      return n;
+    }
+  }
+
+  private static final class Member {
+    // Where the next member starts.
+    final long end;
+    final CompletableFuture<byte[]> output;
+
+    Member(long end, CompletableFuture<byte[]> output) {
+      this.end = end;
+      this.output = output;
+    }
+  }
+}
@@ -0,0 +1,264 @@
+package org.kompress;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Decompresses a whole DEFLATE or GZIP file on several threads, using a
+ * {@link DeflateIndex}: the span between one checkpoint and the next is
+ * independent of the rest, given the window stored for it.
+ *
+ * <p>Compressed spans are read in order on the calling thread, and
+ * inflated on an {@link Executor}. At most {@code maxInFlight} spans are
+ * read or inflated ahead of the one being delivered, so memory use
+ * depends on the index's span and not on the size of the file.
+ *
+ * <p>As with {@link SeekableDeflateInputStream}, GZIP trailers are not
+ * checked: the data is taken to be what was indexed.
+ */
+public class ParallelIndexedReader {
+
+  private static final int DEFAULT_MAX_IN_FLIGHT = 2 * Runtime.getRuntime().availableProcessors();
+
+  /**
+   * Receives the uncompressed data a span at a time, in order.
+   */
+  public interface SpanConsumer {
+    void accept(long offset, byte[] data) throws IOException;
+  }
+
+  private final SeekableByteChannel compressed;
+  private final DeflateIndex index;
+  private final Executor executor;
+  private final int maxInFlight;
+
+  public ParallelIndexedReader(SeekableByteChannel compressed, DeflateIndex index) {
+    this(compressed, index, ForkJoinPool.commonPool(), DEFAULT_MAX_IN_FLIGHT);
+  }
+
+  /**
+   * @param executor    runs span inflation.
+   * @param maxInFlight maximum number of spans read or inflated ahead.
+   */
+  public ParallelIndexedReader(SeekableByteChannel compressed, DeflateIndex index, Executor executor,
+                               int maxInFlight) {
+    if (maxInFlight < 1) {
+      throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+    }
+    this.compressed = compressed;
+    this.index = index;
+    this.executor = executor;
+    this.maxInFlight = maxInFlight;
+  }
+
+  /**
+   * Returns a stream of the uncompressed data. Closing it stops any
+   * inflation still pending, but leaves the channel open.
+   */
+  public InputStream stream() {
+    return new SpanInputStream(new Pass());
+  }
+
+  /**
+   * Writes all the uncompressed data to {@code out}, returning its
+   * length.
+   */
+  public long transferTo(WritableByteChannel out) throws IOException {
+    Pass pass = new Pass();
+    try {
+      long total = 0;
+      byte[] data;
+      while ((data = pass.next()) != null) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+          out.write(buffer);
+        }
+        total += data.length;
+      }
+      return total;
+    } finally {
+      pass.cancel();
+    }
+  }
+
+  /**
+   * Hands each span of uncompressed data to {@code consumer}, in order.
+   */
+  public void forEach(SpanConsumer consumer) throws IOException {
+    Pass pass = new Pass();
+    try {
+      long offset = 0;
+      byte[] data;
+      while ((data = pass.next()) != null) {
+        consumer.accept(offset, data);
+        offset += data.length;
+      }
+    } finally {
+      pass.cancel();
+    }
+  }
+
+  /**
+   * One read through the file, with its own pipeline of spans.
+   */
+  private final class Pass {
+
+    private final ArrayDeque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+    private int nextSpan;
+
+    /**
+     * Returns the next span, or null after the last.
+     */
+    byte[] next() throws IOException {
+      fill();
+      CompletableFuture<byte[]> next = pending.poll();
+      if (next == null) {
+        return null;
+      }
+      byte[] data = await(next);
+      fill();
+      return data;
+    }
+
+    void cancel() {
+      for (CompletableFuture<byte[]> future : pending) {
+        future.cancel(false);
+      }
+      pending.clear();
+      nextSpan = index.size();
+    }
+
+    private void fill() throws IOException {
+      while (nextSpan < index.size() && pending.size() < maxInFlight) {
+        int i = nextSpan++;
+        long offset = index.offset(i);
+        long end = i + 1 < index.size() ? index.offset(i + 1) : index.uncompressedLength();
+        // Empty members leave spans with nothing in them.
+        if (end == offset) {
+          continue;
+        }
+        long bitOffset = index.bitOffset(i);
+        long from = bitOffset >>> 3;
+        long to = i + 1 < index.size() ? (index.bitOffset(i + 1) + 7) >>> 3 : index.compressedLength();
+        if (end - offset > Integer.MAX_VALUE || to - from > Integer.MAX_VALUE) {
+          throw new IllegalStateException("Span too long at " + offset);
+        }
+
+        byte[] raw = new byte[(int) (to - from)];
+        ByteBuffer buffer = ByteBuffer.wrap(raw);
+        compressed.position(from);
+        while (buffer.hasRemaining()) {
+          if (compressed.read(buffer) == -1) {
+            throw new EOFException("Truncated span at " + offset);
+          }
+        }
+        byte[] window = index.deflatedWindow(i);
+        int length = (int) (end - offset);
+        pending.add(CompletableFuture.supplyAsync(
+          () -> inflate(offset, raw, window, (int) bitOffset & 7, length), executor));
+      }
+    }
+  }
+
+  private static byte[] inflate(long offset, byte[] raw, byte[] window, int bitOffset, int length) {
+    try {
+      byte[] data = new byte[length];
+      InputStream in = new DeflateInputStream(new ByteArrayInputStream(raw), Deflate.decompress(window),
+        bitOffset);
+      int n = 0;
+      while (n < length) {
+        int read = in.read(data, n, length - n);
+        if (read == -1) {
+          throw new EOFException("Span at " + offset + " is shorter than indexed");
+        }
+        n += read;
+      }
+      return data;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static byte[] await(CompletableFuture<byte[]> future) throws IOException {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) e.getCause()).getCause();
+      }
+      throw e;
+    }
+  }
+
+  private static final class SpanInputStream extends InputStream {
+
+    private final Pass pass;
+    private byte[] span = new byte[0];
+    private int pos;
+
+    SpanInputStream(Pass pass) {
+      this.pass = pass;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!ensureSpan()) {
+        return -1;
+      }
+      return span[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (off < 0 || len < 0 || len > b.length - off) {
+        throw new IndexOutOfBoundsException();
+      }
+      if (len == 0) {
+        return 0;
+      }
+      if (!ensureSpan()) {
+        return -1;
+      }
+      int n = Math.min(len, span.length - pos);
+      System.arraycopy(span, pos, b, off, n);
+      pos += n;
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return span == null ? 0 : span.length - pos;
+    }
+
+    @Override
+    public void close() {
+      pass.cancel();
+      span = null;
+    }
+
+    private boolean ensureSpan() throws IOException {
+      if (span == null) {
+        return false;
+      }
+      while (pos == span.length) {
+        span = pass.next();
+        pos = 0;
+        if (span == null) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
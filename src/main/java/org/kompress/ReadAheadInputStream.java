@@ -0,0 +1,191 @@
+package org.kompress;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Reads ahead of its consumer on another thread, into a ring of
+ * {@code depth} buffers, so that a slow read of the underlying stream
+ * overlaps with whatever the consumer does with the data before it.
+ *
+ * <p>Placed under a {@link DeflateInputStream}, it keeps the decoder from
+ * waiting on storage; placed over one, it moves decoding itself to the
+ * other thread. See {@link DeflateInputStream#pipelined}.
+ *
+ * <p>The reading task blocks, so it shouldn't share a small pool, such as
+ * the common {@link java.util.concurrent.ForkJoinPool}, with work it may
+ * be waiting on. By default each stream starts a daemon thread of its
+ * own; on newer JDKs an executor of virtual threads serves as well.
+ */
+public class ReadAheadInputStream extends InputStream {
+
+  public static final int DEFAULT_DEPTH = 4;
+  public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+  private final InputStream in;
+  private final BlockingQueue<Chunk> free;
+  private final BlockingQueue<Chunk> filled = new LinkedBlockingQueue<>();
+  private final byte[] single = new byte[1];
+  private volatile boolean closed;
+
+  private Chunk chunk;
+  private int pos;
+
+  public ReadAheadInputStream(InputStream in) {
+    this(in, DEFAULT_DEPTH, DEFAULT_BUFFER_SIZE, null);
+  }
+
+  /**
+   * @param depth      number of buffers, filled or being filled, ahead of
+   *                   the one being read.
+   * @param bufferSize size of each buffer.
+   * @param executor   runs the reading task, or null for a thread of its own.
+   */
+  public ReadAheadInputStream(InputStream in, int depth, int bufferSize, Executor executor) {
+    if (depth < 1) {
+      throw new IllegalArgumentException("depth must be positive: " + depth);
+    }
+    if (bufferSize < 1) {
+      throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+    }
+    this.in = in;
+    free = new ArrayBlockingQueue<>(depth + 1);
+    for (int i = 0; i < depth; i++) {
+      free.add(new Chunk(bufferSize));
+    }
+    if (executor == null) {
+      Thread thread = new Thread(this::readAhead, "kompress-read-ahead");
+      thread.setDaemon(true);
+      thread.start();
+    } else {
+      executor.execute(this::readAhead);
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    // As a decoder's input, this is read a byte at a time.
+    if (chunk != null && pos < chunk.length) {
+      return chunk.data[pos++] & 0xff;
+    }
+    return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (len == 0) {
+      return 0;
+    }
+    if (!ensureChunk()) {
+      return -1;
+    }
+    int n = Math.min(len, chunk.length - pos);
+    System.arraycopy(chunk.data, pos, b, off, n);
+    pos += n;
+    return n;
+  }
+
+  @Override
+  public int available() {
+    return chunk == null || chunk.length == -1 ? 0 : chunk.length - pos;
+  }
+
+  /**
+   * Stops reading ahead and closes the underlying stream.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    // Wakes the reading task if it's waiting for a buffer, and a reader
+    // on another thread, such as a decoder reading ahead of this one.
+    free.offer(new Chunk(0));
+    Chunk end = new Chunk(0);
+    end.error = new IOException("Stream closed");
+    filled.add(end);
+    in.close();
+  }
+
+  private boolean ensureChunk() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    while (chunk == null || pos == chunk.length) {
+      if (chunk != null) {
+        free.add(chunk);
+      }
+      try {
+        chunk = filled.take();
+      } catch (InterruptedException e) {
+        chunk = null;
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+      pos = 0;
+      if (chunk.error != null) {
+        IOException error = chunk.error;
+        // Later reads fail the same way.
+        filled.add(chunk);
+        chunk = null;
+        throw error;
+      }
+      if (chunk.length == -1) {
+        filled.add(chunk);
+        chunk = null;
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void readAhead() {
+    try {
+      while (true) {
+        Chunk next = free.take();
+        if (closed) {
+          return;
+        }
+        try {
+          int n;
+          do {
+            n = in.read(next.data, 0, next.data.length);
+          } while (n == 0);
+          next.length = n;
+        } catch (IOException e) {
+          next.error = e;
+        } catch (RuntimeException e) {
+          next.error = new IOException(e);
+        }
+        filled.add(next);
+        if (next.length == -1 || next.error != null) {
+          return;
+        }
+      }
+    } catch (InterruptedException e) {
+      Chunk failed = new Chunk(0);
+      failed.error = new InterruptedIOException("Read-ahead interrupted");
+      filled.add(failed);
+    }
+  }
+
+  private static final class Chunk {
+    final byte[] data;
+    // -1 at the end of the stream.
+    int length;
+    IOException error;
+
+    Chunk(int size) {
+      data = new byte[size];
+    }
+  }
+}
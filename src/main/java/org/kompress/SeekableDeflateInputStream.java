@@ -0,0 +1,110 @@
+package org.kompress;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * Reads a raw DEFLATE or GZIP file from any uncompressed offset, by
+ * resuming decoding at the nearest {@link DeflateIndex} checkpoint before
+ * it and skipping the output up to it. A seek costs at most a span of
+ * decoding, rather than everything before the offset.
+ */
+public class SeekableDeflateInputStream extends InputStream {
+
+  private final SeekableByteChannel compressed;
+  private final DeflateIndex index;
+  private final byte[] skipBuffer = new byte[1 << 14];
+
+  private InputStream in;
+  private DeflateInputStream inflater;
+  private long position;
+  private boolean eof;
+
+  public SeekableDeflateInputStream(SeekableByteChannel compressed, DeflateIndex index) throws IOException {
+    this.compressed = compressed;
+    this.index = index;
+    resume(0);
+  }
+
+  @Override
+  public int read() throws IOException {
+    return read(skipBuffer, 0, 1) == -1 ? -1 : skipBuffer[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (len == 0) {
+      return 0;
+    }
+    while (!eof) {
+      int n = inflater.read(b, off, len);
+      if (n != -1) {
+        position += n;
+        return n;
+      }
+      nextMember();
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the uncompressed offset of the next byte read.
+   */
+  public long position() {
+    return position;
+  }
+
+  /**
+   * Moves to the byte at {@code offset}, decoding from the nearest
+   * checkpoint before it, unless reading on from here is no further.
+   */
+  public void seek(long offset) throws IOException {
+    if (offset > index.uncompressedLength()) {
+      throw new EOFException("Offset past end of data: " + offset);
+    }
+    int i = index.checkpoint(offset);
+    if (offset < position || index.offset(i) > position) {
+      resume(i);
+    }
+    while (position < offset) {
+      if (read(skipBuffer, 0, (int) Math.min(skipBuffer.length, offset - position)) == -1) {
+        throw new EOFException("Offset past end of data: " + offset);
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    compressed.close();
+  }
+
+  private void resume(int i) throws IOException {
+    long bitOffset = index.bitOffset(i);
+    compressed.position(bitOffset >>> 3);
+    in = new BufferedInputStream(Channels.newInputStream(compressed));
+    inflater = new DeflateInputStream(in, index.window(i), (int) bitOffset & 7);
+    position = index.offset(i);
+    eof = false;
+  }
+
+  private void nextMember() throws IOException {
+    if (!index.gzip()) {
+      eof = true;
+      return;
+    }
+    new DataInputStream(in).readFully(new byte[Gzip.TRAILER_SIZE]);
+    if (DeflateIndex.readHeader(in) == -1) {
+      eof = true;
+      return;
+    }
+    inflater = new DeflateInputStream(in);
+  }
+}
@@ -0,0 +1,99 @@
+package org.kompress;
+
+/**
+ * The LZ77 tokens produced by the compressor, and their mapping onto the
+ * length and distance symbols of DEFLATE.
+ *
+ * <p>A token packs a distance into its high 16 bits and either a literal
+ * or a match length into its low 16 bits. Literals have distance 0.
+ */
+final class Tokens {
+
+  static final int MIN_MATCH = 3;
+  static final int MAX_MATCH = 258;
+  static final int MAX_DISTANCE = 1 << 15;
+
+  static final int END_OF_BLOCK = 256;
+  static final int NUM_LIT_LEN = 286;
+  static final int NUM_DIST = 30;
+
+  static final int[] LENGTH_BASE = {
+    3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31,
+    35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258};
+
+  static final int[] LENGTH_EXTRA = {
+    0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2,
+    3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0};
+
+  static final int[] DIST_BASE = {
+    1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193,
+    257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577};
+
+  static final int[] DIST_EXTRA = {
+    0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6,
+    7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13};
+
+  // Indexed by length - 3.
+  private static final byte[] LENGTH_CODE = new byte[MAX_MATCH - MIN_MATCH + 1];
+
+  // Distances up to 256 are looked up directly. Above that, the
+  // low 7 bits never change the code, as in zlib's _dist_code.
+  private static final byte[] DIST_CODE = new byte[512];
+
+  static {
+    for (int code = 0; code < LENGTH_BASE.length; code++) {
+      for (int i = 0; i < 1 << LENGTH_EXTRA[code]; i++) {
+        LENGTH_CODE[LENGTH_BASE[code] - MIN_MATCH + i] = (byte) code;
+      }
+    }
+    // 258 has a code of its own, not 284 plus 31 extra.
+    LENGTH_CODE[MAX_MATCH - MIN_MATCH] = (byte) (LENGTH_BASE.length - 1);
+
+    for (int code = 0; code < DIST_BASE.length; code++) {
+      for (int i = 0; i < 1 << DIST_EXTRA[code]; i++) {
+        int d = DIST_BASE[code] - 1 + i;
+        if (d < 256) {
+          DIST_CODE[d] = (byte) code;
+        } else {
+          DIST_CODE[256 + (d >>> 7)] = (byte) code;
+        }
+      }
+    }
+  }
+
+  private Tokens() {
+  }
+
+  static int literal(int b) {
+    return b & 0xff;
+  }
+
+  static int match(int length, int distance) {
+    return distance << 16 | length;
+  }
+
+  static boolean isLiteral(int token) {
+    return token >>> 16 == 0;
+  }
+
+  static int distance(int token) {
+    return token >>> 16;
+  }
+
+  static int length(int token) {
+    return token & 0xffff;
+  }
+
+  /**
+   * Returns the index of the length symbol for a match length,
+   * counting from 257.
+   */
+  static int lengthCode(int length) {
+    return LENGTH_CODE[length - MIN_MATCH];
+  }
+
+  static int distCode(int distance) {
+    int d = distance - 1;
+    return d < 256 ? DIST_CODE[d] : DIST_CODE[256 + (d >>> 7)];
+  }
+}
@@ -0,0 +1,105 @@
+package org.kompress;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.function.LongSupplier;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveDeflateOutputStreamTest {
+
+  private static final int SEGMENT = AdaptiveDeflateOutputStream.SEGMENT_SIZE;
+
+  @Test public void settlesOnHighestLevelThatKeepsUp() throws Exception {
+    FakeClocks clocks = new FakeClocks();
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    AdaptiveDeflateOutputStream out = clocks.stream = new AdaptiveDeflateOutputStream(compressed,
+      45 / 1000.0, 0, Deflate.BEST_SPEED, Deflate.BEST_COMPRESSION, clocks.cpu, clocks.wall);
+    byte[] text = DeflateOutputStreamTest.text(200 * SEGMENT);
+    int atFive = 0;
+    for (int off = 0; off < text.length; off += SEGMENT) {
+      out.write(text, off, SEGMENT);
+      if (out.level() == 5) {
+        atFive++;
+      }
+    }
+    out.close();
+    assertTrue("at level 5: " + atFive, atFive >= 190);
+    assertEquals(50, out.throughput(), 1);
+    assertArrayEquals(text, DeflateOutputStreamTest.inflate(compressed.toByteArray()));
+  }
+
+  @Test public void followsBurstsUnderCpuBudget() throws Exception {
+    FakeClocks clocks = new FakeClocks();
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    AdaptiveDeflateOutputStream out = clocks.stream = new AdaptiveDeflateOutputStream(compressed,
+      0, 0.5, Deflate.BEST_SPEED, Deflate.BEST_COMPRESSION, clocks.cpu, clocks.wall);
+    byte[] text = DeflateOutputStreamTest.text(90 * SEGMENT);
+    // Input arrives at 1 MB/s, then 40 MB/s, then 1 MB/s again.
+    for (int i = 0; i < 90; i++) {
+      double megabytesPerSecond = i >= 30 && i < 60 ? 40 : 1;
+      clocks.wallTime += (long) (SEGMENT / megabytesPerSecond * 1000);
+      out.write(text, i * SEGMENT, SEGMENT);
+      if (i == 29 || i == 89) {
+        assertEquals(Deflate.BEST_COMPRESSION, out.level());
+        assertTrue("load " + out.load(), out.load() < 0.5);
+      } else if (i == 59) {
+        assertTrue("level " + out.level(), out.level() <= 2);
+        assertTrue("load " + out.load(), out.load() < 0.55);
+      }
+    }
+    out.close();
+    assertArrayEquals(text, DeflateOutputStreamTest.readAll(
+      new DeflateInputStream(new ByteArrayInputStream(compressed.toByteArray()))));
+  }
+
+  @Test public void staysWithinLevels() throws Exception {
+    byte[] text = DeflateOutputStreamTest.text(40 * SEGMENT + 123);
+    for (double megabytesPerSecond : new double[]{1e-6, 1e9}) {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      AdaptiveDeflateOutputStream out = AdaptiveDeflateOutputStream.withTargetSpeed(compressed,
+        megabytesPerSecond, 2, 8);
+      for (int off = 0; off < text.length; off += 5000) {
+        out.write(text, off, Math.min(5000, text.length - off));
+      }
+      out.close();
+      assertEquals(megabytesPerSecond < 1 ? 8 : 2, out.level());
+      assertTrue(out.throughput() > 0);
+      assertArrayEquals(text, DeflateOutputStreamTest.inflate(compressed.toByteArray()));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidLevels() {
+    AdaptiveDeflateOutputStream.withTargetSpeed(new ByteArrayOutputStream(), 100, 9, 1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidBudget() {
+    AdaptiveDeflateOutputStream.withCpuBudget(new ByteArrayOutputStream(), 1.5);
+  }
+
+  /**
+   * Compression at level L takes (10 - L) * 10 MB/s of the fake CPU clock,
+   * while the wall clock only moves as the test moves it.
+   */
+  private static class FakeClocks {
+    AdaptiveDeflateOutputStream stream;
+    long cpuTime;
+    long wallTime;
+    private int reads;
+
+    final LongSupplier cpu = () -> {
+      // Reads come in pairs around each write of a segment.
+      if (reads++ % 2 == 1) {
+        cpuTime += (long) (SEGMENT / ((10 - stream.level()) * 10 / 1000.0));
+      }
+      return cpuTime;
+    };
+    final LongSupplier wall = () -> wallTime;
+  }
+}
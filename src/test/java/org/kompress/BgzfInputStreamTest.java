@@ -0,0 +1,200 @@
+package org.kompress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BgzfInputStreamTest {
+
+  // bgzip's input block size, which leaves room for incompressible data.
+  private static final int BLOCK_INPUT = 0xff00;
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(4);
+  private Path file;
+
+  @Before public void setUp() throws IOException {
+    file = Files.createTempFile("kompress", ".bgzf");
+  }
+
+  @After public void tearDown() throws IOException {
+    executor.shutdownNow();
+    Files.deleteIfExists(file);
+  }
+
+  @Test public void readsAllBlocksInOrder() throws IOException {
+    byte[] uncompressed = randomBytes(5 * BLOCK_INPUT + 1234);
+    Files.write(file, bgzf(uncompressed));
+
+    try (InputStream in = open(null)) {
+      assertArrayEquals(uncompressed, readAll(in));
+    }
+  }
+
+  @Test public void readsByteAtATime() throws IOException {
+    byte[] uncompressed = randomBytes(2 * BLOCK_INPUT + 17);
+    Files.write(file, bgzf(uncompressed));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (InputStream in = open(null)) {
+      int b;
+      while ((b = in.read()) != -1) {
+        out.write(b);
+      }
+    }
+    assertArrayEquals(uncompressed, out.toByteArray());
+  }
+
+  @Test public void emptyFile() throws IOException {
+    Files.write(file, bgzf(new byte[0]));
+
+    try (InputStream in = open(null)) {
+      assertEquals(-1, in.read());
+    }
+  }
+
+  @Test public void seeksToVirtualOffset() throws IOException {
+    byte[] uncompressed = randomBytes(4 * BLOCK_INPUT);
+    Files.write(file, bgzf(uncompressed));
+
+    // Within a block, and exactly at the end of one.
+    for (int skip : new int[]{BLOCK_INPUT + 100, BLOCK_INPUT, 2 * BLOCK_INPUT}) {
+      try (BgzfInputStream in = open(null)) {
+        byte[] skipped = new byte[skip];
+        readFully(in, skipped);
+        long virtualOffset = in.getVirtualOffset();
+        byte[] expected = new byte[500];
+        readFully(in, expected);
+        assertArrayEquals(Arrays.copyOfRange(uncompressed, skip, skip + 500), expected);
+
+        in.seek(0);
+        assertEquals(uncompressed[0], (byte) in.read());
+
+        in.seek(virtualOffset);
+        assertEquals(virtualOffset, in.getVirtualOffset());
+        byte[] actual = new byte[500];
+        readFully(in, actual);
+        assertArrayEquals("skipped " + skip, expected, actual);
+      }
+    }
+  }
+
+  @Test public void seeksUncompressedWithAndWithoutIndex() throws IOException {
+    byte[] uncompressed = randomBytes(6 * BLOCK_INPUT + 99);
+    Files.write(file, bgzf(uncompressed));
+
+    BgzfIndex index;
+    try (FileChannel channel = FileChannel.open(file)) {
+      index = BgzfIndex.build(channel);
+    }
+    ByteArrayOutputStream gzi = new ByteArrayOutputStream();
+    index.write(gzi);
+    BgzfIndex reread = BgzfIndex.read(new ByteArrayInputStream(gzi.toByteArray()));
+    assertEquals(index.size(), reread.size());
+
+    for (BgzfIndex i : new BgzfIndex[]{null, reread}) {
+      try (BgzfInputStream in = open(i)) {
+        for (int offset : new int[]{3 * BLOCK_INPUT + 7, 0, BLOCK_INPUT, 6 * BLOCK_INPUT + 98}) {
+          in.seekUncompressed(offset);
+          assertEquals(uncompressed[offset], (byte) in.read());
+        }
+      }
+    }
+  }
+
+  private BgzfInputStream open(BgzfIndex index) throws IOException {
+    return new BgzfInputStream(FileChannel.open(file), index, executor, 3);
+  }
+
+  static byte[] bgzf(byte[] uncompressed) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int off = 0; off < uncompressed.length; off += BLOCK_INPUT) {
+      writeBlock(out, uncompressed, off, Math.min(BLOCK_INPUT, uncompressed.length - off));
+    }
+    writeBlock(out, uncompressed, 0, 0);
+    return out.toByteArray();
+  }
+
+  private static void writeBlock(ByteArrayOutputStream out, byte[] data, int off, int len) {
+    Deflater deflater = new Deflater(6, true);
+    deflater.setInput(data, off, len);
+    deflater.finish();
+    byte[] payload = new byte[1 << 16];
+    int payloadLen = deflater.deflate(payload);
+    deflater.end();
+
+    CRC32 crc = new CRC32();
+    crc.update(data, off, len);
+    int blockSize = 18 + payloadLen + 8;
+
+    out.write(byteArray(0x1f, 0x8b, 8, 4, 0, 0, 0, 0, 0, 0xff, 6, 0, 'B', 'C', 2, 0), 0, 16);
+    writeLe(out, blockSize - 1, 2);
+    out.write(payload, 0, payloadLen);
+    writeLe(out, (int) crc.getValue(), 4);
+    writeLe(out, len, 4);
+  }
+
+  private static void writeLe(ByteArrayOutputStream out, int value, int n) {
+    for (int i = 0; i < n; i++) {
+      out.write(value >>> (8 * i));
+    }
+  }
+
+  private static byte[] randomBytes(int length) {
+    // Skewed towards a few symbols so blocks compress, but
+    // covering the full byte range.
+    Random random = new Random(length);
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte) (random.nextInt(4) == 0 ? random.nextInt(256) : 'a' + random.nextInt(3));
+    }
+    return bytes;
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[10000];
+    int n;
+    while ((n = in.read(buf)) != -1) {
+      out.write(buf, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  private static void readFully(InputStream in, byte[] b) throws IOException {
+    int n = 0;
+    while (n < b.length) {
+      int read = in.read(b, n, b.length - n);
+      if (read == -1) {
+        throw new IOException("Unexpected end of stream");
+      }
+      n += read;
+    }
+  }
+
+  private static byte[] byteArray(int... ints) {
+    byte[] bytes = new byte[ints.length];
+
+    for (int i = 0; i < ints.length; i++) {
+      bytes[i] = (byte) ints[i];
+    }
+
+    return bytes;
+  }
+}
@@ -0,0 +1,73 @@
+package org.kompress;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class BinaryTreeMatchFinderTest {
+
+  @Test public void findMatchesRecordsShortestDistanceForEachLength() {
+    Random random = new Random(5);
+    byte[] window = new byte[4096 + 8];
+    for (int i = 0; i < 4096; i++) {
+      window[i] = (byte) ('a' + random.nextInt(2));
+    }
+    BinaryTreeMatchFinder finder = new BinaryTreeMatchFinder(window);
+    int[] matches = new int[258];
+
+    for (int p = 0; p < 3000; p++) {
+      int max = Math.min(258, 4096 - p);
+      int count = finder.findMatches(p, max, Integer.MAX_VALUE, 259, matches, 0, matches.length);
+
+      // The nearest candidate reaching each length.
+      int found = 0;
+      int best = 2;
+      for (int c = p - 1; c >= 0; c--) {
+        int len = HashChainMatchFinderTest.matchLength(window, c, p, max);
+        if (len > best) {
+          assertEquals("at " + p, Tokens.match(len, p - c), matches[found++]);
+          best = len;
+        }
+      }
+      assertEquals("at " + p, found, count);
+    }
+  }
+
+  @Test public void skippedPositionsAreFound() {
+    byte[] window = new byte[8192 + 8];
+    Random random = new Random(6);
+    for (int i = 0; i < 1000; i++) {
+      window[i] = (byte) random.nextInt();
+    }
+    System.arraycopy(window, 0, window, 4000, 1000);
+    BinaryTreeMatchFinder finder = new BinaryTreeMatchFinder(window);
+    for (int p = 0; p < 4000; p++) {
+      finder.skip(p, 258, 64, 258);
+    }
+
+    int[] matches = new int[16];
+    for (int p = 4000; p < 4500; p++) {
+      int count = finder.findMatches(p, 258, 64, 258, matches, 0, matches.length);
+      assertEquals(Tokens.match(Math.min(258, 5000 - p), 4000), matches[count - 1]);
+    }
+  }
+
+  @Test public void slideKeepsPositionsInWindow() {
+    byte[] window = new byte[4 * DeflateCompressor.WINDOW_SIZE + 8];
+    for (int i = 0; i < window.length - 8; i++) {
+      window[i] = (byte) ("kompress".charAt(i % 8));
+    }
+    BinaryTreeMatchFinder finder = new BinaryTreeMatchFinder(window);
+    int[] matches = new int[16];
+    int slide = 2 * DeflateCompressor.WINDOW_SIZE;
+    for (int p = slide; p < slide + 100; p++) {
+      finder.skip(p, 258, 64, 258);
+    }
+    finder.slide(slide);
+
+    int count = finder.findMatches(100, 258, 64, 258, matches, 0, matches.length);
+    assertEquals(Tokens.match(258, 8), matches[count - 1]);
+  }
+}
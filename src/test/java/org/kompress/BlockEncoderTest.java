@@ -0,0 +1,124 @@
+package org.kompress;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BlockEncoderTest {
+
+  @Test public void packageMergeMatchesHuffmanWhenUnconstrained() {
+    Random random = new Random(3);
+    PackageMerge packageMerge = new PackageMerge(Tokens.NUM_LIT_LEN, Huffman.MAX_BITS);
+    int[] lengths = new int[Tokens.NUM_LIT_LEN];
+
+    for (int trial = 0; trial < 100; trial++) {
+      int[] freq = new int[Tokens.NUM_LIT_LEN];
+      for (int i = 0; i < freq.length; i++) {
+        // A narrow range of frequencies keeps the optimal code within 15 bits.
+        freq[i] = random.nextInt(3) == 0 ? 0 : 100 + random.nextInt(900);
+      }
+      packageMerge.build(freq, freq.length, Huffman.MAX_BITS, lengths);
+
+      assertEquals(huffmanCost(freq), cost(freq, lengths));
+      assertKraftComplete(lengths, Huffman.MAX_BITS);
+    }
+  }
+
+  @Test public void packageMergeLimitsLengths() {
+    // Fibonacci frequencies make an unconstrained Huffman code as deep as possible.
+    int[] freq = new int[30];
+    freq[0] = 1;
+    freq[1] = 1;
+    for (int i = 2; i < freq.length; i++) {
+      freq[i] = freq[i - 1] + freq[i - 2];
+    }
+    int[] lengths = new int[freq.length];
+    new PackageMerge(freq.length, 7).build(freq, freq.length, 7, lengths);
+
+    assertKraftComplete(lengths, 7);
+    for (int len : lengths) {
+      assertTrue(len >= 1 && len <= 7);
+    }
+  }
+
+  @Test public void packageMergeCompletesSingleSymbol() {
+    int[] freq = new int[Tokens.NUM_DIST];
+    freq[5] = 10;
+    int[] lengths = new int[freq.length];
+    new PackageMerge(freq.length, Huffman.MAX_BITS).build(freq, freq.length, Huffman.MAX_BITS, lengths);
+
+    assertEquals(1, lengths[5]);
+    assertEquals(1, lengths[0]);
+    assertKraftComplete(lengths, Huffman.MAX_BITS);
+  }
+
+  @Test public void literalsOnlyMatchZlibHuffmanOnly() throws Exception {
+    byte[] text = DeflateOutputStreamTest.text(BlockEncoder.TOKEN_BUFFER_SIZE);
+    BitWriter out = new BitWriter(new byte[DeflateCompressor.OUTPUT_BUFFER_SIZE], 0);
+    BlockEncoder encoder = new BlockEncoder(out);
+    for (byte b : text) {
+      encoder.literal(b);
+    }
+    encoder.writeBlock(text, 0, text.length, true, BlockEncoder.DYNAMIC);
+    out.alignToByte();
+    byte[] compressed = Arrays.copyOf(out.buf, out.pos);
+
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    deflater.setStrategy(Deflater.HUFFMAN_ONLY);
+    deflater.setInput(text);
+    deflater.finish();
+    byte[] zlib = new byte[text.length * 2];
+    int zlibLength = 0;
+    while (!deflater.finished()) {
+      zlibLength += deflater.deflate(zlib, zlibLength, zlib.length - zlibLength);
+    }
+    deflater.end();
+
+    assertArrayEquals(text, DeflateOutputStreamTest.readAll(new DeflateInputStream(new ByteArrayInputStream(compressed))));
+    // zlib's heuristic length limiting is never better than package-merge.
+    assertTrue(compressed.length + " vs " + zlibLength, compressed.length <= zlibLength);
+  }
+
+  private static long cost(int[] freq, int[] lengths) {
+    long cost = 0;
+    for (int i = 0; i < freq.length; i++) {
+      cost += (long) freq[i] * lengths[i];
+    }
+    return cost;
+  }
+
+  private static long huffmanCost(int[] freq) {
+    PriorityQueue<Long> queue = new PriorityQueue<>();
+    for (int f : freq) {
+      if (f > 0) {
+        queue.add((long) f);
+      }
+    }
+    long cost = 0;
+    while (queue.size() > 1) {
+      long merged = queue.poll() + queue.poll();
+      cost += merged;
+      queue.add(merged);
+    }
+    return cost;
+  }
+
+  private static void assertKraftComplete(int[] lengths, int maxBits) {
+    long sum = 0;
+    for (int len : lengths) {
+      if (len > 0) {
+        assertTrue(len <= maxBits);
+        sum += 1L << (maxBits - len);
+      }
+    }
+    assertEquals(1L << maxBits, sum);
+  }
+}
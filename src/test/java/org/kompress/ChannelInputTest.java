@@ -0,0 +1,87 @@
+package org.kompress;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ChannelInputTest {
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Test public void readsMappedFile() throws IOException {
+    byte[] data = DeflateOutputStreamTest.text(300 * 1024);
+    Path path = write(DeflateOutputStreamTest.compress(data, Deflate.DEFAULT_COMPRESSION));
+    try (InputStream in = DeflateInputStream.open(path, false)) {
+      assertArrayEquals(data, DeflateOutputStreamTest.readAll(in));
+    }
+  }
+
+  @Test public void readsAcrossWindows() throws IOException {
+    byte[] data = DeflateOutputStreamTest.text(300 * 1024);
+    byte[] compressed = DeflateOutputStreamTest.compress(data, Deflate.NO_COMPRESSION);
+    byte[] file = new byte[compressed.length + 5];
+    System.arraycopy(compressed, 0, file, 5, compressed.length);
+    FileChannel channel = FileChannel.open(write(file), StandardOpenOption.READ);
+    for (long mapSize : new long[]{4093, 0}) {
+      // Windows that split codes and stored blocks, then reads instead.
+      InputStream in = new DeflateInputStream(new ChannelInput(channel, 5, mapSize));
+      assertArrayEquals(data, DeflateOutputStreamTest.readAll(in));
+      assertEquals(0, channel.position());
+    }
+    channel.close();
+  }
+
+  @Test public void readsGzipFile() throws IOException {
+    byte[] data = DeflateOutputStreamTest.text(100 * 1024);
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+      out.write(data);
+    }
+    try (InputStream in = DeflateInputStream.open(write(compressed.toByteArray()), true)) {
+      assertArrayEquals(data, DeflateOutputStreamTest.readAll(in));
+    }
+  }
+
+  @Test public void closesChannel() throws IOException {
+    FileChannel channel = FileChannel.open(write(DeflateOutputStreamTest.compress(new byte[10], Deflate.BEST_SPEED)),
+      StandardOpenOption.READ);
+    new DeflateInputStream(channel, 0).close();
+    assertFalse(channel.isOpen());
+  }
+
+  @Test(expected = EOFException.class)
+  public void truncated() throws IOException {
+    byte[] compressed = DeflateOutputStreamTest.compress(DeflateOutputStreamTest.text(50 * 1024), Deflate.BEST_SPEED);
+    Path path = write(Arrays.copyOf(compressed, compressed.length / 2));
+    try (InputStream in = DeflateInputStream.open(path, false)) {
+      DeflateOutputStreamTest.readAll(in);
+    }
+  }
+
+  @Test(expected = ZipException.class)
+  public void notGzip() throws IOException {
+    DeflateInputStream.open(write(DeflateOutputStreamTest.text(100)), true);
+  }
+
+  private Path write(byte[] data) throws IOException {
+    Path path = folder.newFile().toPath();
+    Files.write(path, data);
+    return path;
+  }
+}
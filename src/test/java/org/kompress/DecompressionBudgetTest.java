@@ -0,0 +1,136 @@
+package org.kompress;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DecompressionBudgetTest {
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+  @After public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test public void tracksUse() throws IOException {
+    DecompressionBudget budget = new DecompressionBudget(100, 0, TimeUnit.SECONDS);
+    DecompressionBudget.Lease a = budget.acquire(60);
+    DecompressionBudget.Lease b = budget.acquire(40);
+    assertEquals(100, budget.used());
+    assertNull(budget.tryAcquire(1));
+    a.close();
+    a.close();
+    assertEquals(40, budget.used());
+    assertNotNull(budget.tryAcquire(60));
+    b.close();
+    assertEquals(60, budget.used());
+    assertEquals(100, budget.peak());
+    assertEquals(0, budget.waits());
+  }
+
+  @Test public void failsFast() throws IOException {
+    DecompressionBudget budget = new DecompressionBudget(DeflateInputStream.MEMORY, 0, TimeUnit.SECONDS);
+    byte[] data = DeflateOutputStreamTest.text(1000);
+    byte[] compressed = DeflateOutputStreamTest.compress(data, Deflate.BEST_SPEED);
+    try (InputStream in = new DeflateInputStream(new ByteArrayInputStream(compressed), budget)) {
+      try {
+        new DeflateInputStream(new ByteArrayInputStream(compressed), budget);
+        fail();
+      } catch (IOException e) {
+        assertTrue(e.getMessage(), e.getMessage().contains("budget exhausted"));
+      }
+      assertEquals(1, budget.rejections());
+      // The stream holding the budget is unaffected.
+      assertArrayEquals(data, DeflateOutputStreamTest.readAll(in));
+    }
+    assertEquals(0, budget.used());
+  }
+
+  @Test public void timesOut() throws IOException {
+    DecompressionBudget budget = new DecompressionBudget(10, 20, TimeUnit.MILLISECONDS);
+    budget.acquire(10);
+    try {
+      budget.acquire(1);
+      fail();
+    } catch (IOException e) {
+      assertEquals(1, budget.waits());
+      assertEquals(1, budget.rejections());
+      assertTrue(budget.waitNanos() >= TimeUnit.MILLISECONDS.toNanos(20));
+    }
+  }
+
+  @Test public void waitsForRoom() throws Exception {
+    DecompressionBudget budget = new DecompressionBudget(2 * DeflateInputStream.MEMORY);
+    byte[] data = DeflateOutputStreamTest.text(200 * 1024);
+    byte[] compressed = DeflateOutputStreamTest.compress(data, Deflate.DEFAULT_COMPRESSION);
+    List<Future<byte[]>> results = new ArrayList<>();
+    for (int i = 0; i < 12; i++) {
+      results.add(executor.submit(() -> Deflate.decompress(compressed, budget)));
+    }
+    for (Future<byte[]> result : results) {
+      assertArrayEquals(data, result.get());
+    }
+    assertEquals(0, budget.used());
+    assertTrue(budget.peak() <= budget.capacity());
+    assertEquals(0, budget.rejections());
+  }
+
+  @Test public void releasesAtEndOfStream() throws IOException {
+    DecompressionBudget budget = new DecompressionBudget(DeflateInputStream.MEMORY);
+    byte[] data = DeflateOutputStreamTest.text(5000);
+    InputStream in = new DeflateInputStream(
+      new ByteArrayInputStream(DeflateOutputStreamTest.compress(data, Deflate.BEST_SPEED)), budget);
+    assertEquals(DeflateInputStream.MEMORY, budget.used());
+    assertArrayEquals(data, DeflateOutputStreamTest.readAll(in));
+    assertEquals(0, budget.used());
+    assertNotNull(budget.tryAcquire(DeflateInputStream.MEMORY));
+  }
+
+  @Test public void batchKeepsNoMoreThanItLeased() throws IOException {
+    byte[] large = DeflateOutputStreamTest.text(2 * 1024 * 1024);
+    List<byte[]> compressed = new ArrayList<>();
+    compressed.add(DeflateOutputStreamTest.compress(large, Deflate.BEST_SPEED));
+    DecompressionBudget budget = new DecompressionBudget(BatchInflater.MEMORY, 0, TimeUnit.SECONDS);
+    // A single payload is decompressed on the calling thread.
+    assertArrayEquals(large, Deflate.decompressAll(compressed, executor, null, budget)[0]);
+    assertTrue(BatchInflater.retained() + " retained", BatchInflater.retained() <= BatchInflater.MEMORY);
+
+    Deflate.decompressAll(compressed, executor);
+    assertTrue(BatchInflater.retained() > BatchInflater.MEMORY);
+  }
+
+  @Test public void narrowsBatch() throws IOException {
+    // Room for one decoder, which must be the calling thread's.
+    DecompressionBudget budget = new DecompressionBudget(BatchInflater.MEMORY, 0, TimeUnit.SECONDS);
+    List<byte[]> payloads = new ArrayList<>();
+    List<byte[]> compressed = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      payloads.add(DeflateOutputStreamTest.text(i * 700));
+      compressed.add(DeflateOutputStreamTest.compress(payloads.get(i), Deflate.BEST_SPEED));
+    }
+    byte[][] results = Deflate.decompressAll(compressed, executor, null, budget);
+    for (int i = 0; i < payloads.size(); i++) {
+      assertArrayEquals(payloads.get(i), results[i]);
+    }
+    assertEquals(0, budget.used());
+    assertEquals(BatchInflater.MEMORY, budget.peak());
+    assertFalse(budget.rejections() > 0);
+  }
+}
@@ -0,0 +1,150 @@
+package org.kompress;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DeflateContextTest {
+
+  @Test public void roundTripsAtOffsets() throws Exception {
+    byte[] text = DeflateOutputStreamTest.text(100 * 1024);
+    for (int level = Deflate.NO_COMPRESSION; level <= Deflate.MAX_COMPRESSION; level++) {
+      DeflateContext context = new DeflateContext(level);
+      byte[] dst = new byte[7 + Deflate.compressBound(text.length - 10)];
+      int n = context.compress(text, 10, text.length - 10, dst, 7);
+      assertArrayEquals("level " + level, Arrays.copyOfRange(text, 10, text.length),
+        DeflateOutputStreamTest.inflate(Arrays.copyOfRange(dst, 7, 7 + n)));
+    }
+  }
+
+  @Test public void reuseLeavesNoTrace() throws Exception {
+    byte[] first = DeflateOutputStreamTest.text(50 * 1024);
+    byte[] second = DeflateOutputStreamTest.text(300);
+    for (int level = Deflate.NO_COMPRESSION; level <= Deflate.MAX_COMPRESSION; level++) {
+      DeflateContext context = new DeflateContext(level);
+      compress(context, first);
+      // The second input is all in the first's window, so any
+      // leftover history would change the output.
+      assertArrayEquals("level " + level, compress(new DeflateContext(level), second), compress(context, second));
+    }
+  }
+
+  @Test public void reuseMatchesFreshContextAtInputEnd() throws Exception {
+    byte[] first = new byte[50 * 1024];
+    Arrays.fill(first, (byte) 'z');
+    // Ends with three bytes that, with a fourth from the first input's
+    // leftovers, would look like an earlier four.
+    byte[] second = (new String(DeflateOutputStreamTest.text(300), "ISO-8859-1") + "wxyz--wxy").getBytes("ISO-8859-1");
+    for (int level = Deflate.NO_COMPRESSION; level <= Deflate.MAX_COMPRESSION; level++) {
+      DeflateContext context = new DeflateContext(level);
+      compress(context, first);
+      assertArrayEquals("level " + level, compress(new DeflateContext(level), second), compress(context, second));
+    }
+  }
+
+  @Test public void reuseLeavesNoTraceInProbe() throws Exception {
+    for (int seed = 1; seed <= 3; seed++) {
+      // Random data with a few short repeats, too few for the probe to
+      // find it compressible.
+      byte[] second = withRepeats(seed);
+      // The same, but for a compressible start, which moves the samples
+      // the probe searches, and so the positions it indexes.
+      byte[] first = second.clone();
+      Arrays.fill(first, 0, CompressibilityProbe.SAMPLE_LENGTH, (byte) 0);
+      DeflateContext context = new DeflateContext(Deflate.DEFAULT_COMPRESSION);
+      compress(context, first);
+      assertArrayEquals("seed " + seed, compress(new DeflateContext(Deflate.DEFAULT_COMPRESSION), second),
+        compress(context, second));
+    }
+  }
+
+  @Test public void boundHoldsForIncompressibleData() throws Exception {
+    Random random = new Random(5);
+    int[] lengths = {0, 1, 2, 3, 100, 4095, 4096, 4097, 65535, 65536, 65537, 300 * 1024};
+    for (int length : lengths) {
+      byte[] data = new byte[length];
+      random.nextBytes(data);
+      checkBound(data);
+    }
+  }
+
+  @Test public void boundHoldsForManyBlocks() throws Exception {
+    // Text and random data in turn, so that blocks end often.
+    ByteArrayOutputStream mixed = new ByteArrayOutputStream();
+    Random random = new Random(6);
+    for (int i = 0; i < 60; i++) {
+      byte[] part = i % 2 == 0 ? DeflateOutputStreamTest.text(4000 + random.nextInt(3000)) : new byte[4000 + random.nextInt(3000)];
+      if (i % 2 == 1) {
+        random.nextBytes(part);
+      }
+      mixed.write(part);
+    }
+    checkBound(mixed.toByteArray());
+  }
+
+  @Test public void tightDestination() throws Exception {
+    byte[] text = DeflateOutputStreamTest.text(100 * 1024);
+    DeflateContext context = new DeflateContext();
+    byte[] expected = compress(context, text);
+
+    byte[] dst = new byte[expected.length];
+    assertEquals(expected.length, context.compress(text, 0, text.length, dst, 0));
+    assertArrayEquals(expected, dst);
+
+    try {
+      context.compress(text, 0, text.length, new byte[expected.length - 1], 0);
+      fail();
+    } catch (IllegalArgumentException expectedException) {
+      // Too small.
+    }
+    // The context is still usable.
+    assertArrayEquals(expected, compress(context, text));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void negativeBound() {
+    Deflate.compressBound(-1);
+  }
+
+  private static void checkBound(byte[] data) throws Exception {
+    int bound = Deflate.compressBound(data.length);
+    for (int strategy = Deflate.DEFAULT_STRATEGY; strategy <= Deflate.RLE; strategy++) {
+      for (int level = Deflate.NO_COMPRESSION; level <= Deflate.MAX_COMPRESSION; level++) {
+        // Staged through the context's buffer, so that the bound is
+        // checked rather than relied on.
+        byte[] dst = new byte[bound - 1];
+        int n;
+        try {
+          n = new DeflateContext(level, strategy).compress(data, 0, data.length, dst, 0);
+        } catch (IllegalArgumentException e) {
+          n = bound;
+        }
+        assertTrue("level " + level + ", strategy " + strategy + ": " + n + " vs " + bound, n < bound);
+        assertArrayEquals(data, DeflateOutputStreamTest.inflate(Arrays.copyOf(dst, n)));
+      }
+    }
+  }
+
+  private static byte[] withRepeats(int seed) {
+    byte[] data = new byte[40000];
+    new Random(5).nextBytes(data);
+    Random random = new Random(seed);
+    for (int i = 0; i < 225; i++) {
+      int to = 32 * 1024 + random.nextInt(data.length - 32 * 1024 - 8);
+      System.arraycopy(data, random.nextInt(to - 8), data, to, 8);
+    }
+    return data;
+  }
+
+  private static byte[] compress(DeflateContext context, byte[] data) {
+    byte[] dst = new byte[Deflate.compressBound(data.length)];
+    return Arrays.copyOf(dst, context.compress(data, 0, data.length, dst, 0));
+  }
+}
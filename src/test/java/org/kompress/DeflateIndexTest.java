@@ -0,0 +1,229 @@
+package org.kompress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DeflateIndexTest {
+
+  private static final int SPAN = 64 * 1024;
+
+  private Path file;
+  private Path indexFile;
+
+  @Before public void setUp() throws IOException {
+    file = Files.createTempFile("kompress", ".gz");
+    indexFile = Files.createTempFile("kompress", ".kzix");
+  }
+
+  @After public void tearDown() throws IOException {
+    Files.deleteIfExists(file);
+    Files.deleteIfExists(indexFile);
+  }
+
+  @Test public void seeksRawDeflate() throws IOException {
+    byte[] data = mixed(1024 * 1024);
+    for (int level : new int[]{Deflate.NO_COMPRESSION, Deflate.BEST_SPEED, Deflate.DEFAULT_COMPRESSION}) {
+      byte[] compressed = DeflateOutputStreamTest.compress(data, level);
+      DeflateIndex index = DeflateIndex.build(new ByteArrayInputStream(compressed), false, SPAN);
+      assertEquals(data.length, index.uncompressedLength());
+      assertTrue("level " + level + ": " + index.size(), index.size() > 4);
+      Files.write(file, compressed);
+      checkSeeks(data, index);
+    }
+  }
+
+  @Test public void seeksZlibGzip() throws IOException {
+    byte[] data = mixed(1024 * 1024);
+    Files.write(file, gzip(data));
+    DeflateIndex index = DeflateIndex.build(Files.newInputStream(file), true, SPAN);
+    assertEquals(data.length, index.uncompressedLength());
+    checkSeeks(data, index);
+  }
+
+  @Test public void seeksAcrossMembers() throws IOException {
+    byte[] first = mixed(300 * 1024);
+    byte[] second = DeflateOutputStreamTest.text(200 * 1024);
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    compressed.write(gzip(first));
+    compressed.write(gzip(new byte[0]));
+    compressed.write(gzip(second));
+    Files.write(file, compressed.toByteArray());
+    byte[] data = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, data, first.length, second.length);
+
+    DeflateIndex index = DeflateIndex.build(new ByteArrayInputStream(compressed.toByteArray()), true, SPAN);
+    assertEquals(data.length, index.uncompressedLength());
+    checkSeeks(data, index);
+    try (SeekableDeflateInputStream in = open(index)) {
+      in.seek(first.length - 10);
+      assertArrayEquals(Arrays.copyOfRange(data, first.length - 10, data.length), DeflateOutputStreamTest.readAll(in));
+    }
+  }
+
+  @Test public void seeksFlushedBlocks() throws IOException {
+    byte[] data = DeflateOutputStreamTest.text(200 * 1024);
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (DeflaterOutputStream out = new DeflaterOutputStream(compressed, new Deflater(6, true), 512, true)) {
+      for (int off = 0; off < data.length; off += 1000) {
+        out.write(data, off, Math.min(1000, data.length - off));
+        out.flush();
+      }
+    }
+    Files.write(file, compressed.toByteArray());
+    checkSeeks(data, DeflateIndex.build(new ByteArrayInputStream(compressed.toByteArray()), false, 10000));
+  }
+
+  @Test public void windowsAreCompressed() throws IOException {
+    byte[] data = DeflateOutputStreamTest.text(2 * 1024 * 1024);
+    DeflateIndex index = DeflateIndex.build(new ByteArrayInputStream(gzip(data)), true, SPAN);
+    long windows = 0;
+    for (int i = 0; i < index.size(); i++) {
+      windows += index.deflatedWindow(i).length;
+    }
+    assertTrue(windows + " bytes for " + index.size(), windows < index.size() * DeflateIndex.WINDOW_SIZE / 2);
+  }
+
+  @Test public void writesAndMaps() throws IOException {
+    byte[] data = mixed(1024 * 1024);
+    Files.write(file, gzip(data));
+    DeflateIndex index = DeflateIndex.build(Files.newInputStream(file), true, SPAN);
+    try (OutputStream out = Files.newOutputStream(indexFile)) {
+      index.write(out);
+    }
+    DeflateIndex mapped = DeflateIndex.open(indexFile);
+    assertEquals(index.size(), mapped.size());
+    assertEquals(data.length, mapped.uncompressedLength());
+    assertEquals(Files.size(file), mapped.compressedLength());
+    checkSeeks(data, mapped);
+  }
+
+  @Test public void updatesWithAppendedMembers() throws IOException {
+    byte[] first = mixed(300 * 1024);
+    byte[] second = DeflateOutputStreamTest.text(500 * 1024);
+    Files.write(file, gzip(first));
+    try (OutputStream out = Files.newOutputStream(indexFile)) {
+      DeflateIndex.build(Files.newInputStream(file), true, SPAN).write(out);
+    }
+    Files.write(file, gzip(second), StandardOpenOption.APPEND);
+    Files.write(file, gzip(first), StandardOpenOption.APPEND);
+    byte[] data = new byte[2 * first.length + second.length];
+    System.arraycopy(first, 0, data, 0, first.length);
+    System.arraycopy(second, 0, data, first.length, second.length);
+    System.arraycopy(first, 0, data, first.length + second.length, first.length);
+
+    DeflateIndex updated;
+    try (FileChannel channel = FileChannel.open(file)) {
+      updated = DeflateIndex.update(indexFile, channel, SPAN);
+    }
+    DeflateIndex built = DeflateIndex.build(Files.newInputStream(file), true, SPAN);
+    assertEquals(built.size(), updated.size());
+    assertEquals(data.length, updated.uncompressedLength());
+    assertEquals(Files.size(file), updated.compressedLength());
+    checkSeeks(data, updated);
+    checkSeeks(data, DeflateIndex.open(indexFile));
+  }
+
+  @Test public void detectsChangedData() throws IOException {
+    byte[] compressed = gzip(mixed(200 * 1024));
+    Files.write(file, compressed);
+    try (OutputStream out = Files.newOutputStream(indexFile)) {
+      DeflateIndex.build(new ByteArrayInputStream(compressed), true, SPAN).write(out);
+    }
+    DeflateIndex index = DeflateIndex.open(indexFile);
+    try (FileChannel channel = FileChannel.open(file)) {
+      assertTrue(index.matches(channel));
+    }
+
+    compressed[compressed.length - 3] ^= 1;
+    Files.write(file, compressed);
+    try (FileChannel channel = FileChannel.open(file)) {
+      assertFalse(index.matches(channel));
+      DeflateIndex.update(indexFile, channel, SPAN);
+      fail();
+    } catch (IOException expected) {
+      assertEquals("Indexed data has changed", expected.getMessage());
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsOtherFiles() throws IOException {
+    Files.write(file, gzip(mixed(1000)));
+    DeflateIndex.open(file);
+  }
+
+  @Test(expected = EOFException.class)
+  public void seekPastEnd() throws IOException {
+    byte[] data = mixed(100 * 1024);
+    Files.write(file, gzip(data));
+    DeflateIndex index = DeflateIndex.build(Files.newInputStream(file), true, SPAN);
+    try (SeekableDeflateInputStream in = open(index)) {
+      in.seek(data.length + 1);
+    }
+  }
+
+  private void checkSeeks(byte[] data, DeflateIndex index) throws IOException {
+    Random random = new Random(data.length);
+    byte[] expected = new byte[1000];
+    byte[] actual = new byte[1000];
+    try (SeekableDeflateInputStream in = open(index)) {
+      for (int i = 0; i < 50; i++) {
+        int offset = random.nextInt(data.length - expected.length);
+        in.seek(offset);
+        assertEquals(offset, in.position());
+        int n = 0;
+        while (n < actual.length) {
+          n += in.read(actual, n, actual.length - n);
+        }
+        System.arraycopy(data, offset, expected, 0, expected.length);
+        assertArrayEquals("offset " + offset, expected, actual);
+      }
+      in.seek(data.length);
+      assertEquals(-1, in.read());
+    }
+  }
+
+  private SeekableDeflateInputStream open(DeflateIndex index) throws IOException {
+    return new SeekableDeflateInputStream(FileChannel.open(file), index);
+  }
+
+  private static byte[] gzip(byte[] data) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+      out.write(data);
+    }
+    return compressed.toByteArray();
+  }
+
+  private static byte[] mixed(int length) {
+    byte[] data = DeflateOutputStreamTest.text(length);
+    Random random = new Random(length);
+    for (int off = 0; off + 20000 < length; off += 60000 + random.nextInt(60000)) {
+      byte[] noise = new byte[10000 + random.nextInt(10000)];
+      random.nextBytes(noise);
+      System.arraycopy(noise, 0, data, off, noise.length);
+    }
+    return data;
+  }
+}
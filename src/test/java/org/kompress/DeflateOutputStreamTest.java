@@ -0,0 +1,514 @@
+package org.kompress;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeflateOutputStreamTest {
+
+  @Test public void empty() throws Exception {
+    for (int level = Deflate.NO_COMPRESSION; level <= Deflate.MAX_COMPRESSION; level++) {
+      check(new byte[0], level);
+    }
+  }
+
+  @Test public void singleByte() throws Exception {
+    for (int level = Deflate.NO_COMPRESSION; level <= Deflate.MAX_COMPRESSION; level++) {
+      check(new byte[]{(byte) 0xff}, level);
+    }
+  }
+
+  @Test public void text() throws Exception {
+    byte[] text = text(300 * 1024);
+    for (int level = Deflate.NO_COMPRESSION; level <= Deflate.MAX_COMPRESSION; level++) {
+      check(text, level);
+    }
+  }
+
+  @Test public void textCompresses() throws Exception {
+    byte[] text = text(100 * 1024);
+    byte[] compressed = compress(text, Deflate.BEST_SPEED);
+    assertTrue(compressed.length < text.length / 2);
+  }
+
+  @Test public void levelsMatchZlib() throws Exception {
+    byte[] text = text(500 * 1024);
+    // Level 1 gives up ratio for speed, and is checked separately.
+    for (int level = Deflate.BEST_SPEED + 1; level <= Deflate.BEST_COMPRESSION; level++) {
+      Deflater deflater = new Deflater(level, true);
+      deflater.setInput(text);
+      deflater.finish();
+      byte[] zlib = new byte[text.length];
+      int zlibLength = deflater.deflate(zlib);
+      deflater.end();
+
+      int length = compress(text, level).length;
+      assertTrue("level " + level + ": " + length + " vs " + zlibLength, length <= zlibLength * 1.01);
+    }
+  }
+
+  @Test public void optimalLevelsBeatZlib() throws Exception {
+    byte[] text = text(100 * 1024);
+    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+    deflater.setInput(text);
+    deflater.finish();
+    byte[] zlib = new byte[text.length];
+    int zlibLength = deflater.deflate(zlib);
+    deflater.end();
+
+    int previous = Integer.MAX_VALUE;
+    for (int level = Deflate.BEST_COMPRESSION + 1; level <= Deflate.MAX_COMPRESSION; level++) {
+      int length = check(text, level).length;
+      assertTrue("level " + level + ": " + length + " vs " + zlibLength, length < zlibLength);
+      assertTrue("level " + level + ": " + length + " vs " + previous, length <= previous);
+      previous = length;
+    }
+  }
+
+  @Test public void optimalLevelCompressesInParallel() throws Exception {
+    List<byte[]> inputs = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      inputs.add(text(20 * 1024 + i));
+    }
+    List<byte[]> expected = new ArrayList<>();
+    for (byte[] input : inputs) {
+      expected.add(compress(input, Deflate.MAX_COMPRESSION));
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(inputs.size());
+    try {
+      List<Future<byte[]>> futures = new ArrayList<>();
+      for (byte[] input : inputs) {
+        futures.add(executor.submit(() -> compress(input, Deflate.MAX_COMPRESSION)));
+      }
+      for (int i = 0; i < inputs.size(); i++) {
+        assertArrayEquals(expected.get(i), futures.get(i).get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test public void bestSpeedUsesFixedBlocks() throws Exception {
+    byte[] text = text(200 * 1024);
+    byte[] compressed = check(text, Deflate.BEST_SPEED);
+    // BTYPE of the first block.
+    assertEquals(1, (compressed[0] >> 1) & 3);
+    assertTrue(compressed.length < text.length / 2);
+  }
+
+  @Test public void randomBytesAreStored() throws Exception {
+    byte[] random = new byte[200 * 1024];
+    new Random(1).nextBytes(random);
+    for (int level = Deflate.NO_COMPRESSION; level <= Deflate.MAX_COMPRESSION; level++) {
+      byte[] compressed = check(random, level);
+      // Stored, with a few bytes of block framing.
+      assertTrue(compressed.length <= random.length + 5 * (random.length / 1024));
+    }
+  }
+
+  @Test public void compressesAfterIncompressibleData() throws Exception {
+    byte[] random = new byte[300 * 1024];
+    new Random(5).nextBytes(random);
+    byte[] text = text(200 * 1024);
+    ByteArrayOutputStream mixed = new ByteArrayOutputStream();
+    mixed.write(random);
+    mixed.write(text);
+
+    for (int level = Deflate.BEST_SPEED; level <= Deflate.MAX_COMPRESSION; level++) {
+      byte[] compressed = check(mixed.toByteArray(), level);
+      // Probed again soon after the text starts.
+      int parts = random.length + 5 * (random.length / BlockEncoder.MAX_STORED + 1) + compress(text, level).length;
+      assertTrue("level " + level + ": " + compressed.length + " vs " + parts,
+        compressed.length <= parts + 4096);
+    }
+  }
+
+  @Test public void repeatedRandomDataIsNotStored() throws Exception {
+    // The probe looks for matches, not just at the histogram.
+    byte[] block = new byte[10000];
+    new Random(6).nextBytes(block);
+    ByteArrayOutputStream repeated = new ByteArrayOutputStream();
+    for (int i = 0; i < 20; i++) {
+      repeated.write(block);
+    }
+    for (int level = Deflate.BEST_SPEED; level <= Deflate.MAX_COMPRESSION; level++) {
+      byte[] compressed = check(repeated.toByteArray(), level);
+      assertTrue("level " + level + ": " + compressed.length, compressed.length < 5 * block.length);
+    }
+  }
+
+  @Test public void singleRepeatedByte() throws Exception {
+    byte[] run = new byte[1 << 20];
+    for (int level = Deflate.NO_COMPRESSION; level <= Deflate.MAX_COMPRESSION; level++) {
+      check(run, level);
+    }
+  }
+
+  @Test public void mixedTextAndRandom() throws Exception {
+    ByteArrayOutputStream mixed = new ByteArrayOutputStream();
+    Random random = new Random(2);
+    for (int i = 0; i < 20; i++) {
+      byte[] chunk = i % 2 == 0 ? text(10000 + random.nextInt(50000)) : new byte[random.nextInt(50000)];
+      if (i % 2 == 1) {
+        random.nextBytes(chunk);
+      }
+      mixed.write(chunk);
+    }
+    check(mixed.toByteArray(), Deflate.DEFAULT_COMPRESSION);
+  }
+
+  @Test public void blocksEndWhereDataChanges() throws Exception {
+    byte[] head = text(12000);
+    byte[] random = new byte[12000];
+    new Random(4).nextBytes(random);
+    byte[] tail = text(12001);
+    ByteArrayOutputStream mixed = new ByteArrayOutputStream();
+    mixed.write(head);
+    mixed.write(random);
+    mixed.write(tail);
+
+    for (int level = 2; level <= Deflate.MAX_COMPRESSION; level++) {
+      byte[] compressed = check(mixed.toByteArray(), level);
+      // Close to a block for each part, the random one stored; a
+      // single dynamic block would be several percent larger.
+      int parts = compress(head, level).length + random.length + 5 + compress(tail, level).length;
+      assertTrue("level " + level + ": " + compressed.length + " vs " + parts,
+        compressed.length <= parts + parts / 50);
+    }
+  }
+
+  @Test public void strategies() throws Exception {
+    byte[] text = text(100 * 1024);
+    byte[] runs = runs(100 * 1024);
+    for (int strategy = Deflate.DEFAULT_STRATEGY; strategy <= Deflate.RLE; strategy++) {
+      for (int level = Deflate.NO_COMPRESSION; level <= Deflate.MAX_COMPRESSION; level++) {
+        check(text, level, strategy);
+        check(runs, level, strategy);
+      }
+    }
+  }
+
+  @Test public void huffmanOnlyMatchesZlib() throws Exception {
+    byte[] text = text(100 * 1024);
+    int length = check(text, Deflate.DEFAULT_COMPRESSION, Deflate.HUFFMAN_ONLY).length;
+    int zlibLength = zlibLength(text, Deflate.DEFAULT_COMPRESSION, Deflater.HUFFMAN_ONLY);
+    assertTrue(length + " vs " + zlibLength, length <= zlibLength);
+    // No matches, so no better than the literals' entropy.
+    assertTrue(length > compress(text, Deflate.DEFAULT_COMPRESSION).length * 2);
+  }
+
+  @Test public void filteredMatchesZlib() throws Exception {
+    byte[] text = text(500 * 1024);
+    for (int level = Deflate.BEST_SPEED + 1; level <= Deflate.BEST_COMPRESSION; level++) {
+      int length = check(text, level, Deflate.FILTERED).length;
+      int zlibLength = zlibLength(text, level, Deflater.FILTERED);
+      assertTrue("level " + level + ": " + length + " vs " + zlibLength, length <= zlibLength * 1.01);
+    }
+  }
+
+  @Test public void rleCompressesRuns() throws Exception {
+    byte[] runs = runs(200 * 1024);
+    int rle = check(runs, Deflate.DEFAULT_COMPRESSION, Deflate.RLE).length;
+    int full = compress(runs, Deflate.DEFAULT_COMPRESSION).length;
+    assertTrue(rle + " vs " + full, rle <= full * 1.1);
+
+    // Runs are all it finds.
+    byte[] text = text(100 * 1024);
+    assertTrue(check(text, Deflate.DEFAULT_COMPRESSION, Deflate.RLE).length
+      > compress(text, Deflate.DEFAULT_COMPRESSION).length * 2);
+  }
+
+  @Test public void rleDoesNotReachBackPastFullFlush() throws Exception {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (DeflateOutputStream out = new DeflateOutputStream(compressed, Deflate.DEFAULT_COMPRESSION, Deflate.RLE)) {
+      out.write(new byte[1000]);
+      out.flush(DeflateOutputStream.FULL_FLUSH);
+      int restart = compressed.size();
+      out.write(new byte[1000]);
+      out.finish();
+
+      byte[] tail = Arrays.copyOfRange(compressed.toByteArray(), restart, compressed.size());
+      assertArrayEquals(new byte[1000], inflate(tail));
+    }
+  }
+
+  @Test public void strategyChangesBetweenBlocks() throws Exception {
+    byte[] text = text(300 * 1024);
+    for (int level = Deflate.NO_COMPRESSION; level <= Deflate.MAX_COMPRESSION; level++) {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      try (DeflateOutputStream out = new DeflateOutputStream(compressed, level)) {
+        Random random = new Random(level);
+        for (int off = 0; off < text.length; ) {
+          int n = Math.min(text.length - off, 1 + random.nextInt(30000));
+          out.setStrategy(random.nextInt(Deflate.RLE + 1));
+          out.write(text, off, n);
+          off += n;
+        }
+      }
+      assertArrayEquals("level " + level, text, inflate(compressed.toByteArray()));
+      assertArrayEquals(text, readAll(new DeflateInputStream(new ByteArrayInputStream(compressed.toByteArray()))));
+    }
+  }
+
+  @Test public void levelChangesBetweenBlocks() throws Exception {
+    byte[] text = text(600 * 1024);
+    for (int strategy = Deflate.DEFAULT_STRATEGY; strategy <= Deflate.RLE; strategy++) {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      try (DeflateOutputStream out = new DeflateOutputStream(compressed, Deflate.DEFAULT_COMPRESSION, strategy)) {
+        Random random = new Random(strategy);
+        for (int off = 0; off < text.length; ) {
+          int n = Math.min(text.length - off, 1 + random.nextInt(30000));
+          out.setLevel(random.nextInt(Deflate.MAX_COMPRESSION + 1));
+          out.write(text, off, n);
+          off += n;
+          if (random.nextInt(8) == 0) {
+            out.flush(DeflateOutputStream.FULL_FLUSH);
+          }
+        }
+      }
+      assertArrayEquals("strategy " + strategy, text, inflate(compressed.toByteArray()));
+      assertArrayEquals(text, readAll(new DeflateInputStream(new ByteArrayInputStream(compressed.toByteArray()))));
+    }
+  }
+
+  @Test public void matchesReachBackAcrossLevelChanges() throws Exception {
+    byte[] data = new byte[20000];
+    new Random(8).nextBytes(data);
+    for (int from = Deflate.BEST_SPEED; from <= Deflate.MAX_COMPRESSION; from++) {
+      for (int to : new int[]{Deflate.BEST_SPEED, Deflate.DEFAULT_COMPRESSION, Deflate.MAX_COMPRESSION}) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (DeflateOutputStream out = new DeflateOutputStream(compressed, from)) {
+          out.write(data);
+          out.setLevel(to);
+          out.write(data);
+        }
+        assertTrue(from + " to " + to + ": " + compressed.size(), compressed.size() < data.length + 1000);
+        byte[] expected = new byte[2 * data.length];
+        System.arraycopy(data, 0, expected, 0, data.length);
+        System.arraycopy(data, 0, expected, data.length, data.length);
+        assertArrayEquals(expected, inflate(compressed.toByteArray()));
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidLevelChange() throws IOException {
+    new DeflateOutputStream(new ByteArrayOutputStream()).setLevel(Deflate.MAX_COMPRESSION + 1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidStrategy() throws IOException {
+    new DeflateOutputStream(new ByteArrayOutputStream()).setStrategy(Deflate.RLE + 1);
+  }
+
+  @Test public void writeOneByteAtATime() throws Exception {
+    byte[] text = text(70 * 1024);
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (DeflateOutputStream out = new DeflateOutputStream(compressed)) {
+      for (byte b : text) {
+        out.write(b);
+      }
+    }
+    assertArrayEquals(text, inflate(compressed.toByteArray()));
+    assertArrayEquals(text, Deflate.decompress(compressed.toByteArray()));
+  }
+
+  @Test public void syncFlushMakesEachMessageDecodable() throws Exception {
+    for (int level = Deflate.NO_COMPRESSION; level <= Deflate.MAX_COMPRESSION; level++) {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      ByteArrayOutputStream sent = new ByteArrayOutputStream();
+      DeflateOutputStream out = new DeflateOutputStream(compressed, level);
+      Random random = new Random(level);
+      for (int i = 0; i < 30; i++) {
+        byte[] message = text(1 + random.nextInt(i < 20 ? 100 : 40000));
+        out.write(message);
+        out.flush(DeflateOutputStream.SYNC_FLUSH);
+        sent.write(message);
+
+        byte[] soFar = compressed.toByteArray();
+        assertArrayEquals(new byte[]{0, 0, (byte) 0xff, (byte) 0xff},
+          Arrays.copyOfRange(soFar, soFar.length - 4, soFar.length));
+        assertArrayEquals("level " + level, sent.toByteArray(), readFully(soFar, sent.size()));
+      }
+      out.close();
+      assertArrayEquals(sent.toByteArray(), inflate(compressed.toByteArray()));
+    }
+  }
+
+  @Test public void fullFlushIsRestartPoint() throws Exception {
+    byte[] text = text(50 * 1024);
+    for (int level = Deflate.BEST_SPEED; level <= Deflate.MAX_COMPRESSION; level++) {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      try (DeflateOutputStream out = new DeflateOutputStream(compressed, level)) {
+        out.write(text, 0, 20000);
+        out.flush(DeflateOutputStream.FULL_FLUSH);
+        int restart = compressed.size();
+        out.write(text, 20000, text.length - 20000);
+        out.finish();
+
+        byte[] tail = Arrays.copyOfRange(compressed.toByteArray(), restart, compressed.size());
+        assertArrayEquals("level " + level, Arrays.copyOfRange(text, 20000, text.length), inflate(tail));
+        assertArrayEquals(Arrays.copyOfRange(text, 20000, text.length),
+          readAll(new DeflateInputStream(new ByteArrayInputStream(tail))));
+      }
+      assertArrayEquals(text, readAll(new DeflateInputStream(new ByteArrayInputStream(compressed.toByteArray()))));
+    }
+  }
+
+  @Test public void repeatedFlushWritesNothing() throws Exception {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    DeflateOutputStream out = new DeflateOutputStream(compressed);
+    out.write(text(100));
+    out.flush(DeflateOutputStream.SYNC_FLUSH);
+    int size = compressed.size();
+    out.flush(DeflateOutputStream.SYNC_FLUSH);
+    out.flush(DeflateOutputStream.FULL_FLUSH);
+    out.flush(DeflateOutputStream.NO_FLUSH);
+    assertEquals(size, compressed.size());
+
+    // A short message costs little more than its literals and the flush marker.
+    out.write("hello".getBytes());
+    out.flush(DeflateOutputStream.SYNC_FLUSH);
+    assertTrue(compressed.size() - size <= 5 + 2 + 5);
+    out.close();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidFlushMode() throws IOException {
+    new DeflateOutputStream(new ByteArrayOutputStream()).flush(1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidLevel() {
+    new DeflateOutputStream(new ByteArrayOutputStream(), Deflate.MAX_COMPRESSION + 1);
+  }
+
+  private static byte[] check(byte[] uncompressed, int level) throws Exception {
+    return check(uncompressed, level, Deflate.DEFAULT_STRATEGY);
+  }
+
+  private static byte[] check(byte[] uncompressed, int level, int strategy) throws Exception {
+    byte[] compressed = compress(uncompressed, level, strategy);
+    assertArrayEquals(uncompressed, inflate(compressed));
+    assertArrayEquals(uncompressed, readAll(new DeflateInputStream(new ByteArrayInputStream(compressed))));
+    return compressed;
+  }
+
+  static byte[] compress(byte[] uncompressed, int level) throws IOException {
+    return compress(uncompressed, level, Deflate.DEFAULT_STRATEGY);
+  }
+
+  static byte[] compress(byte[] uncompressed, int level, int strategy) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (DeflateOutputStream out = new DeflateOutputStream(compressed, level, strategy)) {
+      // Uneven writes, to move the end of input around.
+      Random random = new Random(uncompressed.length);
+      for (int off = 0; off < uncompressed.length; ) {
+        int n = Math.min(uncompressed.length - off, 1 + random.nextInt(100000));
+        out.write(uncompressed, off, n);
+        off += n;
+      }
+    }
+    return compressed.toByteArray();
+  }
+
+  private static int zlibLength(byte[] uncompressed, int level, int strategy) {
+    Deflater deflater = new Deflater(level, true);
+    deflater.setStrategy(strategy);
+    deflater.setInput(uncompressed);
+    deflater.finish();
+    byte[] buf = new byte[8192];
+    int length = 0;
+    while (!deflater.finished()) {
+      length += deflater.deflate(buf);
+    }
+    deflater.end();
+    return length;
+  }
+
+  static byte[] inflate(byte[] compressed) throws DataFormatException {
+    Inflater inflater = new Inflater(true);
+    inflater.setInput(compressed);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[8192];
+    while (!inflater.finished()) {
+      int n = inflater.inflate(buf);
+      if (n == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())) {
+        throw new DataFormatException("Truncated stream");
+      }
+      out.write(buf, 0, n);
+    }
+    assertEquals("Trailing bytes after final block", 0, inflater.getRemaining());
+    inflater.end();
+    return out.toByteArray();
+  }
+
+  /**
+   * Decodes exactly {@code n} bytes from a stream that may
+   * not be finished, as a receiver of flushed messages would.
+   */
+  private static byte[] readFully(byte[] compressed, int n) throws IOException {
+    InputStream in = new DeflateInputStream(new ByteArrayInputStream(compressed));
+    byte[] data = new byte[n];
+    for (int off = 0; off < n; ) {
+      int read = in.read(data, off, n - off);
+      assertTrue(read > 0);
+      off += read;
+    }
+    return data;
+  }
+
+  static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[8192];
+    int n;
+    while ((n = in.read(buf)) != -1) {
+      out.write(buf, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Runs of random bytes and lengths, as in images with uniform areas.
+   */
+  private static byte[] runs(int length) {
+    Random random = new Random(length);
+    byte[] runs = new byte[length];
+    for (int i = 0; i < length; ) {
+      int n = Math.min(length - i, 1 + random.nextInt(64));
+      Arrays.fill(runs, i, i + n, (byte) random.nextInt(8));
+      i += n;
+    }
+    return runs;
+  }
+
+  static byte[] text(int length) {
+    String[] words = {"the", "quick", "brown", "fox", "jumps", "over", "lazy", "dog", "{\"id\":", "\"name\":",
+      "kompress", "deflate", "window", "huffman", "\n", ", ", "0", "1", "2", "3", "4", "5", "6", "7", "8", "9"};
+    Random random = new Random(length);
+    StringBuilder sb = new StringBuilder(length + 16);
+    while (sb.length() < length) {
+      sb.append(words[random.nextInt(words.length)]).append(' ');
+    }
+    sb.setLength(length);
+    return sb.toString().getBytes();
+  }
+}
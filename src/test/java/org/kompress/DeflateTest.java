@@ -0,0 +1,132 @@
+package org.kompress;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DeflateTest {
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+  @After public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test public void decompressesBatch() throws IOException {
+    List<byte[]> payloads = payloads(500);
+    List<byte[]> compressed = new ArrayList<>();
+    for (byte[] payload : payloads) {
+      compressed.add(DeflateOutputStreamTest.compress(payload, payload.length % (Deflate.MAX_COMPRESSION + 1)));
+    }
+    byte[][] results = Deflate.decompressAll(compressed, executor);
+    for (int i = 0; i < payloads.size(); i++) {
+      assertArrayEquals("payload " + i, payloads.get(i), results[i]);
+    }
+  }
+
+  @Test public void decompressesIntoOutputSlots() throws IOException {
+    List<byte[]> payloads = payloads(200);
+    ByteBuffer[] compressed = new ByteBuffer[payloads.size()];
+    ByteBuffer[] outputs = new ByteBuffer[payloads.size()];
+    for (int i = 0; i < compressed.length; i++) {
+      byte[] c = DeflateOutputStreamTest.compress(payloads.get(i), Deflate.DEFAULT_COMPRESSION);
+      // Heap and direct buffers, not all starting at zero.
+      compressed[i] = ByteBuffer.allocateDirect(c.length + 3);
+      compressed[i].position(3);
+      compressed[i].put(c).position(3);
+      outputs[i] = i % 2 == 0 ? ByteBuffer.allocate(payloads.get(i).length + 5) :
+        ByteBuffer.allocateDirect(payloads.get(i).length);
+      outputs[i].position(outputs[i].capacity() - payloads.get(i).length);
+    }
+    Deflate.decompressAll(compressed, outputs, executor);
+    for (int i = 0; i < outputs.length; i++) {
+      assertEquals(3, compressed[i].position());
+      assertEquals(outputs[i].capacity(), outputs[i].position());
+      byte[] result = new byte[payloads.get(i).length];
+      outputs[i].position(outputs[i].capacity() - result.length);
+      outputs[i].get(result);
+      assertArrayEquals("payload " + i, payloads.get(i), result);
+    }
+  }
+
+  @Test public void isolatesFailures() throws IOException {
+    List<byte[]> payloads = payloads(100);
+    List<byte[]> compressed = new ArrayList<>();
+    for (byte[] payload : payloads) {
+      compressed.add(DeflateOutputStreamTest.compress(payload, Deflate.BEST_SPEED));
+    }
+    compressed.set(7, Arrays.copyOf(compressed.get(7), compressed.get(7).length / 2));
+    compressed.set(42, new byte[]{(byte) 0xff, 0x00});
+
+    IOException[] failures = new IOException[compressed.size()];
+    byte[][] results = Deflate.decompressAll(compressed, executor, failures);
+    for (int i = 0; i < payloads.size(); i++) {
+      if (i == 7 || i == 42) {
+        assertNull(results[i]);
+        assertTrue(failures[i].toString(), failures[i] instanceof EOFException || failures[i] instanceof ZipException);
+      } else {
+        assertNull(failures[i]);
+        assertArrayEquals("payload " + i, payloads.get(i), results[i]);
+      }
+    }
+  }
+
+  @Test(expected = ZipException.class)
+  public void failsBatch() throws IOException {
+    List<byte[]> compressed = new ArrayList<>();
+    for (byte[] payload : payloads(100)) {
+      compressed.add(DeflateOutputStreamTest.compress(payload, Deflate.BEST_SPEED));
+    }
+    // A block type of 3.
+    compressed.set(50, new byte[]{0x07, 0x00});
+    Deflate.decompressAll(compressed, executor);
+  }
+
+  @Test public void failsSlotTooSmall() throws IOException {
+    byte[] payload = DeflateOutputStreamTest.text(1000);
+    ByteBuffer[] compressed = {ByteBuffer.wrap(DeflateOutputStreamTest.compress(payload, Deflate.BEST_SPEED))};
+    ByteBuffer[] outputs = {ByteBuffer.allocate(999)};
+    IOException[] failures = new IOException[1];
+    Deflate.decompressAll(compressed, outputs, executor, failures);
+    assertEquals(0, outputs[0].position());
+    assertTrue(failures[0].getMessage(), failures[0].getMessage().contains("exceeds output buffer"));
+  }
+
+  @Test public void nullDictionaryIsNone() throws IOException {
+    byte[] data = DeflateOutputStreamTest.text(5000);
+    DeflateContext context = new DeflateContext();
+    context.setDictionary(null, 0, 0);
+    byte[] compressed = new byte[Deflate.compressBound(data.length)];
+    compressed = Arrays.copyOf(compressed, context.compress(data, 0, data.length, compressed, 0));
+    assertArrayEquals(data, Deflate.decompress(compressed, (byte[]) null));
+  }
+
+  private static List<byte[]> payloads(int n) {
+    Random random = new Random(n);
+    List<byte[]> payloads = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      int length = random.nextInt(i % 10 == 0 ? 200000 : 3000);
+      byte[] payload = DeflateOutputStreamTest.text(length);
+      if (i % 3 == 0) {
+        random.nextBytes(payload);
+      }
+      payloads.add(payload);
+    }
+    return payloads;
+  }
+}
@@ -0,0 +1,139 @@
+package org.kompress;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DictionaryTrainerTest {
+
+  @Test public void shrinksSmallMessages() {
+    List<byte[]> messages = messages(1200, 1);
+    DictionaryTrainer trainer = new DictionaryTrainer();
+    for (byte[] message : messages.subList(0, 1000)) {
+      trainer.addSample(message);
+    }
+    DictionaryTrainer.Result result = trainer.train();
+    byte[] dictionary = result.dictionary();
+    assertTrue(dictionary.length <= DictionaryTrainer.MAX_DICTIONARY_SIZE);
+    assertTrue(result.toString(), result.improvement() > 2);
+
+    // The estimate holds for messages the trainer never saw.
+    DeflateContext with = new DeflateContext();
+    with.setDictionary(dictionary, 0, dictionary.length);
+    DeflateContext without = new DeflateContext();
+    long withLength = 0;
+    long withoutLength = 0;
+    byte[] dst = new byte[Deflate.compressBound(1000)];
+    for (byte[] message : messages.subList(1000, 1200)) {
+      int n = with.compress(message, 0, message.length, dst, 0);
+      assertArrayEquals(message, Deflate.decompress(Arrays.copyOf(dst, n), dictionary));
+      withLength += n;
+      withoutLength += without.compress(message, 0, message.length, dst, 0);
+    }
+    double improvement = (double) withoutLength / withLength;
+    assertTrue(improvement + " vs " + result.improvement(),
+      Math.abs(improvement - result.improvement()) < 0.25 * result.improvement());
+  }
+
+  @Test public void mostValuableLast() {
+    DictionaryTrainer trainer = new DictionaryTrainer(200, Deflate.DEFAULT_COMPRESSION);
+    Random random = new Random(2);
+    for (int i = 0; i < 100; i++) {
+      // Too far apart to share a segment.
+      String half = i % 2 == 0 ? "{\"type\":\"heartbeat\",\"ok\":true}" : "";
+      trainer.addSample((filler(random, 250) + half + filler(random, 250) + "\"everywhere\":\"in every sample\""
+        + filler(random, 250))
+        .getBytes(StandardCharsets.UTF_8));
+    }
+    String dictionary = new String(trainer.train().dictionary(), StandardCharsets.UTF_8);
+    assertTrue(dictionary, dictionary.contains("heartbeat"));
+    assertTrue(dictionary, dictionary.indexOf("heartbeat") < dictionary.lastIndexOf("every sample"));
+  }
+
+  @Test public void respectsMaxSize() {
+    List<byte[]> messages = messages(50, 3);
+    for (int maxSize : new int[]{1, 8, 100, 1000}) {
+      DictionaryTrainer trainer = new DictionaryTrainer(maxSize, Deflate.BEST_SPEED);
+      for (byte[] message : messages) {
+        trainer.addSample(message);
+      }
+      DictionaryTrainer.Result result = trainer.train();
+      assertTrue(maxSize + ": " + result, result.dictionary().length <= maxSize);
+    }
+  }
+
+  @Test public void streams() throws Exception {
+    // Data that only compresses by reference to the dictionary.
+    byte[] dictionary = new byte[40 * 1024];
+    new Random(4).nextBytes(dictionary);
+    byte[] data = Arrays.copyOfRange(dictionary, 20 * 1024, 30 * 1024);
+    for (int level = Deflate.NO_COMPRESSION; level <= Deflate.MAX_COMPRESSION; level++) {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      try (DeflateOutputStream out = new DeflateOutputStream(compressed, level)) {
+        out.setDictionary(dictionary, 0, dictionary.length);
+        out.write(data);
+      }
+      if (level > Deflate.NO_COMPRESSION) {
+        assertTrue("level " + level + ": " + compressed.size(), compressed.size() < 200);
+      }
+      DeflateInputStream in = new DeflateInputStream(new ByteArrayInputStream(compressed.toByteArray()), dictionary);
+      assertArrayEquals("level " + level, data, DeflateOutputStreamTest.readAll(in));
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void dictionaryAfterWrite() throws Exception {
+    DeflateOutputStream out = new DeflateOutputStream(new ByteArrayOutputStream());
+    out.write(1);
+    out.setDictionary(new byte[10], 0, 10);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void noSamples() {
+    new DictionaryTrainer().train();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void tooLarge() {
+    new DictionaryTrainer(DictionaryTrainer.MAX_DICTIONARY_SIZE + 1, Deflate.DEFAULT_COMPRESSION);
+  }
+
+  private static String filler(Random random, int length) {
+    StringBuilder filler = new StringBuilder();
+    while (filler.length() < length) {
+      filler.append(Long.toString(random.nextLong(), 36));
+    }
+    return filler.toString();
+  }
+
+  /**
+   * JSON records of a few hundred bytes, alike in their keys and some
+   * of their values.
+   */
+  private static List<byte[]> messages(int count, long seed) {
+    Random random = new Random(seed);
+    String[] names = {"alice", "bob", "carol", "dave", "erin", "frank"};
+    String[] cities = {"London", "Paris", "Berlin", "Madrid", "Rome", "Oslo"};
+    List<byte[]> messages = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      String name = names[random.nextInt(names.length)];
+      String message = "{\"id\":" + random.nextInt(1000000)
+        + ",\"user\":{\"name\":\"" + name + "\",\"email\":\"" + name + random.nextInt(100) + "@example.com\""
+        + ",\"address\":{\"city\":\"" + cities[random.nextInt(cities.length)] + "\",\"zip\":\"" + random.nextInt(99999) + "\"}}"
+        + ",\"status\":\"" + (random.nextBoolean() ? "active" : "suspended") + "\""
+        + ",\"created_at\":\"2024-0" + (1 + random.nextInt(9)) + "-1" + random.nextInt(10) + "T12:00:00Z\""
+        + ",\"tags\":[\"premium\",\"newsletter\"],\"score\":" + random.nextInt(1000) + "}";
+      messages.add(message.getBytes(StandardCharsets.UTF_8));
+    }
+    return messages;
+  }
+}
@@ -0,0 +1,101 @@
+package org.kompress;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class HashChainMatchFinderTest {
+
+  @Test public void matchLengthStopsAtFirstDifference() {
+    byte[] window = new byte[1024 + 8];
+    HashChainMatchFinder finder = new HashChainMatchFinder(window);
+    for (int len = 0; len < 300; len++) {
+      Arrays.fill(window, (byte) 'a');
+      window[600 + len] = 'b';
+      assertEquals(Math.min(len, 258), finder.matchLength(100, 600, 258));
+    }
+  }
+
+  @Test public void matchLengthStopsAtMax() {
+    byte[] window = new byte[1024 + 8];
+    HashChainMatchFinder finder = new HashChainMatchFinder(window);
+    for (int max = 0; max < 20; max++) {
+      assertEquals(max, finder.matchLength(0, 500, max));
+    }
+  }
+
+  @Test public void longestMatchFindsLongestCandidate() {
+    Random random = new Random(4);
+    byte[] window = new byte[4096 + 8];
+    for (int i = 0; i < 4096; i++) {
+      window[i] = (byte) ('a' + random.nextInt(2));
+    }
+    HashChainMatchFinder finder = new HashChainMatchFinder(window);
+
+    for (int p = 0; p < 3000; p++) {
+      int candidate = finder.insert(p);
+      if (candidate < 0 || p < 2000) {
+        continue;
+      }
+      int max = Math.min(258, 4096 - p);
+      int len = finder.longestMatch(p, candidate, 2, max, Integer.MAX_VALUE, 259, 259);
+
+      int expected = 2;
+      for (int c = 0; c < p; c++) {
+        if (hash(window, c) == hash(window, p)) {
+          expected = Math.max(expected, finder.matchLength(c, p, max));
+        }
+      }
+      assertEquals("at " + p, expected, len);
+      if (len > 2) {
+        assertEquals(len, finder.matchLength(finder.matchStart, p, max));
+      }
+    }
+  }
+
+  @Test public void findMatchesRecordsShortestDistanceForEachLength() {
+    Random random = new Random(5);
+    byte[] window = new byte[4096 + 8];
+    for (int i = 0; i < 4096; i++) {
+      window[i] = (byte) ('a' + random.nextInt(2));
+    }
+    HashChainMatchFinder finder = new HashChainMatchFinder(window);
+    int[] matches = new int[258];
+
+    for (int p = 0; p < 3000; p++) {
+      int candidate = finder.insert(p);
+      if (candidate < 0 || p < 2000) {
+        continue;
+      }
+      int max = Math.min(258, 4096 - p);
+      int count = finder.findMatches(p, candidate, max, Integer.MAX_VALUE, 259, matches, 0, matches.length);
+
+      // The nearest candidate reaching each length.
+      int found = 0;
+      int best = 2;
+      for (int c = p - 1; c >= 0; c--) {
+        int len = finder.matchLength(c, p, max);
+        if (len > best && hash(window, c) == hash(window, p)) {
+          assertEquals("at " + p, Tokens.match(len, p - c), matches[found++]);
+          best = len;
+        }
+      }
+      assertEquals("at " + p, found, count);
+    }
+  }
+
+  static int matchLength(byte[] window, int a, int b, int max) {
+    int len = 0;
+    while (len < max && window[a + len] == window[b + len]) {
+      len++;
+    }
+    return len;
+  }
+
+  private static int hash(byte[] window, int p) {
+    return window[p] << 16 | window[p + 1] << 8 | window[p + 2];
+  }
+}
@@ -0,0 +1,274 @@
+package org.kompress;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InflatingByteChannelTest {
+
+  @Test public void readsChannel() throws IOException {
+    byte[] data = DeflateOutputStreamTest.text(500 * 1024);
+    byte[] compressed = DeflateOutputStreamTest.compress(data, Deflate.DEFAULT_COMPRESSION);
+    ReadableByteChannel channel = new InflatingReadableByteChannel(
+      Channels.newChannel(new ByteArrayInputStream(compressed)), 1000);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteBuffer dst = ByteBuffer.allocateDirect(3000);
+    while (channel.read(dst) != -1) {
+      dst.flip();
+      byte[] b = new byte[dst.remaining()];
+      dst.get(b);
+      out.write(b);
+      dst.clear();
+    }
+    assertArrayEquals(data, out.toByteArray());
+  }
+
+  @Test public void readsNonBlockingSource() throws IOException {
+    byte[] data = DeflateOutputStreamTest.text(200 * 1024);
+    // Stored and compressed blocks.
+    for (int level : new int[]{Deflate.NO_COMPRESSION, Deflate.BEST_COMPRESSION}) {
+      Trickle source = new Trickle(DeflateOutputStreamTest.compress(data, level));
+      ReadableByteChannel channel = new InflatingReadableByteChannel(source, 4096);
+      ByteBuffer dst = ByteBuffer.allocate(2 * data.length);
+      int empty = 0;
+      int n;
+      // The stream ends at its final block, though the source stays open.
+      while ((n = channel.read(dst)) != -1) {
+        if (n == 0) {
+          empty++;
+          assertTrue(source.idle);
+          // With all the input given, nothing is left to wait for.
+          assertFalse(source.drained());
+        }
+      }
+      assertTrue(empty > 0);
+      dst.flip();
+      byte[] result = new byte[dst.remaining()];
+      dst.get(result);
+      assertArrayEquals("level " + level, data, result);
+    }
+  }
+
+  @Test public void readsShortStreamFromOpenSource() throws IOException {
+    byte[] data = DeflateOutputStreamTest.text(45);
+    for (int level = Deflate.NO_COMPRESSION; level <= Deflate.MAX_COMPRESSION; level++) {
+      Pending source = new Pending();
+      source.add(DeflateOutputStreamTest.compress(data, level));
+      ReadableByteChannel channel = new InflatingReadableByteChannel(source, 4096);
+      ByteBuffer dst = ByteBuffer.allocate(100);
+      assertEquals("level " + level, data.length, channel.read(dst));
+      assertEquals(-1, channel.read(dst));
+      assertArrayEquals(data, Arrays.copyOf(dst.array(), dst.position()));
+    }
+  }
+
+  @Test public void readsUpToSyncFlushFromOpenSource() throws IOException {
+    byte[] first = DeflateOutputStreamTest.text(5000);
+    byte[] second = DeflateOutputStreamTest.text(37);
+    Pending source = new Pending();
+    ReadableByteChannel channel = new InflatingReadableByteChannel(source, 4096);
+    ByteBuffer dst = ByteBuffer.allocate(2 * (first.length + second.length));
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (DeflateOutputStream out = new DeflateOutputStream(compressed, Deflate.DEFAULT_COMPRESSION)) {
+      out.write(first);
+      out.flush(DeflateOutputStream.SYNC_FLUSH);
+      source.add(compressed.toByteArray());
+      compressed.reset();
+      assertEquals(first.length, channel.read(dst));
+      assertEquals(0, channel.read(dst));
+      out.write(second);
+    }
+    source.add(compressed.toByteArray());
+    assertEquals(second.length, channel.read(dst));
+    assertEquals(-1, channel.read(dst));
+    assertArrayEquals(concat(first, second), Arrays.copyOf(dst.array(), dst.position()));
+  }
+
+  @Test public void writesToSink() throws IOException {
+    byte[] data = DeflateOutputStreamTest.text(300 * 1024);
+    byte[] compressed = DeflateOutputStreamTest.compress(data, Deflate.DEFAULT_COMPRESSION);
+    List<Integer> writes = new ArrayList<>();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    WritableByteChannel sink = new WritableByteChannel() {
+      final WritableByteChannel channel = Channels.newChannel(out);
+
+      @Override
+      public int write(ByteBuffer src) throws IOException {
+        writes.add(src.remaining());
+        return channel.write(src);
+      }
+
+      @Override
+      public boolean isOpen() {
+        return channel.isOpen();
+      }
+
+      @Override
+      public void close() throws IOException {
+        channel.close();
+      }
+    };
+    WritableByteChannel channel = new InflatingWritableByteChannel(sink, 16 * 1024);
+    Random random = new Random(1);
+    for (int off = 0; off < compressed.length; ) {
+      int n = Math.min(compressed.length - off, 1 + random.nextInt(5000));
+      assertEquals(n, channel.write(ByteBuffer.wrap(compressed, off, n)));
+      off += n;
+    }
+    channel.close();
+    assertFalse(sink.isOpen());
+    assertArrayEquals(data, out.toByteArray());
+    for (int i = 0; i < writes.size() - 1; i++) {
+      assertEquals(16 * 1024, (int) writes.get(i));
+    }
+  }
+
+  @Test public void writesToNonBlockingSink() throws IOException {
+    byte[] data = DeflateOutputStreamTest.text(200 * 1024);
+    ByteBuffer src = ByteBuffer.wrap(concat(DeflateOutputStreamTest.compress(data, Deflate.BEST_SPEED),
+      new byte[]{1, 2, 3}));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    WritableByteChannel sink = new WritableByteChannel() {
+      int calls;
+
+      @Override
+      public int write(ByteBuffer b) {
+        // Nothing every other time, and at most 1000 bytes.
+        int n = calls++ % 2 == 0 ? 0 : Math.min(b.remaining(), 1000);
+        for (int i = 0; i < n; i++) {
+          out.write(b.get());
+        }
+        return n;
+      }
+
+      @Override
+      public boolean isOpen() {
+        return true;
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+    WritableByteChannel channel = new InflatingWritableByteChannel(sink, 4096);
+    boolean partial = false;
+    while (src.hasRemaining()) {
+      int before = src.remaining();
+      partial |= channel.write(src) < before;
+    }
+    channel.close();
+    assertTrue(partial);
+    assertArrayEquals(data, out.toByteArray());
+  }
+
+  @Test(expected = EOFException.class)
+  public void closeFailsTruncated() throws IOException {
+    byte[] compressed = DeflateOutputStreamTest.compress(DeflateOutputStreamTest.text(50 * 1024), Deflate.BEST_SPEED);
+    WritableByteChannel channel = new InflatingWritableByteChannel(Channels.newChannel(new ByteArrayOutputStream()));
+    channel.write(ByteBuffer.wrap(compressed, 0, compressed.length / 2));
+    channel.close();
+  }
+
+  @Test(expected = ClosedChannelException.class)
+  public void readAfterClose() throws IOException {
+    ReadableByteChannel channel = new InflatingReadableByteChannel(
+      Channels.newChannel(new ByteArrayInputStream(new byte[]{3, 0})));
+    channel.close();
+    channel.read(ByteBuffer.allocate(10));
+  }
+
+  private static byte[] concat(byte[] a, byte[] b) {
+    byte[] c = Arrays.copyOf(a, a.length + b.length);
+    System.arraycopy(b, 0, c, a.length, b.length);
+    return c;
+  }
+
+  /**
+   * A non-blocking channel with a few bytes to give at a time, and none
+   * every other time, which stays open once it has given them all.
+   */
+  private static final class Trickle implements ReadableByteChannel {
+
+    private final ByteBuffer data;
+    private final Random random = new Random(2);
+    boolean idle;
+
+    Trickle(byte[] data) {
+      this.data = ByteBuffer.wrap(data);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) {
+      idle = !idle;
+      if (idle) {
+        return 0;
+      }
+      int n = Math.min(Math.min(dst.remaining(), data.remaining()), 1 + random.nextInt(300));
+      for (int i = 0; i < n; i++) {
+        dst.put(data.get());
+      }
+      return n;
+    }
+
+    boolean drained() {
+      return !data.hasRemaining();
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  /**
+   * A non-blocking channel that gives what has been added to it, and
+   * nothing once that has all been read.
+   */
+  private static final class Pending implements ReadableByteChannel {
+
+    private final ByteArrayOutputStream added = new ByteArrayOutputStream();
+    private int read;
+
+    void add(byte[] data) {
+      added.write(data, 0, data.length);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) {
+      int n = Math.min(dst.remaining(), added.size() - read);
+      dst.put(added.toByteArray(), read, n);
+      read += n;
+      return n;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
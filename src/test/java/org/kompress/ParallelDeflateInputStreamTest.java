@@ -0,0 +1,160 @@
+package org.kompress;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelDeflateInputStreamTest {
+
+  private static final int CHUNK_SIZE = 16 * 1024;
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+  @After public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test public void readsZlibGzip() throws IOException {
+    byte[] data = mixed(600 * 1024);
+    for (int level : new int[]{Deflater.BEST_SPEED, Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION}) {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      try (GZIPOutputStream out = new GZIPOutputStream(compressed) {
+        {
+          def.setLevel(level);
+        }
+      }) {
+        out.write(data);
+      }
+      ParallelDeflateInputStream in = open(compressed.toByteArray(), true);
+      assertArrayEquals("level " + level, data, DeflateOutputStreamTest.readAll(in));
+      // Most chunks were decoded ahead, and found their place.
+      assertTrue(in.speculated() + " of " + data.length, in.speculated() > data.length / 2);
+    }
+  }
+
+  @Test public void readsEveryLevel() throws IOException {
+    byte[] data = mixed(300 * 1024);
+    for (int level = Deflate.NO_COMPRESSION; level <= Deflate.MAX_COMPRESSION; level++) {
+      byte[] compressed = DeflateOutputStreamTest.compress(data, level);
+      assertArrayEquals("level " + level, data, DeflateOutputStreamTest.readAll(open(compressed, false)));
+    }
+  }
+
+  @Test public void readsParallelOutput() throws IOException {
+    byte[] data = mixed(3 * ParallelDeflateOutputStream.CHUNK_SIZE + 777);
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (ParallelDeflateOutputStream out = new ParallelDeflateOutputStream(compressed, Deflate.DEFAULT_COMPRESSION,
+      true, executor, 4)) {
+      out.write(data);
+    }
+    assertArrayEquals(data, DeflateOutputStreamTest.readAll(open(compressed.toByteArray(), true)));
+  }
+
+  @Test public void readsFixedHuffmanSerially() throws IOException {
+    // Short flushed segments, each coded as a fixed Huffman block.
+    byte[] data = DeflateOutputStreamTest.text(100 * 1024);
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (DeflaterOutputStream out = new DeflaterOutputStream(compressed, new Deflater(6, true), 512, true)) {
+      for (int off = 0; off < data.length; off += 20) {
+        out.write(data, off, 20);
+        out.flush();
+      }
+    }
+    assertArrayEquals(data, DeflateOutputStreamTest.readAll(open(compressed.toByteArray(), false)));
+  }
+
+  @Test public void readsConcatenatedMembers() throws IOException {
+    byte[] first = mixed(100 * 1024);
+    byte[] second = DeflateOutputStreamTest.text(70 * 1024);
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    compressed.write(gzip(first));
+    compressed.write(gzip(new byte[0]));
+    compressed.write(gzip(second));
+    byte[] expected = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, expected, first.length, second.length);
+    assertArrayEquals(expected, DeflateOutputStreamTest.readAll(open(compressed.toByteArray(), true)));
+  }
+
+  @Test public void readsByteAtATime() throws IOException {
+    byte[] data = mixed(50 * 1024);
+    InputStream in = open(gzip(data), true);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) != -1) {
+      out.write(b);
+    }
+    assertArrayEquals(data, out.toByteArray());
+  }
+
+  @Test public void oneThread() throws IOException {
+    byte[] data = mixed(200 * 1024);
+    ExecutorService single = Executors.newSingleThreadExecutor();
+    try {
+      InputStream in = new ParallelDeflateInputStream(new ByteArrayInputStream(gzip(data)), true, single, 1,
+        CHUNK_SIZE);
+      assertArrayEquals(data, DeflateOutputStreamTest.readAll(in));
+    } finally {
+      single.shutdown();
+    }
+  }
+
+  @Test public void empty() throws IOException {
+    assertEquals(0, DeflateOutputStreamTest.readAll(open(gzip(new byte[0]), true)).length);
+  }
+
+  @Test(expected = ZipException.class)
+  public void corruptCrc() throws IOException {
+    byte[] compressed = gzip(mixed(100 * 1024));
+    compressed[compressed.length - 8] ^= 1;
+    DeflateOutputStreamTest.readAll(open(compressed, true));
+  }
+
+  @Test(expected = EOFException.class)
+  public void truncated() throws IOException {
+    byte[] compressed = gzip(mixed(100 * 1024));
+    DeflateOutputStreamTest.readAll(open(Arrays.copyOf(compressed, compressed.length / 2), true));
+  }
+
+  private ParallelDeflateInputStream open(byte[] compressed, boolean gzip) {
+    return new ParallelDeflateInputStream(new ByteArrayInputStream(compressed), gzip, executor, 4, CHUNK_SIZE);
+  }
+
+  private static byte[] gzip(byte[] data) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+      out.write(data);
+    }
+    return compressed.toByteArray();
+  }
+
+  /**
+   * Text, with stretches of random bytes that end up in stored blocks.
+   */
+  private static byte[] mixed(int length) {
+    byte[] data = DeflateOutputStreamTest.text(length);
+    Random random = new Random(length);
+    for (int off = 0; off + 20000 < length; off += 60000 + random.nextInt(60000)) {
+      byte[] noise = new byte[10000 + random.nextInt(10000)];
+      random.nextBytes(noise);
+      System.arraycopy(noise, 0, data, off, noise.length);
+    }
+    return data;
+  }
+}
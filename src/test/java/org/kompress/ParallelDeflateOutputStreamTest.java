@@ -0,0 +1,138 @@
+package org.kompress;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelDeflateOutputStreamTest {
+
+  @Test public void roundTripsAcrossChunks() throws Exception {
+    byte[] text = DeflateOutputStreamTest.text(5 * ParallelDeflateOutputStream.CHUNK_SIZE + 1234);
+    for (int level : new int[]{Deflate.NO_COMPRESSION, Deflate.BEST_SPEED, Deflate.DEFAULT_COMPRESSION}) {
+      byte[] compressed = compress(text, level, false, 3);
+      assertArrayEquals(text, DeflateOutputStreamTest.inflate(compressed));
+      assertArrayEquals(text, DeflateOutputStreamTest.readAll(new DeflateInputStream(new ByteArrayInputStream(compressed))));
+    }
+  }
+
+  @Test public void everyLevelUsesDictionary() throws Exception {
+    byte[] text = DeflateOutputStreamTest.text(ParallelDeflateOutputStream.CHUNK_SIZE + 5000);
+    for (int level = Deflate.NO_COMPRESSION; level <= Deflate.MAX_COMPRESSION; level++) {
+      byte[] compressed = compress(text, level, false, 2);
+      assertArrayEquals("level " + level, text, DeflateOutputStreamTest.inflate(compressed));
+    }
+  }
+
+  @Test public void empty() throws Exception {
+    byte[] compressed = compress(new byte[0], Deflate.DEFAULT_COMPRESSION, false, 1);
+    assertEquals(0, DeflateOutputStreamTest.inflate(compressed).length);
+    assertEquals(0, DeflateOutputStreamTest.readAll(new GZIPInputStream(new ByteArrayInputStream(
+      compress(new byte[0], Deflate.DEFAULT_COMPRESSION, true, 1)))).length);
+  }
+
+  @Test public void exactChunkMultiple() throws Exception {
+    byte[] text = DeflateOutputStreamTest.text(2 * ParallelDeflateOutputStream.CHUNK_SIZE);
+    byte[] compressed = compress(text, Deflate.DEFAULT_COMPRESSION, false, 2);
+    assertArrayEquals(text, DeflateOutputStreamTest.readAll(new DeflateInputStream(new ByteArrayInputStream(compressed))));
+  }
+
+  @Test public void gzipHasCombinedCrc() throws Exception {
+    byte[] mixed = new byte[3 * ParallelDeflateOutputStream.CHUNK_SIZE + 99];
+    new Random(7).nextBytes(mixed);
+    byte[] text = DeflateOutputStreamTest.text(mixed.length / 2);
+    System.arraycopy(text, 0, mixed, 0, text.length);
+
+    byte[] compressed = compress(mixed, Deflate.DEFAULT_COMPRESSION, true, 4);
+    // GZIPInputStream checks the CRC and size in the trailer.
+    assertArrayEquals(mixed, DeflateOutputStreamTest.readAll(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+
+    CRC32 crc = new CRC32();
+    crc.update(mixed);
+    assertEquals((int) crc.getValue(), Gzip.getInt(compressed, compressed.length - 8));
+  }
+
+  @Test public void outputIsIndependentOfThreads() throws Exception {
+    // The last chunk is short, and ends with three bytes that, with a
+    // fourth left in a reused window by the chunk of z's, look like an
+    // earlier four.
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    data.write(DeflateOutputStreamTest.text(2 * ParallelDeflateOutputStream.CHUNK_SIZE));
+    byte[] z = new byte[ParallelDeflateOutputStream.CHUNK_SIZE];
+    Arrays.fill(z, (byte) 'z');
+    data.write(z);
+    data.write(DeflateOutputStreamTest.text(1000));
+    data.write("wxyz--wxy".getBytes("ISO-8859-1"));
+    byte[] text = data.toByteArray();
+    for (int level = Deflate.NO_COMPRESSION; level <= Deflate.MAX_COMPRESSION; level++) {
+      byte[] expected = compress(text, level, true, 1, 1);
+      for (int threads : new int[]{1, 2, 4}) {
+        for (int maxInFlight : new int[]{1, 3, 16}) {
+          assertArrayEquals("level " + level + ", " + threads + " threads, " + maxInFlight + " in flight",
+            expected, compress(text, level, true, threads, maxInFlight));
+        }
+      }
+    }
+  }
+
+  @Test public void dictionaryKeepsRatioCloseToSerial() throws Exception {
+    byte[] text = DeflateOutputStreamTest.text(8 * ParallelDeflateOutputStream.CHUNK_SIZE);
+    int serial = DeflateOutputStreamTest.compress(text, Deflate.DEFAULT_COMPRESSION).length;
+    int parallel = compress(text, Deflate.DEFAULT_COMPRESSION, false, 4).length;
+    assertTrue(parallel + " vs " + serial, parallel <= serial * 1.01);
+  }
+
+  @Test public void combinesCrcs() {
+    Random random = new Random(8);
+    for (int trial = 0; trial < 50; trial++) {
+      byte[] data = new byte[random.nextInt(5000)];
+      random.nextBytes(data);
+      int split = data.length == 0 ? 0 : random.nextInt(data.length + 1);
+
+      CRC32 first = new CRC32();
+      first.update(data, 0, split);
+      CRC32 second = new CRC32();
+      second.update(data, split, data.length - split);
+      CRC32 whole = new CRC32();
+      whole.update(data);
+
+      assertEquals((int) whole.getValue(),
+        Crc32.combine((int) first.getValue(), (int) second.getValue(), data.length - split));
+    }
+  }
+
+  private static byte[] compress(byte[] data, int level, boolean gzip, int threads) throws IOException {
+    return compress(data, level, gzip, threads, threads);
+  }
+
+  private static byte[] compress(byte[] data, int level, boolean gzip, int threads, int maxInFlight)
+    throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      try (ParallelDeflateOutputStream out = new ParallelDeflateOutputStream(compressed, level, gzip, executor,
+        maxInFlight)) {
+        Random random = new Random(data.length);
+        for (int off = 0; off < data.length; ) {
+          int n = Math.min(data.length - off, 1 + random.nextInt(200000));
+          out.write(data, off, n);
+          off += n;
+        }
+      }
+      return compressed.toByteArray();
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
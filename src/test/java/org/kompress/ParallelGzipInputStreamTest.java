@@ -0,0 +1,144 @@
+package org.kompress;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ParallelGzipInputStreamTest {
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+  @After public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test public void readsIndependentMembers() throws IOException {
+    byte[] data = DeflateOutputStreamTest.text(1024 * 1024);
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    for (int off = 0; off < data.length; off += 30000) {
+      compressed.write(gzip(Arrays.copyOfRange(data, off, Math.min(data.length, off + 30000)),
+        Deflate.DEFAULT_COMPRESSION));
+    }
+    compressed.write(gzip(new byte[0], Deflate.DEFAULT_COMPRESSION));
+    ParallelGzipInputStream in = open(compressed.toByteArray());
+    assertArrayEquals(data, DeflateOutputStreamTest.readAll(in));
+    assertEquals(data.length, in.speculated());
+  }
+
+  @Test public void readsBgzf() throws IOException {
+    byte[] data = DeflateOutputStreamTest.text(700 * 1024);
+    ParallelGzipInputStream in = open(BgzfInputStreamTest.bgzf(data));
+    assertArrayEquals(data, DeflateOutputStreamTest.readAll(in));
+    assertEquals(data.length, in.speculated());
+  }
+
+  @Test public void readsPastFalseHeaders() throws IOException {
+    // Stored members holding GZIP files, whose headers show through.
+    byte[] inner = gzip(DeflateOutputStreamTest.text(50 * 1024), Deflate.DEFAULT_COMPRESSION);
+    byte[] text = DeflateOutputStreamTest.text(80 * 1024);
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    for (int i = 0; i < 6; i++) {
+      byte[] member = i % 2 == 0 ? inner : text;
+      compressed.write(gzip(member, Deflate.NO_COMPRESSION));
+      expected.write(member);
+    }
+    ParallelGzipInputStream in = open(compressed.toByteArray());
+    assertArrayEquals(expected.toByteArray(), DeflateOutputStreamTest.readAll(in));
+    // Only the members with false headers in them were read serially.
+    assertEquals(3 * text.length, in.speculated());
+  }
+
+  @Test public void readsLargeMembersSerially() throws IOException {
+    byte[] large = DeflateOutputStreamTest.text(600 * 1024);
+    byte[] small = DeflateOutputStreamTest.text(20 * 1024);
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    compressed.write(gzip(small, Deflate.DEFAULT_COMPRESSION));
+    compressed.write(gzip(large, Deflate.NO_COMPRESSION));
+    compressed.write(gzip(small, Deflate.DEFAULT_COMPRESSION));
+    compressed.write(gzip(small, Deflate.DEFAULT_COMPRESSION));
+    // Arriving a little at a time, so the large member's end isn't seen.
+    InputStream trickle = new ByteArrayInputStream(compressed.toByteArray()) {
+      @Override
+      public synchronized int read(byte[] b, int off, int len) {
+        return super.read(b, off, Math.min(len, 4096));
+      }
+    };
+    ParallelGzipInputStream in = new ParallelGzipInputStream(trickle, executor, 4, 64 * 1024);
+
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    expected.write(small);
+    expected.write(large);
+    expected.write(small);
+    expected.write(small);
+    assertArrayEquals(expected.toByteArray(), DeflateOutputStreamTest.readAll(in));
+    assertEquals(3 * small.length, in.speculated());
+    // Counting the input read past the buffer while reading serially.
+    assertEquals(compressed.size(), in.position());
+  }
+
+  @Test public void readsByteAtATime() throws IOException {
+    byte[] data = DeflateOutputStreamTest.text(40 * 1024);
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    compressed.write(gzip(Arrays.copyOf(data, 1000), Deflate.BEST_SPEED));
+    compressed.write(gzip(Arrays.copyOfRange(data, 1000, data.length), Deflate.BEST_SPEED));
+    InputStream in = open(compressed.toByteArray());
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) != -1) {
+      out.write(b);
+    }
+    assertArrayEquals(data, out.toByteArray());
+  }
+
+  @Test(expected = ZipException.class)
+  public void corruptCrc() throws IOException {
+    byte[] member = gzip(DeflateOutputStreamTest.text(10000), Deflate.DEFAULT_COMPRESSION);
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    compressed.write(member);
+    member[member.length - 8] ^= 1;
+    compressed.write(member);
+    DeflateOutputStreamTest.readAll(open(compressed.toByteArray()));
+  }
+
+  @Test(expected = EOFException.class)
+  public void truncated() throws IOException {
+    byte[] compressed = gzip(DeflateOutputStreamTest.text(100 * 1024), Deflate.DEFAULT_COMPRESSION);
+    DeflateOutputStreamTest.readAll(open(Arrays.copyOf(compressed, compressed.length / 2)));
+  }
+
+  @Test(expected = EOFException.class)
+  public void empty() throws IOException {
+    assertEquals(-1, open(new byte[0]).read());
+  }
+
+  private ParallelGzipInputStream open(byte[] compressed) {
+    return new ParallelGzipInputStream(new ByteArrayInputStream(compressed), executor, 4);
+  }
+
+  private static byte[] gzip(byte[] data, int level) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (GZIPOutputStream out = new GZIPOutputStream(compressed) {
+      {
+        def.setLevel(Math.min(level, Deflater.BEST_COMPRESSION));
+      }
+    }) {
+      out.write(data);
+    }
+    return compressed.toByteArray();
+  }
+}
@@ -0,0 +1,117 @@
+package org.kompress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ParallelIndexedReaderTest {
+
+  private static final int SPAN = 64 * 1024;
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(4);
+  private Path file;
+  private Path out;
+
+  @Before public void setUp() throws IOException {
+    file = Files.createTempFile("kompress", ".gz");
+    out = Files.createTempFile("kompress", ".out");
+  }
+
+  @After public void tearDown() throws IOException {
+    executor.shutdownNow();
+    Files.deleteIfExists(file);
+    Files.deleteIfExists(out);
+  }
+
+  @Test public void readsAsStream() throws IOException {
+    byte[] data = DeflateOutputStreamTest.text(1024 * 1024);
+    DeflateIndex index = index(gzip(data), true);
+    try (FileChannel channel = FileChannel.open(file)) {
+      InputStream in = new ParallelIndexedReader(channel, index, executor, 3).stream();
+      assertArrayEquals(data, DeflateOutputStreamTest.readAll(in));
+    }
+  }
+
+  @Test public void readsRawDeflate() throws IOException {
+    byte[] data = DeflateOutputStreamTest.text(700 * 1024);
+    for (int level : new int[]{Deflate.NO_COMPRESSION, Deflate.BEST_SPEED, Deflate.MAX_COMPRESSION}) {
+      DeflateIndex index = index(DeflateOutputStreamTest.compress(data, level), false);
+      try (FileChannel channel = FileChannel.open(file)) {
+        InputStream in = new ParallelIndexedReader(channel, index, executor, 2).stream();
+        assertArrayEquals("level " + level, data, DeflateOutputStreamTest.readAll(in));
+      }
+    }
+  }
+
+  @Test public void transfersToFileChannel() throws IOException {
+    byte[] first = DeflateOutputStreamTest.text(300 * 1024);
+    byte[] second = DeflateOutputStreamTest.text(500 * 1024);
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    compressed.write(gzip(first));
+    compressed.write(gzip(new byte[0]));
+    compressed.write(gzip(second));
+    DeflateIndex index = index(compressed.toByteArray(), true);
+
+    try (FileChannel channel = FileChannel.open(file);
+         FileChannel target = FileChannel.open(out, StandardOpenOption.WRITE)) {
+      assertEquals(first.length + second.length,
+        new ParallelIndexedReader(channel, index, executor, 4).transferTo(target));
+    }
+    byte[] expected = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, expected, first.length, second.length);
+    assertArrayEquals(expected, Files.readAllBytes(out));
+  }
+
+  @Test public void callsBackInOrder() throws IOException {
+    byte[] data = DeflateOutputStreamTest.text(1024 * 1024);
+    DeflateIndex index = index(gzip(data), true);
+    ByteArrayOutputStream received = new ByteArrayOutputStream();
+    try (FileChannel channel = FileChannel.open(file)) {
+      new ParallelIndexedReader(channel, index, executor, 1).forEach((offset, span) -> {
+        assertEquals(received.size(), offset);
+        received.write(span);
+      });
+    }
+    assertArrayEquals(data, received.toByteArray());
+  }
+
+  @Test(expected = EOFException.class)
+  public void truncated() throws IOException {
+    byte[] compressed = gzip(DeflateOutputStreamTest.text(1024 * 1024));
+    DeflateIndex index = index(compressed, true);
+    Files.write(file, Arrays.copyOf(compressed, compressed.length / 2));
+    try (FileChannel channel = FileChannel.open(file)) {
+      DeflateOutputStreamTest.readAll(new ParallelIndexedReader(channel, index, executor, 3).stream());
+    }
+  }
+
+  private DeflateIndex index(byte[] compressed, boolean gzip) throws IOException {
+    Files.write(file, compressed);
+    return DeflateIndex.build(new ByteArrayInputStream(compressed), gzip, SPAN);
+  }
+
+  private static byte[] gzip(byte[] data) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+      out.write(data);
+    }
+    return compressed.toByteArray();
+  }
+}
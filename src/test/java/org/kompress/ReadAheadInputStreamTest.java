@@ -0,0 +1,109 @@
+package org.kompress;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReadAheadInputStreamTest {
+
+  @Test public void readsAhead() throws IOException {
+    byte[] data = DeflateOutputStreamTest.text(300 * 1024);
+    InputStream in = new ReadAheadInputStream(slow(data), 3, 1000, null);
+    assertArrayEquals(data, DeflateOutputStreamTest.readAll(in));
+    assertEquals(-1, in.read());
+  }
+
+  @Test public void readsByteAtATime() throws IOException {
+    byte[] data = DeflateOutputStreamTest.text(10000);
+    InputStream in = new ReadAheadInputStream(new ByteArrayInputStream(data), 2, 77, null);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) != -1) {
+      out.write(b);
+    }
+    assertArrayEquals(data, out.toByteArray());
+  }
+
+  @Test public void decodesPipelined() throws Exception {
+    byte[] data = DeflateOutputStreamTest.text(1024 * 1024);
+    byte[] compressed = DeflateOutputStreamTest.compress(data, Deflate.DEFAULT_COMPRESSION);
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      for (boolean decodeAhead : new boolean[]{false, true}) {
+        InputStream in = DeflateInputStream.pipelined(slow(compressed), 4, 4096, decodeAhead, executor);
+        assertArrayEquals(data, DeflateOutputStreamTest.readAll(in));
+      }
+      assertArrayEquals(data, DeflateOutputStreamTest.readAll(
+        DeflateInputStream.pipelined(new ByteArrayInputStream(compressed))));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test public void passesOnErrors() {
+    InputStream failing = new InputStream() {
+      @Override
+      public int read() throws IOException {
+        throw new IOException("disk on fire");
+      }
+    };
+    InputStream in = new ReadAheadInputStream(failing);
+    for (int i = 0; i < 2; i++) {
+      try {
+        in.read();
+        fail();
+      } catch (IOException e) {
+        assertEquals("disk on fire", e.getMessage());
+      }
+    }
+  }
+
+  @Test public void closeStopsReadingAhead() throws Exception {
+    byte[] data = DeflateOutputStreamTest.text(1024 * 1024);
+    byte[] compressed = DeflateOutputStreamTest.compress(data, Deflate.DEFAULT_COMPRESSION);
+    ExecutorService executor = Executors.newCachedThreadPool();
+    InputStream in = DeflateInputStream.pipelined(new ByteArrayInputStream(compressed), 2, 1024, true, executor);
+    assertEquals(data[0], (byte) in.read());
+    in.close();
+    executor.shutdown();
+    // Both tasks end, though the data is far from read.
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsZeroDepth() {
+    new ReadAheadInputStream(new ByteArrayInputStream(new byte[1]), 0, 1024, null);
+  }
+
+  /**
+   * A stream that pauses now and then, returning short reads.
+   */
+  private static InputStream slow(byte[] data) {
+    return new ByteArrayInputStream(data) {
+      private int reads;
+
+      @Override
+      public synchronized int read(byte[] b, int off, int len) {
+        if (++reads % 16 == 0) {
+          try {
+            Thread.sleep(1);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        return super.read(b, off, Math.min(len, 3000));
+      }
+    };
+  }
+}